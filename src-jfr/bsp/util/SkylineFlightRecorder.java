@@ -0,0 +1,113 @@
+package bsp.util;
+
+import beast.core.Operator;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**********************************************
+ * Java Flight Recorder events for skylines.  *
+ **********************************************
+ *
+ * - One event type per skyline method (calculateLogP, updateArrays, redistributing groups, store and restore), so
+ *   they can be enabled separately in a JFR configuration (bsp.CalculateLogP etc.)
+ * - Every event has the skyline id, the number of intervals, the number of groups touched and the operator that
+ *   proposed the state (only if the MCMC uses SkylineOperatorSchedule, empty during initialization)
+ * - Created by SkylineRecorder.create() when running with -Dbsp.jfr=true (requires JDK 11 or 8u262+), record with
+ *   e.g. -XX:StartFlightRecording=filename=run.jfr
+ * - In a separate source directory (src-jfr), which is only compiled if the JDK has jdk.jfr, so the package still
+ *   builds on JDKs without Flight Recorder
+ * - Events of the same type do not nest, so one open event per type is kept (not thread-safe, like the skyline)
+ *
+ */
+public class SkylineFlightRecorder implements SkylineRecorder {
+
+    @Category({"BEAST", "Skyline"})
+    abstract static class SkylineEvent extends Event {
+
+        @Label("Skyline")
+        String skyline;
+
+        @Label("Interval Count")
+        int intervalCount;
+
+        @Label("Groups Touched")
+        int groupCount;
+
+        @Label("Operator")
+        String operator;
+    }
+
+    @Name("bsp.CalculateLogP")
+    @Label("Skyline calculateLogP")
+    @Description("Skyline likelihood calculation")
+    static class CalculateLogPEvent extends SkylineEvent { }
+
+    @Name("bsp.UpdateArrays")
+    @Label("Skyline updateArrays")
+    @Description("Recalculation of skyline group sizes and times")
+    static class UpdateArraysEvent extends SkylineEvent { }
+
+    @Name("bsp.RedistributeGroups")
+    @Label("Skyline redistributeGroups")
+    @Description("Redistribution of group sizes to satisfy minWidth at initialization")
+    static class RedistributeGroupsEvent extends SkylineEvent { }
+
+    @Name("bsp.Store")
+    @Label("Skyline store")
+    static class StoreEvent extends SkylineEvent { }
+
+    @Name("bsp.Restore")
+    @Label("Skyline restore")
+    static class RestoreEvent extends SkylineEvent { }
+
+
+    protected final String skyline;
+
+    protected final SkylineEvent [] events = new SkylineEvent[EventType.values().length];
+
+
+    public SkylineFlightRecorder(String skyline) {
+        this.skyline = skyline == null ? "skyline" : skyline;
+    }
+
+
+    @Override
+    public void begin(EventType type) {
+
+        SkylineEvent event;
+        switch (type) {
+            case CALCULATE_LOGP:      event = new CalculateLogPEvent();      break;
+            case UPDATE_ARRAYS:       event = new UpdateArraysEvent();       break;
+            case REDISTRIBUTE_GROUPS: event = new RedistributeGroupsEvent(); break;
+            case STORE:               event = new StoreEvent();              break;
+            default:                  event = new RestoreEvent();            break;
+        }
+
+        event.begin();
+        events[type.ordinal()] = event;
+    }
+
+
+    @Override
+    public void end(EventType type, int intervalCount, int groupCount, Operator operator) {
+
+        SkylineEvent event = events[type.ordinal()];
+        if (event == null) {
+            return;
+        }
+        events[type.ordinal()] = null;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.skyline       = skyline;
+            event.intervalCount = intervalCount;
+            event.groupCount    = groupCount;
+            event.operator      = operator == null ? "" : (operator.getID() != null ? operator.getID() : operator.getClass().getSimpleName());
+            event.commit();
+        }
+    }
+
+}
@@ -6,12 +6,17 @@ import beast.core.Input;
 import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
 import beast.core.util.Log;
+import beast.evolution.tree.Tree;
 import beast.evolution.tree.coalescent.IntervalType;
 import beast.math.Binomial;
+import bsp.util.SkylineRecorder;
 
 import java.util.Arrays;
+import java.util.Map;
 
+import static beast.evolution.tree.coalescent.IntervalType.NOTHING;
 import static beast.evolution.tree.coalescent.IntervalType.SAMPLE;
+import static bsp.util.SkylineRecorder.EventType.UPDATE_ARRAYS;
 
 
 /***************************************************************
@@ -19,8 +24,12 @@ import static beast.evolution.tree.coalescent.IntervalType.SAMPLE;
  * *************************************************************
  *
  *
+ * - When population size change times are estimated (popSizeChangeTimes), groups include both coalescent and
+ *   sampling events and the sampling intensity part of the likelihood is integrated over each group
  * - Tests showed no real speed advantage to storing and restoring arrays instead of just always updating at every
  *   sample
+ * - Sampling times only depend on the tip dates, which are fixed in most analyses. They are only recalculated when a
+ *   tip height changed, and the sampling intensity groups only when the sampling times or group sizes changed.
  *
  * @author Louis du Plessis
  * @date 2019/01/21
@@ -46,7 +55,14 @@ public class BESP extends BSP {
 
     protected int []    cumulativeSamplingIntensityGroupSizes;
     protected double [] samplingTimes, intervalTimes,
-                        samplingIntensityGroupTimes;
+                        samplingIntensityGroupTimes,
+                        samplingIntensityIntegral;
+
+    // Tip heights the sampling times were calculated for
+    protected double [] tipHeights;
+
+    protected boolean samplingIntensityIntegralUpdated = false;
+
 
     @Override
     public void initAndValidate() {
@@ -54,6 +70,10 @@ public class BESP extends BSP {
         int nrEvents, nrSamples,
             popGroups, samplingGroups;
 
+        recorder = SkylineRecorder.create(getID());
+        async    = asyncInput.get();
+        initValidation();
+
         //////////////////////////
         // Get skyline parameters
         popSizes  = popSizeInput.get();
@@ -69,6 +89,7 @@ public class BESP extends BSP {
         } else {
             intervals = treeIntervalsInput.get();
         }
+        checkAsyncIntervals();
         nrEvents  = intervals.getIntervalCount();
         nrSamples = intervals.getSampleCount()+1;
 
@@ -83,6 +104,15 @@ public class BESP extends BSP {
         // If group sizes are not specified use robust design (equal group sizes)
 
         // popSize
+        if (popSizeChangeTimesInput.get() != null) {
+
+            if (popSizeEpochTimesInput.get() != null || popSizeGroupSizeInput.get() != null) {
+                throw new IllegalArgumentException("Only one of popSizeChangeTimes, popSizeEpochTimes and popSizeGroupSizes should be specified.");
+            }
+
+            popSizeChangeTimes = popSizeChangeTimesInput.get();
+
+        } else
         if (popSizeEpochTimesInput.get() != null) {
 
             if (popSizeGroupSizeInput.get() != null) {
@@ -131,13 +161,13 @@ public class BESP extends BSP {
         }
 
         // Group sizes do not equal the dimension of the skyline parameter
-        if (popSizeGroupSizes.getDimension() != popGroups || samplingIntensityGroupSizes.getDimension() != samplingGroups) {
+        if ((popSizeGroupSizes != null && popSizeGroupSizes.getDimension() != popGroups) || samplingIntensityGroupSizes.getDimension() != samplingGroups) {
             throw new IllegalArgumentException("Number of groups should match the dimension of the skyline parameter "
                                              + "(effective population size or sampling intensity).");
         }
 
         // More groups than events
-        if (popSizeGroupSizes.getDimension() > nrEvents || samplingIntensityGroupSizes.getDimension() > nrSamples) {
+        if (popGroups > nrEvents || samplingIntensityGroupSizes.getDimension() > nrSamples) {
             throw new IllegalArgumentException("There are more groups than coalescent/sampling events in the tree.");
         }
 
@@ -149,13 +179,29 @@ public class BESP extends BSP {
         //storedCumulativepopSizeGroupSizes = new int[nrGroups];
         popSizeGroupTimes           = new double[popGroups];
         samplingIntensityGroupTimes = new double[samplingGroups];
+        samplingIntensityIntegral   = new double[samplingGroups];
         intervalTimes = new double [intervals.getIntervalCount()];
         samplingTimes = new double [intervals.getSampleCount()+1];
+        tipHeights    = new double [intervals.treeInput.get().getLeafNodeCount()];
+        Arrays.fill(tipHeights, Double.NaN);
         //samplingTimes = getSamplingTimes(getIntervalTimes(null));
+        if (popSizeChangeTimes != null) {
+            initChangeTimeArrays();
+        }
         updateArrays();
 
         // popSizeGroupSizes needs to add up to coalescent + sampling events
-        if (cumulativePopSizeGroupSizes[popGroups - 1] != nrEvents) {
+        // (fewer events in the group sizes than in the tree, e.g. when tips were added since the previous run: extend the groups if extendGroupSizes)
+        if (popSizeChangeTimes == null && cumulativePopSizeGroupSizes[popGroups - 1] < nrEvents && extendGroupSizesInput.get()) {
+            Log.warning.println("WARNING: The sum of the initial effective population group sizes is smaller than the number of "
+                              + "coalescent and sampling events in the tree. Adding the extra events to the smallest groups");
+
+            popSizeGroupSizes.assignFromWithoutID(getExtendedGroupSizes(popSizeGroupSizes, nrEvents));
+
+            // Recalculate cumulative group sizes, because group sizes have been changed
+            updateArrays();
+        } else
+        if (popSizeChangeTimes == null && cumulativePopSizeGroupSizes[popGroups - 1] != nrEvents) {
             Log.warning.println("WARNING: The sum of the initial effective population group sizes does not match the number of coalescent "
                               + "and sampling events in the tree. Initializing to equal group sizes (robust design)");
 
@@ -167,6 +213,15 @@ public class BESP extends BSP {
         }
 
         // samplingIntensityGroupSizes needs to add up to sampling events
+        if (cumulativeSamplingIntensityGroupSizes[samplingGroups - 1] < nrSamples && extendGroupSizesInput.get()) {
+            Log.warning.println("WARNING: The sum of the initial sampling intensity group sizes is smaller than the number of "
+                              + "sampling events in the tree. Adding the extra events to the smallest groups");
+
+            samplingIntensityGroupSizes.assignFromWithoutID(getExtendedGroupSizes(samplingIntensityGroupSizes, nrSamples));
+
+            // Recalculate cumulative group sizes, because group sizes have been changed
+            updateArrays();
+        } else
         if (cumulativeSamplingIntensityGroupSizes[samplingGroups - 1] != nrSamples) {
             Log.warning.println("WARNING: The sum of the initial sampling intensity group sizes does not match the number of "
                               + "sampling events in the tree. Initializing to equal group sizes (robust design)");
@@ -178,10 +233,29 @@ public class BESP extends BSP {
             updateArrays();
         }
 
+        // popSize change times need to be increasing, before the tMRCA and respect minWidth
+        if (popSizeChangeTimes != null) {
+            initChangeTimes();
+        }
+
+        adjustGroupWidths();
+
+        // System.out.println(this.toString());
+
+    }
+
+
+    /**
+     * Redistribute population size and sampling intensity group sizes until all groups are at least minWidth wide on
+     * the current tree (at most numInitializationAttempts times)
+     */
+    @Override
+    protected void adjustGroupWidths() {
+
         // popSize group widths need to be longer than minWidth
         int i = 0;
         int numInitializationAttemps = numInitializationAttemptsInput.get();
-        while (!checkGroupWidths(popSizeGroupTimes, minWidth)) {
+        while (popSizeChangeTimes == null && !checkGroupWidths(popSizeGroupTimes, minWidth)) {
             if (i == 0) {
                 Log.warning.println("WARNING: Minimum effective population group width is shorter than minWidth ("+ minWidth + ")\n"
                                   + "Attempting to adjust...");
@@ -214,14 +288,67 @@ public class BESP extends BSP {
             updateArrays();
             i++;
         }
+    }
 
-        // System.out.println(this.toString());
 
+    /**
+     * Get the times of the events that make up the groups of groupSizes from the current tree
+     * (coalescent and sampling events for popSizeGroupSizes, sampling events for samplingIntensityGroupSizes)
+     *
+     * @param groupSizes popSizeGroupSizes or samplingIntensityGroupSizes
+     * @param times      array to reuse (allocated if null)
+     * @return
+     */
+    @Override
+    public double [] getGroupEventTimes(IntegerParameter groupSizes, double [] times) {
+
+        boolean samplesOnly;
+        if (groupSizes != null && groupSizes == popSizeGroupSizes) {
+            samplesOnly = false;
+        } else
+        if (groupSizes != null && groupSizes == samplingIntensityGroupSizes) {
+            samplesOnly = true;
+        } else {
+            throw new IllegalArgumentException("Group sizes should be the popSizeGroupSizes or samplingIntensityGroupSizes of the skyline.");
+        }
+
+        int n = samplesOnly ? samplingTimes.length : intervals.getIntervalCount();
+        if (times == null || times.length != n) {
+            times = new double[n];
+        }
+
+        double time = 0.0;
+        int j = 0;
+        for (int i = 0; i < intervals.getIntervalCount(); i++) {
+            time += intervals.getInterval(i);
+            if (!samplesOnly || intervals.getIntervalType(i) == SAMPLE) {
+                times[j] = time;
+                j++;
+            }
+        }
+
+        return times;
     }
 
 
+    /**
+     * Get the times of all events and of the sampling events from the current tree
+     *
+     * @param intervalTimes
+     * @param samplingTimes
+     */
     protected void updateIntervalTimes(double [] intervalTimes, double [] samplingTimes) {
 
+        // Shared events (calculated once per tree state)
+        if (intervals instanceof SkylineTreeIntervals) {
+            SkylineEvents shared = updateEvents();
+            System.arraycopy(shared.eventTimes, 0, intervalTimes, 0, intervalTimes.length);
+            for (int s = 0; s < shared.getSampleCount(); s++) {
+                samplingTimes[s] = shared.getSampleTime(s);
+            }
+            return;
+        }
+
         double time = 0.0;
         int j = 0;
         for (int i = 0; i < intervals.getIntervalCount(); i++) {
@@ -235,76 +362,189 @@ public class BESP extends BSP {
     }
 
 
+    /**
+     * Update the sampling times if a tip height changed since they were last calculated
+     * (the sorted events need to be up to date)
+     *
+     * @return true if the sampling times were recalculated
+     */
+    protected boolean updateSamplingTimes() {
+
+        Tree    tree    = intervals.treeInput.get();
+        boolean changed = false;
+        double  height;
+
+        for (int i = 0; i < tipHeights.length; i++) {
+            height = tree.getNode(i).getHeight();
+            if (height != tipHeights[i]) {
+                tipHeights[i] = height;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            for (int s = 0; s < samplingTimes.length; s++) {
+                samplingTimes[s] = events.getSampleTime(s);
+            }
+        }
+
+        return changed;
+    }
+
+
+    /**
+     * Update the cumulative sampling intensity group sizes and the group times that changed
+     *
+     * @param samplingTimesChanged recalculate all group times
+     * @return number of groups updated
+     */
+    protected int updateSamplingIntensityGroups(boolean samplingTimesChanged) {
+
+        int cumulative = 0,
+            groupsUpdated = 0;
+
+        for (int i = 0; i < cumulativeSamplingIntensityGroupSizes.length; i++) {
+            cumulative += samplingIntensityGroupSizes.getNativeValue(i);
+            if (samplingTimesChanged || cumulative != cumulativeSamplingIntensityGroupSizes[i]) {
+                cumulativeSamplingIntensityGroupSizes[i] = cumulative;
+                samplingIntensityGroupTimes[i]           = samplingTimes[cumulative-1];
+                groupsUpdated++;
+            }
+        }
+
+        return groupsUpdated;
+    }
+
+
     /**
      * Updates the arrays used in likelihood calculation and other methods
      */
     protected void updateArrays() {
 
-        updateIntervalTimes(intervalTimes, samplingTimes);
+        int groupsUpdated;
 
-        // Get popsize cumulative group sizes and times (and extract sampling times)
-        cumulativePopSizeGroupSizes[0] = popSizeGroupSizes.getValue(0);
-        popSizeGroupTimes[0]           = intervalTimes[cumulativePopSizeGroupSizes[0]-1];
-        for (int i = 1; i < cumulativePopSizeGroupSizes.length; i++) {
-            cumulativePopSizeGroupSizes[i] = cumulativePopSizeGroupSizes[i-1] + popSizeGroupSizes.getValue(i);
-            popSizeGroupTimes[i]           = intervalTimes[cumulativePopSizeGroupSizes[i]-1];
+        if (counters != null) {
+            counters.arraysUpdated(popSizeChangeTimes == null || !eventsUpdated);
         }
+        if (recorder != null) {
+            recorder.begin(UPDATE_ARRAYS);
+        }
+
+        // Sorted and batched events (only recalculated if the tree changed)
+        updateEventsIfChanged();
+        boolean samplingTimesChanged = updateSamplingTimes();
 
-        // Get sampling intensity cumulative group sizes and times
-        cumulativeSamplingIntensityGroupSizes[0] = samplingIntensityGroupSizes.getValue(0);
-        samplingIntensityGroupTimes[0]           = samplingTimes[cumulativeSamplingIntensityGroupSizes[0]-1];
-        for (int i = 1; i < cumulativeSamplingIntensityGroupSizes.length; i++) {
-            cumulativeSamplingIntensityGroupSizes[i] = cumulativeSamplingIntensityGroupSizes[i-1] + samplingIntensityGroupSizes.getValue(i);
-            samplingIntensityGroupTimes[i]           = samplingTimes[cumulativeSamplingIntensityGroupSizes[i]-1];
+        if (popSizeChangeTimes != null) {
+            // Get popsize groups from the estimated change times (groups include coalescent and sampling events)
+            groupsUpdated = updateChangeTimes();
+            for (int i = 0; i < cumulativePopSizeGroupSizes.length; i++) {
+                cumulativePopSizeGroupSizes[i] = changeTimeCoalescentCount[i] + changeTimeSampleCount[i];
+            }
+        } else {
+            // Get popsize cumulative group sizes and times
+            cumulativePopSizeGroupSizes[0] = popSizeGroupSizes.getNativeValue(0);
+            popSizeGroupTimes[0]           = events.getEventTime(cumulativePopSizeGroupSizes[0]-1);
+            for (int i = 1; i < cumulativePopSizeGroupSizes.length; i++) {
+                cumulativePopSizeGroupSizes[i] = cumulativePopSizeGroupSizes[i-1] + popSizeGroupSizes.getNativeValue(i);
+                popSizeGroupTimes[i]           = events.getEventTime(cumulativePopSizeGroupSizes[i]-1);
+            }
+            groupsUpdated = cumulativePopSizeGroupSizes.length;
         }
 
+        // Get sampling intensity cumulative group sizes and times (only if changed)
+        groupsUpdated += updateSamplingIntensityGroups(samplingTimesChanged);
+        updateSamplingIntensityIntegral();
+
         arraysUpdated = true;
+        if (recorder != null) {
+            recorder.end(UPDATE_ARRAYS, intervals.getIntervalCount(), groupsUpdated, recorderOperator);
+        }
     }
 
 
 
     @Override
-    public double calculateLogP() {
+    protected double calculateSkylineLogP() {
 
         int    popSizeGroup           = 0,
                samplingIntensityGroup = 0,
-               sampleIndex = 0;
+               sampleIndex = 0,
+               eventIndex  = 0,
+               first, count, n;
         double width,
-               currentTime = 0.0,
                currentPopSize,
                currentSamplingIntensity;
+        IntervalType type;
+
+        // Groups changed without requiresRecalculation() being called
+        if (arraysUpdated && groupsDirty()) {
+            invalidateArrays();
+        }
 
         // Update arrays
         if (!arraysUpdated) {
             updateArrays();
 
-            if (!(checkGroupWidths(popSizeGroupTimes, minWidth) && checkGroupWidths(samplingIntensityGroupTimes, minWidth))) {
+            if (!(checkChangeTimes() && checkGroupWidths(popSizeGroupTimes, minWidth) && checkGroupWidths(samplingIntensityGroupTimes, minWidth))) {
+                if (counters != null) {
+                    counters.minWidthRejected();
+                }
                 return Double.NEGATIVE_INFINITY;
             }
+        } else {
+            // Tree and groups did not change
+            logP = calculateParameterLogP();
+            return logP;
         }
 
-        // Get likelihood for each segment
-        logP = 0.0;
-        for (int i = 0; i < intervals.getIntervalCount(); i++) {
-
-            // Next population size group
-            if (i >= cumulativePopSizeGroupSizes[popSizeGroup]) {
-                popSizeGroup++;
-            }
-
-            width = intervals.getInterval(i);
-            currentTime += width;
-
-            currentPopSize           = popSizes.getArrayValue(popSizeGroup);
-            currentSamplingIntensity = currentTime <= samplingTimes[samplingTimes.length-1] ? samplingIntensity.getArrayValue(samplingIntensityGroup) : 0.0;
-
-            logP += calculateIntervalLikelihood(currentPopSize, currentSamplingIntensity, width, intervals.getLineageCount(i), intervals.getIntervalType(i));
+        // Estimated change times
+        if (popSizeChangeTimes != null) {
+            logP = calculateChangeTimeLogP();
+            return logP;
+        }
 
-            // Next sampling intensity group
-            if (intervals.getIntervalType(i) == SAMPLE) {
-                sampleIndex++;
-                if (sampleIndex >= cumulativeSamplingIntensityGroupSizes[samplingIntensityGroup])
-                    samplingIntensityGroup++;
+        // Get likelihood for each batch of tied events, split at group boundaries
+        // (the sampling intensity is 0 after the last sampling group)
+        currentSamplingIntensity = samplingIntensity.getArrayValue(0);
+        logP = 0.0;
+        for (int b = 0; b < events.getBatchCount(); b++) {
+
+            first = events.getBatchStart(b);
+            count = events.getBatchSize(b);
+            type  = events.getEventType(first);
+            width = events.getWidth(first);
+
+            while (count > 0) {
+
+                // Next population size group
+                if (eventIndex >= cumulativePopSizeGroupSizes[popSizeGroup]) {
+                    popSizeGroup++;
+                }
+
+                n = Math.min(count, cumulativePopSizeGroupSizes[popSizeGroup] - eventIndex);
+                if (type == SAMPLE) {
+                    n = Math.min(n, cumulativeSamplingIntensityGroupSizes[samplingIntensityGroup] - sampleIndex);
+                }
+                n = Math.max(1, n);
+
+                // First event carries the width of the interval, the other n-1 events are at zero width
+                currentPopSize = popSizes.getArrayValue(popSizeGroup);
+                logP += calculateIntervalLikelihood(currentPopSize, currentSamplingIntensity, width, events.getLineageCount(first), type) +
+                        (n-1)*calculateIntervalLikelihood(currentPopSize, currentSamplingIntensity, 0.0, events.getLineageCount(first), type);
+
+                width       = 0.0;
+                count      -= n;
+                eventIndex += n;
+
+                // Next sampling intensity group
+                if (type == SAMPLE) {
+                    sampleIndex += n;
+                    if (sampleIndex >= cumulativeSamplingIntensityGroupSizes[samplingIntensityGroup]) {
+                        samplingIntensityGroup++;
+                        currentSamplingIntensity = samplingIntensityGroup < cumulativeSamplingIntensityGroupSizes.length
+                                                 ? samplingIntensity.getArrayValue(samplingIntensityGroup) : 0.0;
+                    }
+                }
             }
         }
 
@@ -349,6 +589,291 @@ public class BESP extends BSP {
         return lk;
     }
 
+
+    /**
+     * Calculates the log-likelihood when population size change times are estimated
+     *
+     * For population size group j the log-likelihood is -A_j/N_j + (s_j - c_j)*log(N_j) - N_j*B_j, where A_j is the
+     * integral of (k choose 2) over the group, B_j the integral of the sampling intensity over the group and c_j and
+     * s_j the numbers of coalescent and sampling events in the group. The sampling intensity terms for the sampling
+     * events, sum_m n_m*log(beta_m), do not depend on the population size groups.
+     *
+     * @return
+     */
+    @Override
+    protected double calculateChangeTimeLogP() {
+
+        double popSize, samplingIntegral,
+               prevSamplingIntegral = 0.0,
+               lk = 0.0;
+
+        // Sampling intensity terms of the sampling events
+        for (int m = 0; m < samplingIntensityGroupTimes.length; m++) {
+            lk += (cumulativeSamplingIntensityGroupSizes[m] - (m > 0 ? cumulativeSamplingIntensityGroupSizes[m-1] : 0))*Math.log(samplingIntensity.getArrayValue(m));
+        }
+
+        for (int j = 0; j < popSizeGroupTimes.length; j++) {
+            popSize          = popSizes.getArrayValue(j);
+            samplingIntegral = getSamplingIntensityIntegral(popSizeGroupTimes[j]);
+
+            lk += -(changeTimeLineageIntegral[j] - (j > 0 ? changeTimeLineageIntegral[j-1] : 0.0))/popSize
+                  +((changeTimeSampleCount[j]     - (j > 0 ? changeTimeSampleCount[j-1]     : 0))
+                   -(changeTimeCoalescentCount[j] - (j > 0 ? changeTimeCoalescentCount[j-1] : 0)))*Math.log(popSize)
+                  -popSize*(samplingIntegral - prevSamplingIntegral);
+
+            prevSamplingIntegral = samplingIntegral;
+        }
+
+        return lk;
+    }
+
+
+    /**
+     * Integral of the sampling intensity up to the end of each sampling intensity group (updated with the arrays, or
+     * when first needed after only samplingIntensity changed)
+     */
+    protected void updateSamplingIntensityIntegral() {
+
+        double prev = 0.0;
+        for (int m = 0; m < samplingIntensityGroupTimes.length; m++) {
+            samplingIntensityIntegral[m] = (m > 0 ? samplingIntensityIntegral[m-1] : 0.0)
+                                         + samplingIntensity.getArrayValue(m)*(samplingIntensityGroupTimes[m] - prev);
+            prev = samplingIntensityGroupTimes[m];
+        }
+        samplingIntensityIntegralUpdated = true;
+    }
+
+
+    /**
+     * Population size groups include coalescent and sampling events
+     */
+    @Override
+    protected int getGroupEndEvent(int c) {
+        return c-1;
+    }
+
+
+    /**
+     * Log-likelihood of the intervals after event first up to event last with constant population size
+     * (-A/N + (s-c)*log(N) - N*B, see calculateChangeTimeLogP(), without the sampling intensity terms of the sampling
+     * events, which do not depend on the population size groups)
+     *
+     * @param popSize
+     * @param first
+     * @param last
+     * @return
+     */
+    @Override
+    protected double calculateGroupLogP(double popSize, int first, int last) {
+
+        double start = first >= 0 ? events.getEventTime(first) : 0.0;
+
+        return -(events.getLineageIntegral(last) - events.getLineageIntegral(first))/popSize
+               +((events.getSampleCount(last) - events.getSampleCount(first))
+                -(events.getCoalescentCount(last) - events.getCoalescentCount(first)))*Math.log(popSize)
+               -popSize*(getSamplingIntensityIntegral(events.getEventTime(last)) - getSamplingIntensityIntegral(start));
+    }
+
+
+    /**
+     * Integral of the sampling intensity from 0 to t (the sampling intensity is 0 after the last sample)
+     * Needs the arrays to be up to date.
+     *
+     * @param t
+     * @return
+     */
+    protected double getSamplingIntensityIntegral(double t) {
+
+        if (!samplingIntensityIntegralUpdated) {
+            updateSamplingIntensityIntegral();
+        }
+
+        int last = samplingIntensityGroupTimes.length-1;
+        if (t >= samplingIntensityGroupTimes[last]) {
+            return samplingIntensityIntegral[last];
+        }
+
+        // First group ending at or after t
+        int m = Arrays.binarySearch(samplingIntensityGroupTimes, t);
+        if (m < 0) {
+            m = -m - 1;
+        } else {
+            while (m > 0 && samplingIntensityGroupTimes[m-1] == t) m--;
+        }
+
+        double start = m > 0 ? samplingIntensityGroupTimes[m-1] : 0.0;
+        return (m > 0 ? samplingIntensityIntegral[m-1] : 0.0) + samplingIntensity.getArrayValue(m)*Math.max(0.0, t - start);
+    }
+
+    /**
+     * Rate of each interval (minus the derivative of the interval likelihood with respect to the width) at the start
+     * and the end of the interval. These are only different if a change time falls on the event at the start of the
+     * interval. The sampling intensity applies to the intervals up to the last sampling event in the order of the
+     * intervals, so a coalescent event at the time of the last sample is moved in the direction that keeps the order.
+     *
+     * @param rateAtStart
+     * @param rateAtEnd
+     */
+    @Override
+    protected void calculateIntervalRates(double [] rateAtStart, double [] rateAtEnd) {
+
+        int    popSizeGroup           = 0,
+               samplingIntensityGroup = 0,
+               sampleIndex = 0,
+               lastSample  = intervals.getIntervalCount()-1;
+        double start = 0.0,
+               end;
+
+        while (intervals.getIntervalType(lastSample) != SAMPLE) {
+            lastSample--;
+        }
+
+        if (popSizeChangeTimes != null) {
+            // Groups defined by time
+            int lastPopSizeGroup           = popSizeGroupTimes.length-1,
+                lastSamplingIntensityGroup = samplingIntensityGroupTimes.length-1,
+                startPopSizeGroup = 0, endPopSizeGroup = 0,
+                startSamplingIntensityGroup = 0, endSamplingIntensityGroup = 0;
+            double startBeta, endBeta;
+
+            for (int i = 0; i < intervals.getIntervalCount(); i++) {
+                end = start + intervals.getInterval(i);
+
+                while (startPopSizeGroup < lastPopSizeGroup && popSizeGroupTimes[startPopSizeGroup] <= start) startPopSizeGroup++;
+                while (endPopSizeGroup   < lastPopSizeGroup && popSizeGroupTimes[endPopSizeGroup]   <  end)   endPopSizeGroup++;
+
+                while (startSamplingIntensityGroup < lastSamplingIntensityGroup && samplingIntensityGroupTimes[startSamplingIntensityGroup] <= start) startSamplingIntensityGroup++;
+                while (endSamplingIntensityGroup   < lastSamplingIntensityGroup && samplingIntensityGroupTimes[endSamplingIntensityGroup]   <  end)   endSamplingIntensityGroup++;
+
+                startBeta = i <= lastSample ? samplingIntensity.getArrayValue(startSamplingIntensityGroup) : 0.0;
+                endBeta   = i <= lastSample ? samplingIntensity.getArrayValue(endSamplingIntensityGroup)   : 0.0;
+
+                rateAtStart[i] = -calculateIntervalLikelihood(popSizes.getArrayValue(startPopSizeGroup), startBeta, 1.0, intervals.getLineageCount(i), NOTHING);
+                rateAtEnd[i]   = -calculateIntervalLikelihood(popSizes.getArrayValue(endPopSizeGroup),   endBeta,   1.0, intervals.getLineageCount(i), NOTHING);
+
+                start = end;
+            }
+        } else {
+            // Groups defined by numbers of events (same as calculateLogP())
+            for (int i = 0; i < intervals.getIntervalCount(); i++) {
+
+                if (i >= cumulativePopSizeGroupSizes[popSizeGroup]) {
+                    popSizeGroup++;
+                }
+
+                rateAtStart[i] = rateAtEnd[i] =
+                        -calculateIntervalLikelihood(popSizes.getArrayValue(popSizeGroup),
+                                                     i <= lastSample ? samplingIntensity.getArrayValue(samplingIntensityGroup) : 0.0,
+                                                     1.0, intervals.getLineageCount(i), NOTHING);
+
+                if (intervals.getIntervalType(i) == SAMPLE) {
+                    sampleIndex++;
+                    if (sampleIndex >= cumulativeSamplingIntensityGroupSizes[samplingIntensityGroup])
+                        samplingIntensityGroup++;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected int getSamplingIntensityGroupCount() {
+        return samplingIntensity.getDimension();
+    }
+
+
+    @Override
+    protected void getParameterValues(double [] values) {
+
+        int popGroups = popSizes.getDimension();
+        super.getParameterValues(values);
+        for (int m = 0; m < samplingIntensity.getDimension(); m++) {
+            values[popGroups + m] = samplingIntensity.getArrayValue(m);
+        }
+    }
+
+
+    /**
+     * Fill in the sufficient statistics (needs arrays to be up to date)
+     *
+     * @param stats
+     */
+    @Override
+    protected void calculateStatistics(SkylineStatistics stats) {
+
+        int    popSizeGroup           = 0,
+               samplingIntensityGroup = 0,
+               sampleIndex = 0;
+        double width,
+               currentTime = 0.0,
+               lastSample  = samplingTimes[samplingTimes.length-1];
+
+        for (int m = 0; m < samplingIntensityGroupTimes.length; m++) {
+            stats.samplingIntensitySampleCount[m] = cumulativeSamplingIntensityGroupSizes[m] - (m > 0 ? cumulativeSamplingIntensityGroupSizes[m-1] : 0);
+        }
+
+        if (popSizeChangeTimes != null) {
+            // Groups defined by time
+            int    lastPopSizeGroup = popSizeGroupTimes.length-1;
+            double end;
+
+            for (int j = 0; j < popSizeGroupTimes.length; j++) {
+                stats.lineageIntegral[j] = changeTimeLineageIntegral[j] - (j > 0 ? changeTimeLineageIntegral[j-1] : 0.0);
+                stats.coalescentCount[j] = changeTimeCoalescentCount[j] - (j > 0 ? changeTimeCoalescentCount[j-1] : 0);
+                stats.sampleCount[j]     = changeTimeSampleCount[j]     - (j > 0 ? changeTimeSampleCount[j-1]     : 0);
+            }
+
+            // Merge population size and sampling intensity group times up to the last sample
+            while (samplingIntensityGroup < samplingIntensityGroupTimes.length) {
+                end = samplingIntensityGroupTimes[samplingIntensityGroup];
+                if (popSizeGroup < lastPopSizeGroup) {
+                    end = Math.min(end, popSizeGroupTimes[popSizeGroup]);
+                }
+
+                stats.addSegment(popSizeGroup, samplingIntensityGroup, end - currentTime);
+                currentTime = Math.max(currentTime, end);
+
+                if (popSizeGroup < lastPopSizeGroup && popSizeGroupTimes[popSizeGroup] <= end) {
+                    popSizeGroup++;
+                }
+                if (samplingIntensityGroupTimes[samplingIntensityGroup] <= end) {
+                    samplingIntensityGroup++;
+                }
+            }
+        } else {
+            // Groups defined by numbers of events (same as calculateLogP())
+            for (int i = 0; i < intervals.getIntervalCount(); i++) {
+
+                if (i >= cumulativePopSizeGroupSizes[popSizeGroup]) {
+                    popSizeGroup++;
+                }
+
+                width = intervals.getInterval(i);
+                currentTime += width;
+
+                stats.lineageIntegral[popSizeGroup] += Binomial.choose2(intervals.getLineageCount(i)) * width;
+                if (currentTime <= lastSample) {
+                    stats.addSegment(popSizeGroup, samplingIntensityGroup, width);
+                }
+
+                switch (intervals.getIntervalType(i)) {
+                    case COALESCENT:
+                        stats.coalescentCount[popSizeGroup]++;
+                        break;
+
+                    case SAMPLE:
+                        stats.sampleCount[popSizeGroup]++;
+                        sampleIndex++;
+                        if (sampleIndex >= cumulativeSamplingIntensityGroupSizes[samplingIntensityGroup])
+                            samplingIntensityGroup++;
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
     @Override
     public String toString() {
 
@@ -377,6 +902,13 @@ public class BESP extends BSP {
 
     public int getSamplingIntensityDimension() { return samplingIntensity.getDimension(); }
 
+    /**
+     * @return samplingIntensityGroupSizes
+     */
+    public IntegerParameter getSamplingIntensityGroupSizes() {
+        return samplingIntensityGroupSizes;
+    }
+
     /**
      * Return the i'th change time of the skyline parameter (for logging and skyline reconstruction)
      *
@@ -413,6 +945,58 @@ public class BESP extends BSP {
     }
 
 
+    /****************************/
+    /* Calculation Node methods */
+    /****************************/
+
+    @Override
+    protected boolean requiresRecalculation() {
+        waitForLogP();
+        if (samplingIntensity.somethingIsDirty()) {
+            samplingIntensityIntegralUpdated = false;
+        }
+        return super.requiresRecalculation();
+    }
+
+    @Override
+    protected boolean groupsDirty() {
+        return super.groupsDirty() || samplingIntensityGroupSizes.somethingIsDirty();
+    }
+
+    @Override
+    public void restore() {
+        waitForLogP();
+        samplingIntensityIntegralUpdated = false;
+        super.restore();
+    }
+
+
+    /*********************/
+    /* Shadow validation */
+    /*********************/
+
+    @Override
+    protected void clearCaches() {
+        super.clearCaches();
+        Arrays.fill(tipHeights, Double.NaN);
+        samplingIntensityIntegralUpdated = false;
+    }
+
+    @Override
+    protected void getValidatedValues(Map<String, double []> values) {
+
+        super.getValidatedValues(values);
+
+        double [] cumulative = new double[cumulativeSamplingIntensityGroupSizes.length];
+        for (int i = 0; i < cumulative.length; i++) {
+            cumulative[i] = cumulativeSamplingIntensityGroupSizes[i];
+        }
+        values.put("samplingTimes", Arrays.copyOf(samplingTimes, samplingTimes.length));
+        values.put("samplingIntensityGroupTimes", Arrays.copyOf(samplingIntensityGroupTimes, samplingIntensityGroupTimes.length));
+        values.put("cumulativeSamplingIntensityGroupSizes", cumulative);
+    }
+
+
 
 
 }
@@ -1,22 +1,38 @@
 package bsp.distributions;
 
 
+import beast.core.BEASTInterface;
 import beast.core.Citation;
 import beast.core.Description;
 import beast.core.Input;
+import beast.core.Operator;
 import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
+import beast.core.util.CompoundDistribution;
 import beast.core.util.Log;
+import beast.evolution.tree.Node;
 import beast.evolution.tree.TreeDistribution;
 import beast.evolution.tree.coalescent.IntervalType;
 import beast.evolution.tree.coalescent.TreeIntervals;
 import beast.math.Binomial;
 import beast.util.HeapSort;
 import beast.util.Randomizer;
+import bsp.util.SkylineCounters;
+import bsp.util.SkylineOperatorSchedule;
+import bsp.util.SkylineRecorder;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static beast.evolution.tree.coalescent.IntervalType.COALESCENT;
+import static beast.evolution.tree.coalescent.IntervalType.NOTHING;
+import static bsp.util.SkylineRecorder.EventType.*;
 
 /*****************************************
  * Bayesian Skyline Plot implementation. *
@@ -31,6 +47,31 @@ import static beast.evolution.tree.coalescent.IntervalType.COALESCENT;
  *   Of course, these will be adjusted to coincide with coalescent times on the input tree, and if group sizes
  *   are sampled will not stay the same over the course of the MCMC chain
  * - Times for groups can be logged as well and there is a minimum width for each group.
+ * - With extendGroupSizes, group sizes that add up to fewer events than the tree (e.g. from a previous run, before new
+ *   tips were added, see bsp.util.TipAdder) are extended by adding the new events to the smallest groups. Otherwise
+ *   they are replaced by the robust design, as any other group sizes that do not match the tree.
+ * - Alternatively, the change times can be estimated directly (popSizeChangeTimes), in which case groups are
+ *   defined by time instead of by numbers of events. The likelihood is then calculated from prefix sums over the
+ *   sorted events (SkylineEvents), so moving a change time only needs a binary search for the new position
+ * - The gradient of the likelihood with respect to node heights can be calculated in one pass over the intervals
+ * - Tied events of the same type (e.g. tips sampled on the same date) are evaluated as one batch with a
+ *   multiplicity, so the likelihood loop visits the distinct event times instead of every interval (SkylineEvents
+ *   are only recalculated when the tree changes)
+ * - If the tree intervals are SkylineTreeIntervals the sorted events are shared with other distributions on the
+ *   same tree instead of being recalculated by every distribution
+ * - calculateLogP(), updateArrays(), getPopSize() and the change time getters do not allocate once initialized
+ *   (arrays are reused and parameters are read with getArrayValue()/getNativeValue()), see AllocationTest
+ * - Performance counters are only collected if SkylineCounters are set (e.g. by skylineCounterLogger)
+ * - Java Flight Recorder events are emitted for calculateLogP, updateArrays, redistributing groups, store and
+ *   restore when running with -Dbsp.jfr=true (see SkylineRecorder)
+ * - In async mode the likelihood is calculated on a worker thread of the skyline, started by requiresRecalculation(),
+ *   so it overlaps with the distributions evaluated before the skyline. BEAST evaluates the posterior in order, so the
+ *   tree likelihood should come before the prior in the posterior (a warning is given otherwise). The tree intervals
+ *   are recalculated on the worker, so they cannot be SkylineTreeIntervals or be used by other objects. Updates where
+ *   only the skyline parameters changed are fast and are not sent to the worker.
+ * - In debug mode (validateEvery or validateProbability) the likelihood, group times and cumulative group sizes are
+ *   recalculated from scratch now and then and compared to the cached values. The first divergence is reported with
+ *   the operator that caused it.
  * - Tests showed no real speed advantage to storing and restoring arrays instead of just always updating at every
  *   sample
  *
@@ -57,6 +98,10 @@ public class BSP extends TreeDistribution {
     final public Input<RealParameter> popSizeEpochTimesInput =
             new Input<>("popSizeEpochTimes", "Times when the population size change (distance from most recent tip)");
 
+    final public Input<RealParameter> popSizeChangeTimesInput =
+            new Input<>("popSizeChangeTimes", "Estimated times when the population size changes (distance from most recent tip, "+
+                        "dimension one less than popSizes). The last group always ends at the tMRCA");
+
     final public Input<Double> minWidthInput =
             new Input<>("minWidth","Minimum width of a group (end-start)",0.0);
 
@@ -64,6 +109,26 @@ public class BSP extends TreeDistribution {
             new Input<>("numInitializationAttempts","Number of times to try to initialize the group sizes "+
                               "if the minimum group width constraint is not satisfied",10000);
 
+    final public Input<Boolean> extendGroupSizesInput =
+            new Input<>("extendGroupSizes", "If the group sizes add up to fewer events than the tree (e.g. from a previous run, " +
+                        "before new tips were added) add the extra events to the smallest groups instead of using the robust design", false);
+
+    final public Input<Boolean> asyncInput =
+            new Input<>("async", "Start calculating the likelihood on a background thread as soon as the skyline is marked " +
+                        "dirty, so it overlaps with the distributions evaluated before it, e.g. the tree likelihood if it comes " +
+                        "before the prior in the posterior (calculateLogP() only waits for the result)", false);
+
+    final public Input<Integer> validateEveryInput =
+            new Input<>("validateEvery", "Debug mode: recalculate the likelihood, group times and cumulative group sizes from " +
+                        "scratch every validateEvery evaluations and compare them to the cached values (0 to switch off)", 0);
+
+    final public Input<Double> validateProbabilityInput =
+            new Input<>("validateProbability", "Debug mode: probability of recalculating from scratch and comparing to the " +
+                        "cached values at every evaluation", 0.0);
+
+    final public Input<Double> validateToleranceInput =
+            new Input<>("validateTolerance", "Relative tolerance when comparing cached and recalculated values", 1e-8);
+
     protected TreeIntervals intervals;
     protected RealParameter popSizes;
     protected IntegerParameter popSizeGroupSizes;
@@ -75,12 +140,58 @@ public class BSP extends TreeDistribution {
 
     protected boolean arraysUpdated = false;
 
+    // Estimated change times
+    protected RealParameter popSizeChangeTimes;
+    protected SkylineEvents events;
+
+    protected double [] changeTimeLineageIntegral, storedChangeTimeLineageIntegral,
+                        storedPopSizeGroupTimes;
+    protected int []    changeTimeCoalescentCount, storedChangeTimeCoalescentCount,
+                        changeTimeSampleCount,     storedChangeTimeSampleCount;
+
+    // Performance counters and Flight Recorder events (null if disabled)
+    protected SkylineCounters counters;
+    protected SkylineRecorder recorder;
+    // Operator that proposed the state, captured on the MCMC thread for the recorder (null during initialization)
+    protected Operator recorderOperator;
+
+    // Gradient with respect to node heights
+    protected double [] intervalRateAtStart, intervalRateAtEnd;
+
+    protected boolean eventsUpdated      = false,
+                      changeTimesUpdated = false, storedChangeTimesUpdated = false,
+                      intervalsChanged   = false;
+
+    // Sufficient statistics, to recalculate the likelihood in O(groups) when only popSizes (or samplingIntensity)
+    // changed since the arrays were updated
+    protected SkylineStatistics statistics;
+    protected double [] parameterValues;
+    protected boolean statisticsKnown = false,
+                      groupsChanged   = false;
+
+    // Likelihood calculation running on the worker thread in async mode (null if none)
+    protected Future<Double> pendingLogP;
+    protected ExecutorService worker;
+    protected boolean async,
+                      asyncChecked = false;
+
+    // Shadow validation (debug mode)
+    protected boolean  validating;
+    protected long     evaluationCount = 0;
+    protected int      validationFailures = 0;
+    protected Random   validationRandom;
+    protected Operator validationOperator;
+
 
     @Override
     public void initAndValidate() {
 
         int nrCoal, nrGroups;
 
+        recorder = SkylineRecorder.create(getID());
+        async    = asyncInput.get();
+        initValidation();
+
         //////////////////////////
         // Get skyline parameter
         popSizes = popSizeInput.get();
@@ -95,6 +206,7 @@ public class BSP extends TreeDistribution {
             intervals = treeIntervalsInput.get();
         }
         nrCoal = intervals.getSampleCount();
+        checkAsyncIntervals();
 
 
         ////////////////////////////
@@ -106,6 +218,16 @@ public class BSP extends TreeDistribution {
         // Get group sizes
         // If epoch times are specified use those to get the groups
         // If popSizeGroupSizes are not specified use robust design (equal group sizes)
+        // If change times are estimated there are no group sizes
+        if (popSizeChangeTimesInput.get() != null) {
+
+            if (popSizeEpochTimesInput.get() != null || popSizeGroupSizeInput.get() != null) {
+                throw new IllegalArgumentException("Only one of popSizeChangeTimes, popSizeEpochTimes and popSizeGroupSizes should be specified.");
+            }
+
+            popSizeChangeTimes = popSizeChangeTimesInput.get();
+
+        } else
         if (popSizeEpochTimesInput.get() != null) {
 
             if (popSizeGroupSizeInput.get() != null) {
@@ -126,12 +248,12 @@ public class BSP extends TreeDistribution {
         }
 
         // Group sizes does not equal the dimension of the skyline parameter
-        if (popSizeGroupSizes.getDimension() != nrGroups) {
+        if (popSizeGroupSizes != null && popSizeGroupSizes.getDimension() != nrGroups) {
             throw new IllegalArgumentException("Number of groups should match the dimension of the effective population size.");
         }
 
         // More groups than coalescent events
-        if (popSizeGroupSizes.getDimension() > nrCoal) {
+        if (nrGroups > nrCoal) {
             throw new IllegalArgumentException("There are more groups than coalescent events in the tree.");
         }
 
@@ -140,10 +262,23 @@ public class BSP extends TreeDistribution {
         cumulativePopSizeGroupSizes = new int[nrGroups];
         //storedCumulativepopSizeGroupSizes = new int[nrGroups];
         popSizeGroupTimes = new double[nrGroups];
+        if (popSizeChangeTimes != null) {
+            initChangeTimeArrays();
+        }
         updateArrays();
 
         // popSizeGroupSizes needs to add up to coalescent events
-        if (cumulativePopSizeGroupSizes[nrGroups - 1] != nrCoal) {
+        // (fewer events in the group sizes than in the tree, e.g. when tips were added since the previous run: extend the groups if extendGroupSizes)
+        if (popSizeChangeTimes == null && cumulativePopSizeGroupSizes[nrGroups - 1] < nrCoal && extendGroupSizesInput.get()) {
+            Log.warning.println("WARNING: The sum of the initial group sizes is smaller than the number of coalescent " +
+                                "events in the tree. Adding the extra events to the smallest groups");
+
+            popSizeGroupSizes.assignFromWithoutID(getExtendedGroupSizes(popSizeGroupSizes, nrCoal));
+
+            // Recalculate cumulative group sizes, because group sizes have been changed
+            updateArrays();
+        } else
+        if (popSizeChangeTimes == null && cumulativePopSizeGroupSizes[nrGroups - 1] != nrCoal) {
             Log.warning.println("WARNING: The sum of the initial group sizes does not match the number of coalescent " +
                                 "events in the tree. Initializing to equal group sizes (robust design)");
 
@@ -154,9 +289,26 @@ public class BSP extends TreeDistribution {
             updateArrays();
         }
 
+        // Change times need to be increasing, before the tMRCA and respect minWidth
+        if (popSizeChangeTimes != null) {
+            initChangeTimes();
+        }
+
+        adjustGroupWidths();
+
+        // System.out.println(this.toString());
+
+    }
+
+    /**
+     * Redistribute group sizes until all groups are at least minWidth wide on the current tree
+     * (at most numInitializationAttempts times, does nothing if change times are estimated)
+     */
+    protected void adjustGroupWidths() {
+
         int i = 0;
         int numInitializationAttemps = numInitializationAttemptsInput.get();
-        while (!checkGroupWidths(popSizeGroupTimes, minWidth)) {
+        while (popSizeChangeTimes == null && !checkGroupWidths(popSizeGroupTimes, minWidth)) {
             if (i == 0) {
                 Log.warning.println("WARNING: Minimum effective population group width is shorter than minWidth ("+ minWidth + ")\n"
                         + "Attempting to adjust...");
@@ -172,61 +324,157 @@ public class BSP extends TreeDistribution {
             updateArrays();
             i++;
         }
-
-        // System.out.println(this.toString());
-
     }
 
+
     /**
      * Updates the arrays used in likelihood calculation and other methods
      */
     protected void updateArrays() {
 
-        // Get coalescent times (not necessary for likelihood computation)
-        double [] coalescentTimes = intervals.getCoalescentTimes(null);
+        if (counters != null) {
+            counters.arraysUpdated(popSizeChangeTimes == null || !eventsUpdated);
+        }
+        if (recorder != null) {
+            recorder.begin(UPDATE_ARRAYS);
+        }
+
+        if (popSizeChangeTimes != null) {
+            int groupsUpdated = updateChangeTimes();
+            System.arraycopy(changeTimeCoalescentCount, 0, cumulativePopSizeGroupSizes, 0, cumulativePopSizeGroupSizes.length);
+
+            arraysUpdated = true;
+            if (recorder != null) {
+                recorder.end(UPDATE_ARRAYS, intervals.getIntervalCount(), groupsUpdated, recorderOperator);
+            }
+            return;
+        }
+
+        // Sorted and batched events (only recalculated if the tree changed)
+        updateEventsIfChanged();
 
         // Get cumulative group sizes and times
-        cumulativePopSizeGroupSizes[0] = popSizeGroupSizes.getValue(0);
-        popSizeGroupTimes[0]           = coalescentTimes[cumulativePopSizeGroupSizes[0]-1];
-        for (int i = 1; i < cumulativePopSizeGroupSizes.length; i++) {
-            cumulativePopSizeGroupSizes[i] = cumulativePopSizeGroupSizes[i-1] + popSizeGroupSizes.getValue(i);
-            popSizeGroupTimes[i]           = coalescentTimes[cumulativePopSizeGroupSizes[i]-1];
+        for (int i = 0; i < cumulativePopSizeGroupSizes.length; i++) {
+            cumulativePopSizeGroupSizes[i] = (i > 0 ? cumulativePopSizeGroupSizes[i-1] : 0) + popSizeGroupSizes.getNativeValue(i);
+            popSizeGroupTimes[i]           = events.getCoalescentTime(cumulativePopSizeGroupSizes[i]-1);
         }
 
         arraysUpdated = true;
+        if (recorder != null) {
+            recorder.end(UPDATE_ARRAYS, intervals.getIntervalCount(), cumulativePopSizeGroupSizes.length, recorderOperator);
+        }
     }
 
     @Override
     public double calculateLogP() {
 
+        if (pendingLogP != null) {
+            return joinLogP();
+        }
+
+        return calculateLogPNow();
+    }
+
+
+    /**
+     * Calculates the log-likelihood on the current thread (with performance counters and Flight Recorder events)
+     *
+     * @return
+     */
+    protected double calculateLogPNow() {
+
+        double lk;
+
+        if (counters == null && recorder == null) {
+            lk = calculateSkylineLogP();
+        } else {
+            if (recorder != null) {
+                recorder.begin(CALCULATE_LOGP);
+            }
+
+            long start = System.nanoTime();
+            lk = calculateSkylineLogP();
+
+            if (counters != null) {
+                counters.logPCalculated(System.nanoTime() - start);
+            }
+            if (recorder != null) {
+                recorder.end(CALCULATE_LOGP, intervals.getIntervalCount(), getGroupCount(), recorderOperator);
+            }
+        }
+
+        if (validating && isValidationDue()) {
+            lk = validate(lk);
+        }
+
+        return lk;
+    }
+
+
+    /**
+     * Calculates the log-likelihood of the skyline (called by calculateLogP())
+     *
+     * @return
+     */
+    protected double calculateSkylineLogP() {
+
         int    groupIndex = 0,
-               coalIndex  = 0;
-        double currentPopSize,
-               currentTime = 0;
+               coalIndex  = 0,
+               first, count, n;
+        double currentPopSize, width;
+        IntervalType type;
+
+        // Groups changed without requiresRecalculation() being called
+        if (arraysUpdated && groupsDirty()) {
+            invalidateArrays();
+        }
 
         // Update arrays
         if (!arraysUpdated) {
             updateArrays();
 
-            if (!checkGroupWidths(popSizeGroupTimes, minWidth)) {
+            if (!(checkChangeTimes() && checkGroupWidths(popSizeGroupTimes, minWidth))) {
+                if (counters != null) {
+                    counters.minWidthRejected();
+                }
                 return Double.NEGATIVE_INFINITY;
             }
+        } else {
+            // Tree and groups did not change
+            logP = calculateParameterLogP();
+            return logP;
         }
 
-        // Get likelihood for each segment
-        logP = 0.0;
-        for (int i = 0; i < intervals.getIntervalCount(); i++) {
-
-            currentPopSize = popSizes.getArrayValue(groupIndex);
-            //System.out.println(currentPopSize +"\t"+ getPopSize(currentTime + (intervals.getInterval(i)/2)));
-            //currentTime = intervals.getIntervalTime(i);
-
-            logP += calculateIntervalLikelihood(currentPopSize, intervals.getInterval(i), intervals.getLineageCount(i), intervals.getIntervalType(i));
+        // Estimated change times
+        if (popSizeChangeTimes != null) {
+            logP = calculateChangeTimeLogP();
+            return logP;
+        }
 
-            if (intervals.getIntervalType(i) == COALESCENT) {
-                coalIndex++;
-                if (coalIndex >= cumulativePopSizeGroupSizes[groupIndex])
-                    groupIndex++;
+        // Get likelihood for each batch of tied events (split at group boundaries)
+        logP = 0.0;
+        for (int b = 0; b < events.getBatchCount(); b++) {
+
+            first = events.getBatchStart(b);
+            count = events.getBatchSize(b);
+            type  = events.getEventType(first);
+            width = events.getWidth(first);
+
+            while (count > 0) {
+                n = type == COALESCENT ? Math.max(1, Math.min(count, cumulativePopSizeGroupSizes[groupIndex] - coalIndex)) : count;
+
+                // First event carries the width of the interval, the other n-1 events are at zero width
+                currentPopSize = popSizes.getArrayValue(groupIndex);
+                logP += calculateIntervalLikelihood(currentPopSize, width, events.getLineageCount(first), type) +
+                        (n-1)*calculateIntervalLikelihood(currentPopSize, 0.0, events.getLineageCount(first), type);
+
+                width  = 0.0;
+                count -= n;
+                if (type == COALESCENT) {
+                    coalIndex += n;
+                    if (coalIndex >= cumulativePopSizeGroupSizes[groupIndex])
+                        groupIndex++;
+                }
             }
         }
 
@@ -265,6 +513,259 @@ public class BSP extends TreeDistribution {
         return lk;
     }
 
+
+    /**
+     * Calculates the log-likelihood when change times are estimated, from the statistics at the end of each group
+     *
+     * For group j, with constant population size N_j, the log-likelihood is -A_j/N_j - c_j*log(N_j), where A_j is
+     * the integral of (k choose 2) over the group and c_j the number of coalescent events in the group
+     *
+     * @return
+     */
+    protected double calculateChangeTimeLogP() {
+
+        double popSize,
+               lk = 0.0;
+
+        for (int j = 0; j < popSizeGroupTimes.length; j++) {
+            popSize = popSizes.getArrayValue(j);
+
+            lk += -(changeTimeLineageIntegral[j] - (j > 0 ? changeTimeLineageIntegral[j-1] : 0.0))/popSize
+                  -(changeTimeCoalescentCount[j] - (j > 0 ? changeTimeCoalescentCount[j-1] : 0))*Math.log(popSize);
+        }
+
+        return lk;
+    }
+
+    /*****************************************************/
+    /* Sufficient statistics (for fixed tree and groups) */
+    /*****************************************************/
+
+    /**
+     * Get the sufficient statistics of the likelihood for the current tree and groups
+     * (the likelihood for any values of the skyline parameters can then be calculated in O(groups))
+     *
+     * @param stats object to store the statistics in, a new object is created if null or of the wrong dimension
+     * @return stats
+     */
+    public SkylineStatistics getStatistics(SkylineStatistics stats) {
+
+        if (stats == null || stats.getPopSizeGroupCount() != getPopSizeDimension() ||
+                             stats.getSamplingIntensityGroupCount() != getSamplingIntensityGroupCount()) {
+            stats = new SkylineStatistics(getPopSizeDimension(), getSamplingIntensityGroupCount());
+        }
+
+        if (!arraysUpdated) {
+            updateArrays();
+        }
+        stats.reset();
+        calculateStatistics(stats);
+
+        return stats;
+    }
+
+
+    /**
+     * Calculate the log-likelihood from the sufficient statistics, when only the skyline parameters changed since the
+     * arrays were last updated (the statistics are only calculated once for every tree and groups)
+     *
+     * @return
+     */
+    protected double calculateParameterLogP() {
+
+        if (parameterValues == null) {
+            parameterValues = new double[getPopSizeDimension() + getSamplingIntensityGroupCount()];
+        }
+
+        getParameterValues(parameterValues);
+        return getCurrentStatistics().calculateLogLikelihood(parameterValues, null);
+    }
+
+
+    /**
+     * @return sufficient statistics for the current tree and groups (only calculated once for every tree and groups,
+     *         shared with SkylineMarkovChainDistribution)
+     */
+    protected SkylineStatistics getCurrentStatistics() {
+
+        if (!statisticsKnown) {
+            statistics = getStatistics(statistics);
+            statisticsKnown = true;
+        }
+        return statistics;
+    }
+
+
+    /**
+     * @return true if only the skyline parameters changed since the arrays were last updated
+     */
+    protected boolean onlyParametersChanged() {
+        return arraysUpdated && !intervals.isDirtyCalculation() && !groupsDirty();
+    }
+
+
+    /**
+     * Set the log-likelihood when it is calculated by another distribution (SkylineMarkovChainDistribution)
+     *
+     * @param logP
+     */
+    protected void setCurrentLogP(double logP) {
+        this.logP = logP;
+    }
+
+
+    /**
+     * @param values array to store [popSizes, samplingIntensity] in
+     */
+    protected void getParameterValues(double [] values) {
+        for (int j = 0; j < popSizes.getDimension(); j++) {
+            values[j] = popSizes.getArrayValue(j);
+        }
+    }
+
+
+    /**
+     * @return number of sampling intensity groups (0 for BSP)
+     */
+    protected int getSamplingIntensityGroupCount() {
+        return 0;
+    }
+
+
+    /**
+     * Fill in the sufficient statistics (needs arrays to be up to date)
+     *
+     * @param stats
+     */
+    protected void calculateStatistics(SkylineStatistics stats) {
+
+        if (popSizeChangeTimes != null) {
+            for (int j = 0; j < popSizeGroupTimes.length; j++) {
+                stats.lineageIntegral[j] = changeTimeLineageIntegral[j] - (j > 0 ? changeTimeLineageIntegral[j-1] : 0.0);
+                stats.coalescentCount[j] = changeTimeCoalescentCount[j] - (j > 0 ? changeTimeCoalescentCount[j-1] : 0);
+            }
+        } else {
+            int groupIndex = 0,
+                coalIndex  = 0;
+
+            for (int i = 0; i < intervals.getIntervalCount(); i++) {
+                stats.lineageIntegral[groupIndex] += Binomial.choose2(intervals.getLineageCount(i)) * intervals.getInterval(i);
+
+                if (intervals.getIntervalType(i) == COALESCENT) {
+                    stats.coalescentCount[groupIndex]++;
+                    coalIndex++;
+                    if (coalIndex >= cumulativePopSizeGroupSizes[groupIndex])
+                        groupIndex++;
+                }
+            }
+        }
+    }
+
+
+    /**************************************************/
+    /* Gradient with respect to internal node heights */
+    /**************************************************/
+
+    /**
+     * Gradient of the log-likelihood with respect to the heights of internal nodes
+     *
+     * Every interval contributes -rate*width to the log-likelihood, where rate is minus the derivative of
+     * calculateIntervalLikelihood() with respect to the width. The coalescent event at the end of interval i changes
+     * the widths of intervals i and i+1, so the derivative with respect to its height is
+     * rate_{i+1}(start) - rate_i(end).
+     *
+     * Tied events (including nodes of binarized polytomies) are separate events in TreeIntervals with zero-width
+     * intervals in between, so the derivative is the one-sided derivative that keeps the order of events in
+     * TreeIntervals. Group assignments are kept fixed (the likelihood is not differentiable when an event crosses a
+     * change time).
+     *
+     * @param gradient array to store the gradient in (indexed by node number), a new array is created if null or
+     *                 not the same length as the number of nodes in the tree
+     * @return gradient (0 for tips)
+     */
+    public double [] getNodeHeightGradient(double [] gradient) {
+
+        int    n         = intervals.getIntervalCount(),
+               nodeCount = intervals.treeInput.get().getNodeCount();
+        double g;
+
+        if (gradient == null || gradient.length != nodeCount) {
+            gradient = new double[nodeCount];
+        } else {
+            Arrays.fill(gradient, 0.0);
+        }
+
+        if (intervalRateAtStart == null || intervalRateAtStart.length != n) {
+            intervalRateAtStart = new double[n];
+            intervalRateAtEnd   = new double[n];
+        }
+
+        if (!arraysUpdated) {
+            updateArrays();
+        }
+        calculateIntervalRates(intervalRateAtStart, intervalRateAtEnd);
+
+        for (int i = 0; i < n; i++) {
+            if (intervals.getIntervalType(i) == COALESCENT) {
+                g = (i+1 < n ? intervalRateAtStart[i+1] : 0.0) - intervalRateAtEnd[i];
+                for (Node node : intervals.getLineagesAdded(i)) {
+                    gradient[node.getNr()] += g;
+                }
+            }
+        }
+
+        return gradient;
+    }
+
+
+    /**
+     * Rate of each interval (minus the derivative of the interval likelihood with respect to the width) at the start
+     * and the end of the interval. These are only different if a change time falls on the event at the start of the
+     * interval.
+     *
+     * @param rateAtStart
+     * @param rateAtEnd
+     */
+    protected void calculateIntervalRates(double [] rateAtStart, double [] rateAtEnd) {
+
+        int    groupIndex = 0,
+               coalIndex  = 0;
+        double start = 0.0,
+               end;
+
+        if (popSizeChangeTimes != null) {
+            // Groups defined by time
+            int last       = popSizeGroupTimes.length-1,
+                startGroup = 0,
+                endGroup   = 0;
+
+            for (int i = 0; i < intervals.getIntervalCount(); i++) {
+                end = start + intervals.getInterval(i);
+
+                while (startGroup < last && popSizeGroupTimes[startGroup] <= start) startGroup++;
+                while (endGroup   < last && popSizeGroupTimes[endGroup]   <  end)   endGroup++;
+
+                rateAtStart[i] = -calculateIntervalLikelihood(popSizes.getArrayValue(startGroup), 1.0, intervals.getLineageCount(i), NOTHING);
+                rateAtEnd[i]   = -calculateIntervalLikelihood(popSizes.getArrayValue(endGroup),   1.0, intervals.getLineageCount(i), NOTHING);
+
+                start = end;
+            }
+        } else {
+            // Groups defined by numbers of coalescent events (same as calculateLogP())
+            for (int i = 0; i < intervals.getIntervalCount(); i++) {
+
+                rateAtStart[i] = rateAtEnd[i] =
+                        -calculateIntervalLikelihood(popSizes.getArrayValue(groupIndex), 1.0, intervals.getLineageCount(i), NOTHING);
+
+                if (intervals.getIntervalType(i) == COALESCENT) {
+                    coalIndex++;
+                    if (coalIndex >= cumulativePopSizeGroupSizes[groupIndex])
+                        groupIndex++;
+                }
+            }
+        }
+    }
+
     @Override
     public String toString() {
 
@@ -275,9 +776,10 @@ public class BSP extends TreeDistribution {
                         "------------------------------------------------------------------------------\n",
                         "group", "size", "start", "end", "width", "popSize");
 
-        for (int i = 0; i < popSizeGroupSizes.getDimension(); i++) {
+        for (int i = 0; i < popSizeGroupTimes.length; i++) {
             outstr += String.format("%10s  %10s | %10.5f  %10.5f  %10.5f | %10.5f\n",
-                                    i+1, popSizeGroupSizes.getValue(i), start, popSizeGroupTimes[i],
+                                    i+1, cumulativePopSizeGroupSizes[i] - (i > 0 ? cumulativePopSizeGroupSizes[i-1] : 0),
+                                    start, popSizeGroupTimes[i],
                                     popSizeGroupTimes[i]-start, popSizes.getValue(i));
             start = popSizeGroupTimes[i];
         }
@@ -331,7 +833,288 @@ public class BSP extends TreeDistribution {
             groupIndex = -groupIndex - 1;
         }
 
-        return popSizes.getValue(Math.min(groupIndex, popSizes.getDimension()-1));
+        return popSizes.getArrayValue(Math.min(groupIndex, popSizes.getDimension()-1));
+    }
+
+
+    /**
+     * Enable performance counters (disabled if null)
+     *
+     * @param counters
+     */
+    public void setCounters(SkylineCounters counters) {
+        this.counters = counters;
+    }
+
+    public SkylineCounters getCounters() {
+        return counters;
+    }
+
+    /**
+     * Enable Flight Recorder events (disabled if null, set at initialization if -Dbsp.jfr=true)
+     *
+     * @param recorder
+     */
+    public void setRecorder(SkylineRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public SkylineRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * @return total number of population size and sampling intensity groups
+     */
+    protected int getGroupCount() {
+        return popSizeGroupTimes.length + getSamplingIntensityGroupCount();
+    }
+
+
+    /**************/
+    /* Async mode */
+    /**************/
+
+    /**
+     * Async mode recalculates the tree intervals on the worker thread, so they should not be shared
+     */
+    protected void checkAsyncIntervals() {
+
+        if (!async) {
+            return;
+        }
+
+        if (intervals instanceof SkylineTreeIntervals) {
+            throw new IllegalArgumentException("Async mode cannot be used with SkylineTreeIntervals, because their events are " +
+                                               "shared with other distributions.");
+        }
+        for (BEASTInterface output : intervals.getOutputs()) {
+            if (output != this) {
+                throw new IllegalArgumentException("Async mode needs tree intervals that are not used by other objects (" +
+                                                   output.getID() + " also uses the tree intervals of " + getID() + ").");
+            }
+        }
+    }
+
+
+    /**
+     * Check if nothing is evaluated before the skyline in the posterior (the outermost CompoundDistribution), so the
+     * calculation on the worker cannot overlap with anything
+     *
+     * @return false if the skyline is not in a CompoundDistribution
+     */
+    protected boolean isEvaluatedFirst() {
+
+        BEASTInterface       child  = this;
+        CompoundDistribution parent = getCompoundDistribution(child);
+        int                  index  = -1;
+
+        while (parent != null) {
+            index  = parent.pDistributions.get().indexOf(child);
+            child  = parent;
+            parent = getCompoundDistribution(parent);
+        }
+
+        return index == 0;
+    }
+
+
+    private static CompoundDistribution getCompoundDistribution(BEASTInterface object) {
+
+        for (BEASTInterface output : object.getOutputs()) {
+            if (output instanceof CompoundDistribution) {
+                return (CompoundDistribution) output;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Start calculating the likelihood on the worker thread (the intervals and the order of the posterior are checked
+     * again the first time, when all other objects have been initialised)
+     */
+    protected void startLogP() {
+
+        if (!asyncChecked) {
+            asyncChecked = true;
+            checkAsyncIntervals();
+            if (isEvaluatedFirst()) {
+                Log.warning.println("WARNING: " + getID() + " is calculated asynchronously, but is evaluated before every other " +
+                                    "distribution in the posterior, so the calculation cannot overlap with anything. " +
+                                    "Put the likelihood before the prior in the posterior.");
+            }
+        }
+
+        if (worker == null) {
+            worker = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bsp-skyline-worker-" + getID());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        pendingLogP = worker.submit(this::calculateLogPNow);
+    }
+
+
+    /**
+     * Wait for the likelihood calculation on the worker thread to finish
+     *
+     * @return log-likelihood
+     */
+    protected double joinLogP() {
+
+        Future<Double> pending = pendingLogP;
+        pendingLogP = null;
+
+        try {
+            logP = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the skyline likelihood.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+
+        return logP;
+    }
+
+
+    /**
+     * Wait for a calculation on the worker thread to finish before changing the state of the skyline (if any)
+     */
+    protected void waitForLogP() {
+        if (pendingLogP != null) {
+            joinLogP();
+        }
+    }
+
+
+    /*********************/
+    /* Shadow validation */
+    /*********************/
+
+    /**
+     * Check the validation inputs (validation is switched off if validateEvery and validateProbability are 0)
+     */
+    protected void initValidation() {
+
+        if (validateEveryInput.get() < 0 || validateProbabilityInput.get() < 0.0 || validateProbabilityInput.get() > 1.0) {
+            throw new IllegalArgumentException("validateEvery should not be negative and validateProbability should be between 0 and 1.");
+        }
+
+        validating = validateEveryInput.get() > 0 || validateProbabilityInput.get() > 0.0;
+        if (validating) {
+            // Separate random numbers, so validation does not change the chain
+            validationRandom = new Random(Randomizer.getSeed());
+        }
+    }
+
+
+    /**
+     * @return true if this evaluation should be compared to a calculation from scratch
+     */
+    protected boolean isValidationDue() {
+
+        evaluationCount++;
+        return (validateEveryInput.get() > 0 && evaluationCount % validateEveryInput.get() == 0) ||
+               (validateProbabilityInput.get() > 0.0 && validationRandom.nextDouble() < validateProbabilityInput.get());
+    }
+
+
+    /**
+     * Recalculate the likelihood and arrays without any cached values and compare them to the cached calculation.
+     * The first divergence is reported with the operator of the proposal (if the MCMC uses SkylineOperatorSchedule)
+     * and the recalculated values are kept.
+     *
+     * @param cachedLogP log-likelihood calculated with the cached values
+     * @return recalculated log-likelihood
+     */
+    protected double validate(double cachedLogP) {
+
+        Map<String, double []> cached = new LinkedHashMap<>(),
+                               recalculated = new LinkedHashMap<>();
+        getValidatedValues(cached);
+
+        // Counters and Flight Recorder events should only see the real calculations
+        SkylineCounters savedCounters = counters;
+        SkylineRecorder savedRecorder = recorder;
+        counters = null;
+        recorder = null;
+
+        clearCaches();
+        double lk = calculateSkylineLogP();
+        getValidatedValues(recalculated);
+
+        counters = savedCounters;
+        recorder = savedRecorder;
+
+        String divergence = null;
+        if (!isClose(cachedLogP, lk)) {
+            divergence = "logP is " + cachedLogP + " (recalculated " + lk + ")";
+        }
+        for (Map.Entry<String, double []> entry : cached.entrySet()) {
+            double [] values = entry.getValue(),
+                      expected = recalculated.get(entry.getKey());
+            for (int i = 0; i < values.length && divergence == null; i++) {
+                if (!isClose(values[i], expected[i])) {
+                    divergence = entry.getKey() + "[" + i + "] is " + values[i] + " (recalculated " + expected[i] + ")";
+                }
+            }
+        }
+
+        if (divergence != null) {
+            validationFailures++;
+            if (validationFailures == 1) {
+                Log.warning.println("WARNING: Shadow validation of " + getID() + " failed at evaluation " + evaluationCount +
+                                    " after " + (validationOperator != null ? validationOperator.getName() : "an unknown operator " +
+                                    "(use bsp.util.SkylineOperatorSchedule to record operators)") + ": " + divergence);
+            }
+        }
+
+        return lk;
+    }
+
+
+    private boolean isClose(double a, double b) {
+        return a == b || Math.abs(a - b) <= validateToleranceInput.get()*Math.max(1.0, Math.max(Math.abs(a), Math.abs(b)));
+    }
+
+
+    /**
+     * Forget all cached values, so the next calculation starts from the tree intervals and parameters
+     */
+    protected void clearCaches() {
+        invalidateArrays();
+        eventsUpdated      = false;
+        changeTimesUpdated = false;
+    }
+
+
+    /**
+     * Cached values compared by shadow validation
+     *
+     * @param values copies of the values by name
+     */
+    protected void getValidatedValues(Map<String, double []> values) {
+
+        double [] cumulative = new double[cumulativePopSizeGroupSizes.length];
+        for (int i = 0; i < cumulative.length; i++) {
+            cumulative[i] = cumulativePopSizeGroupSizes[i];
+        }
+        values.put("popSizeGroupTimes", Arrays.copyOf(popSizeGroupTimes, popSizeGroupTimes.length));
+        values.put("cumulativePopSizeGroupSizes", cumulative);
+    }
+
+
+    /**
+     * @return number of evaluations where the cached values did not match the values calculated from scratch
+     */
+    public int getValidationFailures() {
+        return validationFailures;
     }
 
 
@@ -343,32 +1126,278 @@ public class BSP extends TreeDistribution {
     protected boolean requiresRecalculation() {
         //System.out.println("Dirty skyline");
 
-        arraysUpdated = false;
+        // The previous calculation may not have been collected (e.g. if the posterior was already -Infinity)
+        waitForLogP();
+
+        if (validating) {
+            validationOperator = SkylineOperatorSchedule.getCurrentOperator();
+        }
+        if (recorder != null) {
+            recorderOperator = SkylineOperatorSchedule.getCurrentOperator();
+        }
+
+        if (intervals.isDirtyCalculation()) {
+            eventsUpdated    = false;
+            intervalsChanged = true;
+        }
+        // Arrays (and statistics) only need to be updated if the tree or groups changed
+        if (intervals.isDirtyCalculation() || groupsDirty()) {
+            invalidateArrays();
+        }
+
+        // Only full calculations are worth sending to the worker
+        if (async && !arraysUpdated) {
+            startLogP();
+        }
         return true;
     }
 
+
+    /**
+     * The tree or groups changed, so the arrays and statistics need to be updated
+     */
+    protected void invalidateArrays() {
+        arraysUpdated   = false;
+        statisticsKnown = false;
+        groupsChanged   = true;
+    }
+
+
+    /**
+     * @return true if the group sizes or change times changed
+     */
+    protected boolean groupsDirty() {
+        return (popSizeGroupSizes  != null && popSizeGroupSizes.somethingIsDirty()) ||
+               (popSizeChangeTimes != null && popSizeChangeTimes.somethingIsDirty());
+    }
+
     @Override
     public void store() {
         //System.out.println("Store skyline");
 
-        arraysUpdated = false;
+        waitForLogP();
+        if (recorder != null) {
+            recorderOperator = SkylineOperatorSchedule.getCurrentOperator();
+            recorder.begin(STORE);
+        }
+
         //System.arraycopy(cumulativePopSizeGroupSizes, 0, storedCumulativepopSizeGroupSizes, 0, cumulativePopSizeGroupSizes.length);
+        if (popSizeChangeTimes != null) {
+            System.arraycopy(popSizeGroupTimes,         0, storedPopSizeGroupTimes,         0, popSizeGroupTimes.length);
+            System.arraycopy(changeTimeLineageIntegral, 0, storedChangeTimeLineageIntegral, 0, popSizeGroupTimes.length);
+            System.arraycopy(changeTimeCoalescentCount, 0, storedChangeTimeCoalescentCount, 0, popSizeGroupTimes.length);
+            System.arraycopy(changeTimeSampleCount,     0, storedChangeTimeSampleCount,     0, popSizeGroupTimes.length);
+            storedChangeTimesUpdated = changeTimesUpdated;
+        }
+        intervalsChanged = false;
+        groupsChanged    = false;
+        if (counters != null) {
+            counters.stored();
+        }
         super.store();
+
+        if (recorder != null) {
+            recorder.end(STORE, intervals.getIntervalCount(), popSizeChangeTimes != null ? popSizeGroupTimes.length : 0, recorderOperator);
+        }
     }
 
     @Override
     /**
      * No real speed advantage to storing and restoring arrays instead of just always updating
+     * (except for the statistics at estimated change times, which are only looked up again when a time moves).
+     * Arrays are only updated again if the tree or groups changed since store().
      */
     public void restore() {
         //System.out.println("Restore skyline");
 
-        arraysUpdated = false;
+        waitForLogP();
+        if (recorder != null) {
+            recorder.begin(RESTORE);
+        }
+
+        if (groupsChanged) {
+            arraysUpdated   = false;
+            statisticsKnown = false;
+        }
+        if (popSizeChangeTimes != null) {
+            double [] tmp;
+            tmp = popSizeGroupTimes;         popSizeGroupTimes         = storedPopSizeGroupTimes;         storedPopSizeGroupTimes         = tmp;
+            tmp = changeTimeLineageIntegral; changeTimeLineageIntegral = storedChangeTimeLineageIntegral; storedChangeTimeLineageIntegral = tmp;
+
+            int [] itmp;
+            itmp = changeTimeCoalescentCount; changeTimeCoalescentCount = storedChangeTimeCoalescentCount; storedChangeTimeCoalescentCount = itmp;
+            itmp = changeTimeSampleCount;     changeTimeSampleCount     = storedChangeTimeSampleCount;     storedChangeTimeSampleCount     = itmp;
+
+            changeTimesUpdated = storedChangeTimesUpdated;
+        }
+        if (intervalsChanged) {
+            eventsUpdated = false;
+        }
+        if (counters != null) {
+            counters.restored();
+        }
+
         //int [] tmp = storedCumulativepopSizeGroupSizes;
         //storedCumulativepopSizeGroupSizes = cumulativePopSizeGroupSizes;
         //cumulativePopSizeGroupSizes = tmp;
 
         super.restore();
+
+        if (recorder != null) {
+            recorder.end(RESTORE, intervals.getIntervalCount(), popSizeChangeTimes != null ? popSizeGroupTimes.length : 0, recorderOperator);
+        }
+    }
+
+
+
+    /**************************************/
+    /* Methods for estimated change times */
+    /**************************************/
+
+    /**
+     * Allocate the arrays needed when change times are estimated
+     */
+    protected void initChangeTimeArrays() {
+
+        int nrGroups = popSizeGroupTimes.length;
+
+        if (popSizeChangeTimes.getDimension() != nrGroups-1) {
+            throw new IllegalArgumentException("The dimension of popSizeChangeTimes should be one less than the dimension of the effective population size.");
+        }
+
+        events = new SkylineEvents();
+        storedPopSizeGroupTimes         = new double[nrGroups];
+        changeTimeLineageIntegral       = new double[nrGroups];
+        storedChangeTimeLineageIntegral = new double[nrGroups];
+        changeTimeCoalescentCount       = new int[nrGroups];
+        storedChangeTimeCoalescentCount = new int[nrGroups];
+        changeTimeSampleCount           = new int[nrGroups];
+        storedChangeTimeSampleCount     = new int[nrGroups];
+    }
+
+
+    /**
+     * Reset the change times to equally spaced times between 0 and the tMRCA if they are not increasing, not before
+     * the tMRCA or closer than minWidth
+     */
+    protected void initChangeTimes() {
+
+        if (checkChangeTimes() && checkGroupWidths(popSizeGroupTimes, minWidth)) {
+            return;
+        }
+
+        Log.warning.println("WARNING: The initial population size change times are not increasing, not before the tMRCA "
+                          + "or closer than minWidth ("+ minWidth + "). Initializing to equally spaced change times.");
+
+        int    nrGroups = popSizeGroupTimes.length;
+        double tmrca    = events.getRootTime();
+        for (int j = 0; j < nrGroups-1; j++) {
+            popSizeChangeTimes.setValue(j, tmrca*(j+1)/nrGroups);
+        }
+        updateArrays();
+
+        if (!(checkChangeTimes() && checkGroupWidths(popSizeGroupTimes, minWidth))) {
+            throw new IllegalArgumentException("Equally spaced population size groups are shorter than minWidth (" + minWidth + ").\n"
+                                             + "Try decreasing the number of groups or the minimum group width.");
+        }
+    }
+
+
+    /**
+     * Updates the group times and the statistics at the end of each group (integral of (k choose 2) and numbers of
+     * coalescent and sampling events up to the change time) when change times are estimated.
+     *
+     * Only change times that moved are looked up again (binary search over the events), unless the tree changed.
+     *
+     * @return number of groups updated
+     */
+    protected int updateChangeTimes() {
+
+        int    i, last = popSizeGroupTimes.length-1,
+               updated = 0;
+        double t;
+
+        updateEventsIfChanged();
+
+        for (int j = 0; j < last; j++) {
+            t = popSizeChangeTimes.getArrayValue(j);
+            if (!changeTimesUpdated || t != popSizeGroupTimes[j]) {
+                i = events.getLastEventAtOrBefore(t);
+                popSizeGroupTimes[j]         = t;
+                changeTimeLineageIntegral[j] = events.getLineageIntegralAt(t);
+                changeTimeCoalescentCount[j] = events.getCoalescentCount(i);
+                changeTimeSampleCount[j]     = events.getSampleCount(i);
+                updated++;
+            }
+        }
+
+        // Last group ends at the tMRCA
+        if (!changeTimesUpdated) {
+            popSizeGroupTimes[last]         = events.getRootTime();
+            changeTimeLineageIntegral[last] = events.getLineageIntegral(events.getEventCount()-1);
+            changeTimeCoalescentCount[last] = events.getCoalescentCount();
+            changeTimeSampleCount[last]     = events.getSampleCount();
+            updated++;
+        }
+
+        changeTimesUpdated = true;
+        return updated;
+    }
+
+
+    /**
+     * Recalculate the sorted events if the tree changed since they were last calculated
+     * (the statistics at the change times then need to be looked up again)
+     */
+    protected void updateEventsIfChanged() {
+
+        if (!eventsUpdated) {
+            updateEvents();
+            eventsUpdated      = true;
+            changeTimesUpdated = false;
+        }
+    }
+
+
+    /**
+     * Recalculate the sorted events of the tree, or get them from the intervals if they are SkylineTreeIntervals
+     * (calculated once per tree state and shared with other distributions on the same tree)
+     *
+     * @return
+     */
+    protected SkylineEvents updateEvents() {
+
+        if (intervals instanceof SkylineTreeIntervals) {
+            events = ((SkylineTreeIntervals) intervals).getEvents();
+        } else {
+            if (events == null) {
+                events = new SkylineEvents();
+            }
+            events.update(intervals);
+        }
+
+        return events;
+    }
+
+
+    /**
+     * Check that change times are strictly increasing and before the tMRCA
+     * (always true if groups are defined by numbers of events)
+     *
+     * @return
+     */
+    protected boolean checkChangeTimes() {
+
+        if (popSizeChangeTimes != null) {
+            double prev = 0.0;
+            for (int j = 0; j < popSizeGroupTimes.length; j++) {
+                if (popSizeGroupTimes[j] <= prev) {
+                    return false;
+                }
+                prev = popSizeGroupTimes[j];
+            }
+        }
+        return true;
     }
 
 
@@ -378,6 +1407,89 @@ public class BSP extends TreeDistribution {
     /*****************************************************/
 
 
+    public double getMinWidth() {
+        return minWidth;
+    }
+
+
+    /**
+     * @return popSizeGroupSizes (null if change times are estimated)
+     */
+    public IntegerParameter getPopSizeGroupSizes() {
+        return popSizeGroupSizes;
+    }
+
+
+    /**
+     * Log-likelihood of population size group j if it contained the events between cumulative group sizes start
+     * (exclusive) and end (inclusive), up to terms that do not depend on the population size groups. The likelihood
+     * is a sum over the groups, so moving the boundary between two groups only changes the terms of those two groups
+     * (used for informed proposals on popSizeGroupSizes, see SkylineInformedGroupSizeOperator).
+     *
+     * @param j     population size group
+     * @param start cumulative group size at the end of group j-1 (0 for the first group)
+     * @param end   cumulative group size at the end of group j
+     * @return -Infinity if the group would be shorter than minWidth
+     */
+    public double getGroupLogP(int j, int start, int end) {
+
+        if (!arraysUpdated) {
+            updateArrays();
+        }
+
+        int first = getGroupEndEvent(start),
+            last  = getGroupEndEvent(end);
+        if (events.getEventTime(last) - (first >= 0 ? events.getEventTime(first) : 0.0) < minWidth) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        return calculateGroupLogP(popSizes.getArrayValue(j), first, last);
+    }
+
+
+    /**
+     * @param c cumulative group size
+     * @return index of the event at the end of a group with cumulative size c (-1 if c = 0)
+     */
+    protected int getGroupEndEvent(int c) {
+        return c > 0 ? events.getCoalescentIndex(c-1) : -1;
+    }
+
+
+    /**
+     * Log-likelihood of the intervals after event first up to event last with constant population size
+     * (-A/N - c*log(N), see calculateChangeTimeLogP())
+     *
+     * @param popSize
+     * @param first
+     * @param last
+     * @return
+     */
+    protected double calculateGroupLogP(double popSize, int first, int last) {
+
+        return -(events.getLineageIntegral(last) - events.getLineageIntegral(first))/popSize
+               -(events.getCoalescentCount(last) - events.getCoalescentCount(first))*Math.log(popSize);
+    }
+
+
+    /**
+     * Get the times of the events that make up the groups of groupSizes from the current tree
+     * (a group with cumulative size c ends at times[c-1])
+     *
+     * @param groupSizes popSizeGroupSizes
+     * @param times      array to reuse (allocated if null)
+     * @return
+     */
+    public double [] getGroupEventTimes(IntegerParameter groupSizes, double [] times) {
+
+        if (groupSizes == null || groupSizes != popSizeGroupSizes) {
+            throw new IllegalArgumentException("Group sizes should be the popSizeGroupSizes of the skyline.");
+        }
+
+        return intervals.getCoalescentTimes(times);
+    }
+
+
     /**
      * Check that no group spans less than minWidth time
      *
@@ -451,6 +1563,47 @@ public class BSP extends TreeDistribution {
     }
 
 
+    /**
+     * Extend group sizes to a larger number of events (e.g. after adding tips to the tree of a previous run)
+     *
+     * The extra events are added one at a time to the smallest group (the most recent if there is a tie), so group
+     * sizes from the robust design are the same as the robust design for the new number of events and other group
+     * sizes keep their shape. The upper bound is raised if necessary and the lower bound is at least 1.
+     *
+     * @param groupSizes
+     * @param events total number of events (at least the sum of groupSizes)
+     * @return
+     */
+    protected IntegerParameter getExtendedGroupSizes(IntegerParameter groupSizes, int events) {
+
+        int groups = groupSizes.getDimension(),
+            total  = 0,
+            upper  = groupSizes.getUpper();
+
+        Integer[] values = new Integer[groups];
+        for (int i = 0; i < groups; i++) {
+            values[i] = groupSizes.getValue(i);
+            total    += values[i];
+        }
+
+        for (; total < events; total++) {
+            int smallest = 0;
+            for (int i = 1; i < groups; i++) {
+                if (values[i] < values[smallest]) {
+                    smallest = i;
+                }
+            }
+            values[smallest]++;
+            upper = Math.max(upper, values[smallest]);
+        }
+
+        IntegerParameter parameter = new IntegerParameter(values);
+        parameter.setBounds(Math.max(1, groupSizes.getLower()), upper);
+
+        return(parameter);
+    }
+
+
     /**
      * Randomly redistribute group sizes
      * (works similar to a DeltaExchangeOperator)
@@ -533,6 +1686,10 @@ public class BSP extends TreeDistribution {
 
         int dim1, dim2;
 
+        if (recorder != null) {
+            recorder.begin(REDISTRIBUTE_GROUPS);
+        }
+
         // Get group widths
         double[] widths = new double[groupTimes.length];
         double prev = 0.0;
@@ -581,6 +1738,10 @@ public class BSP extends TreeDistribution {
                 groupSizes.setValue(j, sizes[j]);
             }
         }
+
+        if (recorder != null) {
+            recorder.end(REDISTRIBUTE_GROUPS, intervals.getIntervalCount(), deltaMax > 0 ? 2 : 0, recorderOperator);
+        }
     }
 
 
@@ -0,0 +1,416 @@
+package bsp.distributions;
+
+import beast.evolution.tree.coalescent.IntervalList;
+import beast.evolution.tree.coalescent.IntervalType;
+
+import java.util.Arrays;
+
+import static beast.evolution.tree.coalescent.IntervalType.COALESCENT;
+import static beast.evolution.tree.coalescent.IntervalType.SAMPLE;
+
+/***********************************************************
+ * Skyline likelihood evaluated from primitive arrays.     *
+ ***********************************************************
+ *
+ * - Evaluates the BSP (without samplingIntensity) or BESP (with samplingIntensity) likelihood without BEAST inputs,
+ *   parameters or tree intervals, e.g. for simulation studies where building the BEAST objects for every dataset
+ *   costs more than the likelihood itself
+ * - Events are given as times (distance from the most recent tip, non-decreasing) and types (SAMPLE or COALESCENT),
+ *   in the same order as TreeIntervals (the first event is the most recent sample at time 0)
+ * - Group sizes are as in BSP (numbers of coalescent events) or BESP (numbers of coalescent and sampling events for
+ *   popSizes, numbers of sampling events for samplingIntensity)
+ * - The likelihood uses the same interval likelihoods as BSP and BESP (calculateIntervalLikelihood()) and returns
+ *   the same value as BSP/BESP on the same tree. Change times and N(t)/beta(t) follow the same conventions.
+ * - Immutable and therefore safe to share between threads. All arrays are copied, the log-likelihood is calculated
+ *   at construction and withParameters() reuses the events and groups for new parameter values.
+ * - calculateLogP() evaluates the same likelihood from arrays the caller reuses, without copying or checking them
+ *   (e.g. in an operator that evaluates the likelihood for every proposal)
+ *
+ */
+public final class SkylineEvaluator {
+
+    private final int coalescentCount,
+                      sampleCount;
+
+    private final double [] eventTimes;
+
+    private final IntervalType [] eventTypes;
+
+    private final int    [] cumulativePopSizeGroupSizes,
+                            cumulativeSamplingIntensityGroupSizes;
+
+    private final double [] popSizeGroupTimes,
+                            samplingIntensityGroupTimes,
+                            popSizes,
+                            samplingIntensity;
+
+    private final double lastSampleTime,
+                         logP;
+
+
+    /**
+     * BSP likelihood
+     *
+     * @param eventTimes        times of the events (distance from the most recent tip)
+     * @param eventTypes        SAMPLE or COALESCENT
+     * @param popSizeGroupSizes number of coalescent events in each population size group
+     * @param popSizes
+     */
+    public SkylineEvaluator(double [] eventTimes, IntervalType [] eventTypes, int [] popSizeGroupSizes, double [] popSizes) {
+        this(eventTimes, eventTypes, popSizeGroupSizes, popSizes, null, null);
+    }
+
+
+    /**
+     * BESP likelihood (BSP likelihood if samplingIntensityGroupSizes and samplingIntensity are null)
+     *
+     * @param eventTimes                  times of the events (distance from the most recent tip)
+     * @param eventTypes                  SAMPLE or COALESCENT
+     * @param popSizeGroupSizes           number of coalescent and sampling events in each population size group
+     * @param popSizes
+     * @param samplingIntensityGroupSizes number of sampling events in each sampling intensity group
+     * @param samplingIntensity
+     */
+    public SkylineEvaluator(double [] eventTimes, IntervalType [] eventTypes, int [] popSizeGroupSizes, double [] popSizes,
+                            int [] samplingIntensityGroupSizes, double [] samplingIntensity) {
+
+        int n = eventTimes.length;
+        if (eventTypes.length != n || n == 0) {
+            throw new IllegalArgumentException("Event times and types should have the same (non-zero) length.");
+        }
+        if ((samplingIntensityGroupSizes == null) != (samplingIntensity == null)) {
+            throw new IllegalArgumentException("Both or neither of samplingIntensityGroupSizes and samplingIntensity should be given.");
+        }
+
+        this.eventTimes = Arrays.copyOf(eventTimes, n);
+        this.eventTypes = Arrays.copyOf(eventTypes, n);
+
+        // Lineage counts (as in TreeIntervals)
+        int    coal = 0, samples = 0;
+        double prev = 0.0, last = 0.0;
+        for (int i = 0; i < n; i++) {
+            if (eventTimes[i] < prev) {
+                throw new IllegalArgumentException("Event times should be non-negative and non-decreasing.");
+            }
+            prev = eventTimes[i];
+
+            if (eventTypes[i] == SAMPLE) {
+                samples++;
+                last = eventTimes[i];
+            } else
+            if (eventTypes[i] == COALESCENT) {
+                if (samples - coal < 2) {
+                    throw new IllegalArgumentException("Coalescent event " + i + " has fewer than two lineages.");
+                }
+                coal++;
+            } else {
+                throw new IllegalArgumentException("Event types should be SAMPLE or COALESCENT.");
+            }
+        }
+        coalescentCount = coal;
+        sampleCount     = samples;
+        lastSampleTime  = last;
+
+        // Groups
+        if (samplingIntensity == null) {
+            cumulativePopSizeGroupSizes           = getCumulativeGroupSizes(popSizeGroupSizes, coalescentCount, "coalescent");
+            popSizeGroupTimes                     = getGroupTimes(cumulativePopSizeGroupSizes, COALESCENT);
+            cumulativeSamplingIntensityGroupSizes = null;
+            samplingIntensityGroupTimes           = null;
+        } else {
+            cumulativePopSizeGroupSizes           = getCumulativeGroupSizes(popSizeGroupSizes, n, "coalescent and sampling");
+            popSizeGroupTimes                     = getGroupTimes(cumulativePopSizeGroupSizes, null);
+            cumulativeSamplingIntensityGroupSizes = getCumulativeGroupSizes(samplingIntensityGroupSizes, sampleCount, "sampling");
+            samplingIntensityGroupTimes           = getGroupTimes(cumulativeSamplingIntensityGroupSizes, SAMPLE);
+        }
+
+        this.popSizes          = checkParameter(popSizes, cumulativePopSizeGroupSizes, "popSizes");
+        this.samplingIntensity = samplingIntensity == null ? null :
+                                 checkParameter(samplingIntensity, cumulativeSamplingIntensityGroupSizes, "samplingIntensity");
+
+        logP = calculateLogP(this.eventTimes, this.eventTypes, cumulativePopSizeGroupSizes, this.popSizes,
+                             cumulativeSamplingIntensityGroupSizes, this.samplingIntensity);
+    }
+
+
+    /**
+     * Same events and groups with new parameter values
+     */
+    private SkylineEvaluator(SkylineEvaluator other, double [] popSizes, double [] samplingIntensity) {
+
+        coalescentCount = other.coalescentCount;
+        sampleCount     = other.sampleCount;
+        eventTimes      = other.eventTimes;
+        eventTypes      = other.eventTypes;
+        lastSampleTime  = other.lastSampleTime;
+
+        cumulativePopSizeGroupSizes           = other.cumulativePopSizeGroupSizes;
+        cumulativeSamplingIntensityGroupSizes = other.cumulativeSamplingIntensityGroupSizes;
+        popSizeGroupTimes                     = other.popSizeGroupTimes;
+        samplingIntensityGroupTimes           = other.samplingIntensityGroupTimes;
+
+        if ((samplingIntensity == null) != (other.samplingIntensity == null)) {
+            throw new IllegalArgumentException("samplingIntensity should be given if and only if the skyline has sampling intensity groups.");
+        }
+        this.popSizes          = checkParameter(popSizes, cumulativePopSizeGroupSizes, "popSizes");
+        this.samplingIntensity = samplingIntensity == null ? null :
+                                 checkParameter(samplingIntensity, cumulativeSamplingIntensityGroupSizes, "samplingIntensity");
+
+        logP = calculateLogP(eventTimes, eventTypes, cumulativePopSizeGroupSizes, this.popSizes,
+                             cumulativeSamplingIntensityGroupSizes, this.samplingIntensity);
+    }
+
+
+    /**
+     * @param popSizes
+     * @param samplingIntensity null for BSP
+     * @return evaluator with the same events and groups and new parameter values
+     */
+    public SkylineEvaluator withParameters(double [] popSizes, double [] samplingIntensity) {
+        return new SkylineEvaluator(this, popSizes, samplingIntensity);
+    }
+
+
+    /**
+     * @param intervals
+     * @return times of the events in intervals (distance from the most recent tip)
+     */
+    public static double [] getEventTimes(IntervalList intervals) {
+
+        double [] times = new double[intervals.getIntervalCount()];
+        double time = 0.0;
+        for (int i = 0; i < times.length; i++) {
+            time    += intervals.getInterval(i);
+            times[i] = time;
+        }
+        return times;
+    }
+
+
+    /**
+     * @param intervals
+     * @return types of the events in intervals
+     */
+    public static IntervalType [] getEventTypes(IntervalList intervals) {
+
+        IntervalType [] types = new IntervalType[intervals.getIntervalCount()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = intervals.getIntervalType(i);
+        }
+        return types;
+    }
+
+
+    private static int [] getCumulativeGroupSizes(int [] groupSizes, int events, String description) {
+
+        if (groupSizes == null || groupSizes.length == 0) {
+            throw new IllegalArgumentException("Group sizes should be given.");
+        }
+
+        int [] cumulative = new int[groupSizes.length];
+        int    sum = 0;
+        for (int j = 0; j < groupSizes.length; j++) {
+            if (groupSizes[j] < 1) {
+                throw new IllegalArgumentException("Group sizes should be at least 1.");
+            }
+            sum += groupSizes[j];
+            cumulative[j] = sum;
+        }
+
+        if (sum != events) {
+            throw new IllegalArgumentException("The sum of the group sizes (" + sum + ") does not match the number of "
+                                             + description + " events (" + events + ").");
+        }
+        return cumulative;
+    }
+
+
+    /**
+     * @param cumulativeGroupSizes
+     * @param type                 only count events of this type (all events if null)
+     * @return time of the last event in each group
+     */
+    private double [] getGroupTimes(int [] cumulativeGroupSizes, IntervalType type) {
+
+        double [] groupTimes = new double[cumulativeGroupSizes.length];
+        int count = 0, j = 0;
+        for (int i = 0; i < eventTimes.length && j < groupTimes.length; i++) {
+            if (type == null || eventTypes[i] == type) {
+                count++;
+                if (count == cumulativeGroupSizes[j]) {
+                    groupTimes[j] = eventTimes[i];
+                    j++;
+                }
+            }
+        }
+        return groupTimes;
+    }
+
+
+    private static double [] checkParameter(double [] values, int [] cumulativeGroupSizes, String name) {
+
+        if (values == null || values.length != cumulativeGroupSizes.length) {
+            throw new IllegalArgumentException("Number of groups should match the dimension of " + name + ".");
+        }
+        return Arrays.copyOf(values, values.length);
+    }
+
+
+    /**
+     * Evaluates one event at a time with the same interval likelihoods as BSP and BESP, without allocating anything.
+     * BSP and BESP evaluate tied events of the same type as one batch (see SkylineEvents), which gives the same value
+     * up to rounding. The arguments are not checked, so the events and groups should be valid (as checked by the
+     * constructor).
+     *
+     * @param eventTimes                            times of the events (distance from the most recent tip)
+     * @param eventTypes                            SAMPLE or COALESCENT
+     * @param cumulativePopSizeGroupSizes           cumulative number of coalescent (BSP) or all (BESP) events
+     * @param popSizes
+     * @param cumulativeSamplingIntensityGroupSizes cumulative number of sampling events (null for BSP)
+     * @param samplingIntensity                     null for BSP
+     * @return
+     */
+    public static double calculateLogP(double [] eventTimes, IntervalType [] eventTypes, int [] cumulativePopSizeGroupSizes,
+                                       double [] popSizes, int [] cumulativeSamplingIntensityGroupSizes, double [] samplingIntensity) {
+
+        double lk   = 0.0,
+               prev = 0.0;
+        int    lineages = 0;
+
+        if (samplingIntensity == null) {
+            int groupIndex = 0,
+                coalIndex  = 0;
+
+            for (int i = 0; i < eventTimes.length; i++) {
+                lk  += BSP.calculateIntervalLikelihood(popSizes[groupIndex], eventTimes[i] - prev, lineages, eventTypes[i]);
+                prev = eventTimes[i];
+
+                if (eventTypes[i] == COALESCENT) {
+                    lineages--;
+                    coalIndex++;
+                    if (coalIndex >= cumulativePopSizeGroupSizes[groupIndex])
+                        groupIndex++;
+                } else {
+                    lineages++;
+                }
+            }
+        } else {
+            int    popSizeGroup           = 0,
+                   samplingIntensityGroup = 0,
+                   sampleIndex            = 0;
+            double beta,
+                   lastSampleTime = 0.0;
+
+            for (int i = eventTimes.length-1; i >= 0; i--) {
+                if (eventTypes[i] == SAMPLE) {
+                    lastSampleTime = eventTimes[i];
+                    break;
+                }
+            }
+
+            for (int i = 0; i < eventTimes.length; i++) {
+                if (i >= cumulativePopSizeGroupSizes[popSizeGroup]) {
+                    popSizeGroup++;
+                }
+
+                // Coalescent events at the time of the last sample can come after it (as in BESP)
+                beta = eventTimes[i] <= lastSampleTime && samplingIntensityGroup < samplingIntensity.length
+                     ? samplingIntensity[samplingIntensityGroup] : 0.0;
+                lk  += BESP.calculateIntervalLikelihood(popSizes[popSizeGroup], beta, eventTimes[i] - prev, lineages, eventTypes[i]);
+                prev = eventTimes[i];
+
+                if (eventTypes[i] == SAMPLE) {
+                    lineages++;
+                    sampleIndex++;
+                    if (sampleIndex >= cumulativeSamplingIntensityGroupSizes[samplingIntensityGroup])
+                        samplingIntensityGroup++;
+                } else {
+                    lineages--;
+                }
+            }
+        }
+
+        return lk;
+    }
+
+
+    /***********/
+    /* Queries */
+    /***********/
+
+    public double getLogP() { return logP; }
+
+    public int getEventCount() { return eventTimes.length; }
+
+    public int getCoalescentCount() { return coalescentCount; }
+
+    public int getSampleCount() { return sampleCount; }
+
+    public boolean hasSamplingIntensity() { return samplingIntensity != null; }
+
+    public int getPopSizeDimension() { return popSizes.length; }
+
+    public double getPopSizeChangeTime(int i) { return popSizeGroupTimes[i]; }
+
+    public double [] getPopSizeChangeTimes() { return Arrays.copyOf(popSizeGroupTimes, popSizeGroupTimes.length); }
+
+    public int getSamplingIntensityDimension() { return samplingIntensity == null ? 0 : samplingIntensity.length; }
+
+    public double getSamplingIntensityChangeTime(int i) {
+        checkSamplingIntensity();
+        return samplingIntensityGroupTimes[i];
+    }
+
+    public double [] getSamplingIntensityChangeTimes() {
+        checkSamplingIntensity();
+        return Arrays.copyOf(samplingIntensityGroupTimes, samplingIntensityGroupTimes.length);
+    }
+
+
+    /**
+     * Return popSize, N(t), at some time point (as BSP.getPopSize())
+     *
+     * @param t
+     * @return
+     */
+    public double getPopSize(double t) {
+
+        int groupIndex = Arrays.binarySearch(popSizeGroupTimes, t);
+        if (groupIndex < 0) {
+            groupIndex = -groupIndex - 1;
+        }
+
+        return popSizes[Math.min(groupIndex, popSizes.length-1)];
+    }
+
+
+    /**
+     * Return samplingIntensity, beta(t), at some time point (as BESP.getSamplingIntensity(), 0 after the last sample)
+     *
+     * @param t
+     * @return
+     */
+    public double getSamplingIntensity(double t) {
+
+        checkSamplingIntensity();
+
+        if (t > lastSampleTime) {
+            return 0.0;
+        }
+
+        int groupIndex = Arrays.binarySearch(samplingIntensityGroupTimes, t);
+        if (groupIndex < 0) {
+            groupIndex = -groupIndex - 1;
+        }
+
+        return samplingIntensity[groupIndex];
+    }
+
+
+    private void checkSamplingIntensity() {
+        if (samplingIntensity == null) {
+            throw new IllegalStateException("Skyline has no sampling intensity (BSP likelihood).");
+        }
+    }
+
+}
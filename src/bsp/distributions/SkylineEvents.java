@@ -0,0 +1,295 @@
+package bsp.distributions;
+
+import beast.evolution.tree.coalescent.IntervalList;
+import beast.evolution.tree.coalescent.IntervalType;
+import beast.math.Binomial;
+
+import static beast.evolution.tree.coalescent.IntervalType.COALESCENT;
+import static beast.evolution.tree.coalescent.IntervalType.SAMPLE;
+
+/***********************************************************
+ * Sorted coalescent and sampling events with prefix sums. *
+ ***********************************************************
+ *
+ * - Event i is the event at the end of interval i (same indexing as TreeIntervals), times are the distance from
+ *   the most recent tip
+ * - Keeps prefix sums over the intervals of the integral of (k choose 2) and of the number of coalescent and
+ *   sampling events. The sufficient statistics of any segment of the skyline can then be found without walking over
+ *   all the intervals, either by event index or by time (binary search)
+ * - Consecutive events of the same type at the same time (e.g. many tips sampled on the same date) are also
+ *   collected in batches. A batch is an event with a multiplicity: the first event of the batch carries the width
+ *   of the interval before it and the other events are at zero width, so likelihoods can be calculated per batch
+ *   instead of per event.
+ * - Arrays are only reallocated when the number of events changes
+ *
+ */
+public class SkylineEvents {
+
+    protected int eventCount,
+                  coalescentCount,
+                  sampleCount,
+                  batchCount;
+
+    protected double [] eventTimes,
+                        widths,
+                        lineageIntegral;
+
+    protected int    [] lineageCounts,
+                        cumulativeCoalescentCount,
+                        cumulativeSampleCount,
+                        coalescentIndices,
+                        sampleIndices,
+                        batchStarts,
+                        batchSizes;
+
+    protected IntervalType [] eventTypes;
+
+
+    public SkylineEvents() {
+        allocate(0);
+    }
+
+
+    /**
+     * Recalculate events and prefix sums from tree intervals
+     *
+     * @param intervals
+     */
+    public void update(IntervalList intervals) {
+
+        int n = intervals.getIntervalCount();
+        allocate(n);
+
+        eventCount      = n;
+        coalescentCount = 0;
+        sampleCount     = 0;
+        batchCount      = 0;
+
+        double time     = 0.0,
+               integral = 0.0;
+        for (int i = 0; i < n; i++) {
+            widths[i]        = intervals.getInterval(i);
+            lineageCounts[i] = intervals.getLineageCount(i);
+            eventTypes[i]    = intervals.getIntervalType(i);
+
+            time     += widths[i];
+            integral += Binomial.choose2(lineageCounts[i]) * widths[i];
+            eventTimes[i]      = time;
+            lineageIntegral[i] = integral;
+
+            countEvent(i);
+            batchEvent(i);
+        }
+    }
+
+
+    /**
+     * Update the event counts and indices for event i (events before i need to be counted already)
+     *
+     * @param i
+     */
+    protected void countEvent(int i) {
+
+        if (eventTypes[i] == COALESCENT) {
+            coalescentIndices[coalescentCount++] = i;
+        } else
+        if (eventTypes[i] == SAMPLE) {
+            sampleIndices[sampleCount++] = i;
+        }
+        cumulativeCoalescentCount[i] = coalescentCount;
+        cumulativeSampleCount[i]     = sampleCount;
+    }
+
+
+    /**
+     * Add event i to the current batch if it is of the same type and at the same time, otherwise start a new batch
+     *
+     * @param i
+     */
+    protected void batchEvent(int i) {
+
+        if (i > 0 && widths[i] == 0.0 && eventTypes[i] == eventTypes[i-1]) {
+            batchSizes[batchCount-1]++;
+        } else {
+            batchStarts[batchCount] = i;
+            batchSizes[batchCount]  = 1;
+            batchCount++;
+        }
+    }
+
+
+    protected void allocate(int n) {
+
+        if (eventTimes == null || eventTimes.length != n) {
+            eventTimes                = new double[n];
+            widths                    = new double[n];
+            lineageIntegral           = new double[n];
+            lineageCounts             = new int[n];
+            cumulativeCoalescentCount = new int[n];
+            cumulativeSampleCount     = new int[n];
+            coalescentIndices         = new int[n];
+            sampleIndices             = new int[n];
+            batchStarts               = new int[n];
+            batchSizes                = new int[n];
+            eventTypes                = new IntervalType[n];
+        }
+    }
+
+
+    /********************/
+    /* Queries by index */
+    /********************/
+
+    public int getEventCount() { return eventCount; }
+
+    public int getCoalescentCount() { return coalescentCount; }
+
+    public int getSampleCount() { return sampleCount; }
+
+    public double getEventTime(int i) { return eventTimes[i]; }
+
+    public double getWidth(int i) { return widths[i]; }
+
+    public int getLineageCount(int i) { return lineageCounts[i]; }
+
+    public IntervalType getEventType(int i) { return eventTypes[i]; }
+
+    /**
+     * @return time of the last event (the root)
+     */
+    public double getRootTime() { return eventCount > 0 ? eventTimes[eventCount-1] : 0.0; }
+
+    /**
+     * @param i
+     * @return Integral of (k choose 2) over intervals 0..i (inclusive), 0 if i < 0
+     */
+    public double getLineageIntegral(int i) { return i >= 0 ? lineageIntegral[i] : 0.0; }
+
+    /**
+     * @param i
+     * @return Number of coalescent events at the end of intervals 0..i (inclusive), 0 if i < 0
+     */
+    public int getCoalescentCount(int i) { return i >= 0 ? cumulativeCoalescentCount[i] : 0; }
+
+    /**
+     * @param i
+     * @return Number of sampling events at the end of intervals 0..i (inclusive), 0 if i < 0
+     */
+    public int getSampleCount(int i) { return i >= 0 ? cumulativeSampleCount[i] : 0; }
+
+    /**
+     * @param c
+     * @return Interval index of the c'th coalescent event
+     */
+    public int getCoalescentIndex(int c) { return coalescentIndices[c]; }
+
+    /**
+     * @param s
+     * @return Interval index of the s'th sampling event
+     */
+    public int getSampleIndex(int s) { return sampleIndices[s]; }
+
+    public double getCoalescentTime(int c) { return eventTimes[coalescentIndices[c]]; }
+
+    public double getSampleTime(int s) { return eventTimes[sampleIndices[s]]; }
+
+
+    /********************/
+    /* Queries by batch */
+    /********************/
+
+    /**
+     * @return Number of batches of tied events of the same type (at most the number of events)
+     */
+    public int getBatchCount() { return batchCount; }
+
+    /**
+     * @param b
+     * @return Index of the first event in batch b
+     */
+    public int getBatchStart(int b) { return batchStarts[b]; }
+
+    /**
+     * @param b
+     * @return Number of events in batch b
+     */
+    public int getBatchSize(int b) { return batchSizes[b]; }
+
+
+    /*******************/
+    /* Queries by time */
+    /*******************/
+
+    /**
+     * Binary search
+     *
+     * @param t
+     * @return Index of the first event at or after t (eventCount if t is after the root)
+     */
+    public int getFirstEventAtOrAfter(double t) {
+
+        int lo = 0, hi = eventCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (eventTimes[mid] < t) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Binary search
+     *
+     * @param t
+     * @return Index of the last event at or before t (-1 if t is before the first event)
+     */
+    public int getLastEventAtOrBefore(double t) {
+
+        int lo = 0, hi = eventCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (eventTimes[mid] <= t) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+    /**
+     * @param t
+     * @return Integral of (k choose 2) from 0 to t
+     */
+    public double getLineageIntegralAt(double t) {
+
+        if (t <= 0.0 || eventCount == 0) {
+            return 0.0;
+        }
+
+        int i = getFirstEventAtOrAfter(t);
+        if (i >= eventCount) {
+            return lineageIntegral[eventCount-1];
+        }
+
+        // t is inside interval i, (eventTimes[i-1], eventTimes[i]]
+        double start = i > 0 ? eventTimes[i-1] : 0.0;
+        return getLineageIntegral(i-1) + Binomial.choose2(lineageCounts[i]) * (t - start);
+    }
+
+    /**
+     * @param t
+     * @return Number of coalescent events at or before t
+     */
+    public int getCoalescentCountAt(double t) { return getCoalescentCount(getLastEventAtOrBefore(t)); }
+
+    /**
+     * @param t
+     * @return Number of sampling events at or before t
+     */
+    public int getSampleCountAt(double t) { return getSampleCount(getLastEventAtOrBefore(t)); }
+
+}
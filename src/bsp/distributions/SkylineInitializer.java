@@ -0,0 +1,186 @@
+package bsp.distributions;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.StateNode;
+import beast.core.StateNodeInitialiser;
+import beast.core.parameter.RealParameter;
+
+import java.util.List;
+
+/*******************************************************************
+ * Closed-form starting values for the parameters of BSP and BESP. *
+ *******************************************************************
+ *
+ * - Runs after the starting tree has been initialised (put it after RandomTree, ... in the init section of MCMC)
+ * - Group sizes are redistributed until every group is at least minWidth wide on the starting tree (change times are
+ *   moved to equally spaced times if they are not before the tMRCA or closer than minWidth)
+ * - Population sizes are set to the generalized skyline estimates
+ *      N_j = A_j/c_j
+ *   where A_j is the integral of (k choose 2) over group j and c_j the number of coalescent events in group j
+ * - For BESP the population sizes and sampling intensities are then improved by a few rounds of coordinate ascent on
+ *   the likelihood, which has a closed-form maximum in each direction:
+ *      beta_m = n_m / sum_j N_j*W_jm
+ *      N_j    = ((s_j-c_j) + sqrt((s_j-c_j)^2 + 4*A_j*B_j)) / (2*B_j),   B_j = sum_m beta_m*W_jm
+ *   (see SkylineStatistics for the notation)
+ * - Values are kept within the bounds of the parameters
+ *
+ */
+@Description("Sets the population sizes (and sampling intensities) of a BSP or BESP skyline to closed-form estimates from " +
+             "the starting tree and adjusts the groups to respect minWidth")
+public class SkylineInitializer extends BEASTObject implements StateNodeInitialiser {
+
+    final public Input<BSP> skylineInput =
+            new Input<>("skyline", "BSP or BESP skyline to initialise the parameters of", Input.Validate.REQUIRED);
+
+    final public Input<Integer> iterationsInput =
+            new Input<>("iterations", "Number of rounds of coordinate ascent for BESP", 10);
+
+    protected BSP skyline;
+
+
+    @Override
+    public void initAndValidate() {
+
+        skyline = skylineInput.get();
+
+        if (iterationsInput.get() < 0) {
+            throw new IllegalArgumentException("The number of iterations should not be negative.");
+        }
+    }
+
+
+    @Override
+    public void initStateNodes() {
+
+        // The starting tree may have changed since the skyline was initialised
+        skyline.intervals.checkDirtiness();
+        skyline.checkDirtiness();
+
+        skyline.updateArrays();
+        if (skyline.popSizeChangeTimes != null) {
+            skyline.initChangeTimes();
+        }
+        skyline.adjustGroupWidths();
+
+        SkylineStatistics stats = skyline.getStatistics(null);
+        int popGroups      = stats.getPopSizeGroupCount(),
+            samplingGroups = stats.getSamplingIntensityGroupCount();
+
+        double [] values = new double[popGroups + samplingGroups];
+
+        // Generalized skyline
+        for (int j = 0; j < popGroups; j++) {
+            values[j] = stats.getLineageIntegral(j) / Math.max(stats.getCoalescentCount(j), 1);
+        }
+
+        if (samplingGroups > 0) {
+            for (int i = 0; i < iterationsInput.get(); i++) {
+                updateSamplingIntensities(stats, values);
+                updatePopSizes(stats, values);
+            }
+            updateSamplingIntensities(stats, values);
+        }
+
+        setValues(skyline.popSizes, values, 0);
+        if (samplingGroups > 0) {
+            setValues(((BESP) skyline).samplingIntensity, values, popGroups);
+        }
+
+        skyline.checkDirtiness();
+    }
+
+
+    /**
+     * Maximise the likelihood over the sampling intensities for the current population sizes
+     *
+     * @param stats
+     * @param values [popSizes, samplingIntensity]
+     */
+    protected void updateSamplingIntensities(SkylineStatistics stats, double [] values) {
+
+        int popGroups = stats.getPopSizeGroupCount();
+        double [] exposure = new double[stats.getSamplingIntensityGroupCount()];
+
+        for (int i = 0; i < stats.segmentCount; i++) {
+            exposure[stats.segmentSamplingIntensityGroup[i]] += values[stats.segmentPopSizeGroup[i]]*stats.segmentWidth[i];
+        }
+
+        for (int m = 0; m < exposure.length; m++) {
+            if (exposure[m] > 0.0) {
+                values[popGroups + m] = stats.getSamplingIntensitySampleCount(m) / exposure[m];
+            } else {
+                values[popGroups + m] = 1.0;
+            }
+        }
+    }
+
+
+    /**
+     * Maximise the likelihood over the population sizes for the current sampling intensities
+     *
+     * @param stats
+     * @param values [popSizes, samplingIntensity]
+     */
+    protected void updatePopSizes(SkylineStatistics stats, double [] values) {
+
+        int popGroups = stats.getPopSizeGroupCount();
+        double [] exposure = new double[popGroups];
+        double    A, B, e;
+
+        for (int i = 0; i < stats.segmentCount; i++) {
+            exposure[stats.segmentPopSizeGroup[i]] += values[popGroups + stats.segmentSamplingIntensityGroup[i]]*stats.segmentWidth[i];
+        }
+
+        for (int j = 0; j < popGroups; j++) {
+            A = stats.getLineageIntegral(j);
+            B = exposure[j];
+            e = stats.getSampleCount(j) - stats.getCoalescentCount(j);
+
+            if (B > 0.0) {
+                values[j] = (e + Math.sqrt(e*e + 4*A*B)) / (2*B);
+            } else
+            if (e < 0) {
+                values[j] = -A/e;
+            }
+        }
+    }
+
+
+    /**
+     * Set parameter values (kept within the bounds of the parameter and positive)
+     *
+     * @param parameter
+     * @param values
+     * @param offset index in values of the first value of the parameter
+     */
+    protected void setValues(RealParameter parameter, double [] values, int offset) {
+
+        for (int i = 0; i < parameter.getDimension(); i++) {
+            double value = values[offset + i];
+            if (!(value > 0.0) || Double.isInfinite(value)) {
+                value = parameter.getValue(i);
+            }
+            parameter.setValue(i, Math.min(Math.max(value, parameter.getLower()), parameter.getUpper()));
+        }
+    }
+
+
+    @Override
+    public void getInitialisedStateNodes(List<StateNode> stateNodes) {
+
+        stateNodes.add(skyline.popSizes);
+        if (skyline.popSizeGroupSizes != null) {
+            stateNodes.add(skyline.popSizeGroupSizes);
+        }
+        if (skyline.popSizeChangeTimes != null) {
+            stateNodes.add(skyline.popSizeChangeTimes);
+        }
+        if (skyline instanceof BESP) {
+            stateNodes.add(((BESP) skyline).samplingIntensity);
+            stateNodes.add(((BESP) skyline).samplingIntensityGroupSizes);
+        }
+    }
+
+}
@@ -0,0 +1,399 @@
+package bsp.distributions;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.math.GammaFunction;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/****************************************************************************
+ * Skyline likelihood and Markov-chained prior on popSizes in one node.     *
+ ****************************************************************************
+ *
+ * - Replaces the usual pair of a BSP/BESP skyline and a MarkovChainDistribution on its popSizes, which are separate
+ *   calculation nodes that both take the logs of all popSizes at every step. The logs are kept in one cached array
+ *   that is shared by both terms
+ * - The prior is the same as beast.math.distributions.MarkovChainDistribution, with x_i given x_{i-1}
+ *      gamma:      shape k and mean x_{i-1}  (scale x_{i-1}/k)
+ *      log-normal: sigma = 1/k and mean x_{i-1}  (M = log(x_{i-1}) - sigma^2/2)
+ *   and -log(x_0) for the Jeffreys prior on the first element
+ * - The skyline likelihood is sum_j term_j (+ sum_m n_m*log(beta_m) for BESP), where term_j only depends on N_j
+ *   through the sufficient statistics of group j (see SkylineStatistics). The statistics are shared with the skyline
+ *   and only calculated once for every tree and groups
+ * - When popSizes change and the tree and groups do not, the group term and the two links of every changed element
+ *   (popSizes.isDirty()) are updated in constant time. The sums are recalculated from the terms every
+ *   popSizes.getDimension() updates, so rounding errors do not accumulate
+ * - When the tree or groups change the skyline calculates its likelihood as usual, a change in samplingIntensity
+ *   (BESP) only updates the group terms from the statistics
+ * - The skyline should not be in the posterior itself, it is only an input of this distribution. The current
+ *   log-likelihood of the skyline is kept up to date, so the skyline can still be logged (as can its change times)
+ * - Logs the total and the two separate log densities (ID.skyline and ID.markovChain)
+ * - Sampling is left to the skyline (as for BSP and BESP)
+ *
+ */
+@Description("BSP/BESP likelihood and Markov-chained (optionally Jeffreys) prior on popSizes, calculated together from " +
+             "one cached array of log popSizes")
+public class SkylineMarkovChainDistribution extends Distribution {
+
+    final public Input<BSP> skylineInput =
+            new Input<>("skyline", "BSP or BESP skyline, whose popSizes are Markov chained", Input.Validate.REQUIRED);
+
+    final public Input<Double> shapeInput =
+            new Input<>("shape", "Shape parameter of the Gamma distribution (default 1.0 = exponential distribution), " +
+                                 "or precision of the log-normal distribution", 1.0);
+
+    final public Input<Boolean> isJeffreysInput =
+            new Input<>("jeffreys", "Use Jeffrey's prior on the first element", false);
+
+    final public Input<Boolean> useLogNormalInput =
+            new Input<>("useLogNormal", "Use log-normal instead of gamma distributions", false);
+
+    protected BSP skyline;
+    protected RealParameter popSizes, samplingIntensity;
+
+    protected double shape, sigma, linkConstant;
+    protected boolean jeffreys, useLogNormal;
+
+    // Cached popSizes and their logs
+    protected double [] popSizeValues, storedPopSizeValues,
+                        logPopSizes,   storedLogPopSizes;
+
+    // Skyline term of every population size group, time-weighted sampling intensity of the group (BESP) and
+    // cached sampling intensities
+    protected double [] skylineTerms,            storedSkylineTerms,
+                        popSizeIntensity,        storedPopSizeIntensity,
+                        samplingIntensityValues, storedSamplingIntensityValues;
+
+    // linkTerms[i] = log density of x_i given x_{i-1} (linkTerms[0] = Jeffreys prior)
+    protected double [] linkTerms, storedLinkTerms;
+
+    protected double skylineLogP, storedSkylineLogP,
+                     markovChainLogP, storedMarkovChainLogP,
+                     samplingLogP, storedSamplingLogP;
+
+    protected boolean valuesKnown = false, storedValuesKnown = false,
+                      termsKnown  = false, storedTermsKnown  = false;
+
+    protected int updateCount = 0;
+
+
+    @Override
+    public void initAndValidate() {
+
+        skyline      = skylineInput.get();
+        popSizes     = skyline.popSizeInput.get();
+        shape        = shapeInput.get();
+        jeffreys     = isJeffreysInput.get();
+        useLogNormal = useLogNormalInput.get();
+
+        if (skyline instanceof BESP) {
+            samplingIntensity = ((BESP) skyline).samplingIntensityInput.get();
+        }
+
+        if (shape <= 0.0) {
+            throw new IllegalArgumentException("shape should be positive.");
+        }
+
+        if (useLogNormal) {
+            sigma        = 1.0/shape;
+            linkConstant = -Math.log(sigma) - 0.5*Math.log(2*Math.PI);
+        } else {
+            linkConstant = shape*Math.log(shape) - GammaFunction.lnGamma(shape);
+        }
+
+        int n = popSizes.getDimension();
+        popSizeValues          = new double[n];
+        storedPopSizeValues    = new double[n];
+        logPopSizes            = new double[n];
+        storedLogPopSizes      = new double[n];
+        skylineTerms           = new double[n];
+        storedSkylineTerms     = new double[n];
+        popSizeIntensity       = new double[n];
+        storedPopSizeIntensity = new double[n];
+        linkTerms              = new double[n];
+        storedLinkTerms        = new double[n];
+
+        samplingIntensityValues       = new double[samplingIntensity != null ? samplingIntensity.getDimension() : 0];
+        storedSamplingIntensityValues = new double[samplingIntensityValues.length];
+    }
+
+
+    @Override
+    public double calculateLogP() {
+
+        int n = popSizes.getDimension();
+
+        // Skyline terms are only valid for the same tree, groups and sampling intensities
+        boolean structureChanged = !skyline.onlyParametersChanged();
+        if (structureChanged || updateSamplingIntensity()) {
+            termsKnown = false;
+        }
+
+        // popSizes
+        if (!valuesKnown) {
+            for (int j = 0; j < n; j++) {
+                popSizeValues[j] = popSizes.getArrayValue(j);
+                logPopSizes[j]   = Math.log(popSizeValues[j]);
+            }
+            for (int i = 0; i < n; i++) {
+                linkTerms[i] = calculateLinkTerm(i);
+            }
+            markovChainLogP = sum(linkTerms);
+            valuesKnown = true;
+        } else {
+            for (int j = 0; j < n; j++) {
+                if (popSizes.isDirty(j)) {
+                    updatePopSize(j, popSizes.getArrayValue(j));
+                }
+            }
+        }
+
+        // Skyline
+        if (structureChanged) {
+            skylineLogP = skyline.calculateLogP();
+        } else {
+            if (!termsKnown) {
+                calculateSkylineTerms(skyline.getCurrentStatistics());
+            }
+            skyline.setCurrentLogP(skylineLogP);
+        }
+
+        // Recalculate the sums every now and then (and after infinite terms)
+        if (updateCount >= n || Double.isInfinite(markovChainLogP) || Double.isNaN(markovChainLogP) ||
+                                (termsKnown && (Double.isInfinite(skylineLogP) || Double.isNaN(skylineLogP)))) {
+            markovChainLogP = sum(linkTerms);
+            if (termsKnown) {
+                skylineLogP = samplingLogP + sum(skylineTerms);
+                skyline.setCurrentLogP(skylineLogP);
+            }
+            updateCount = 0;
+        }
+
+        logP = skylineLogP + markovChainLogP;
+        return logP;
+    }
+
+
+    /**
+     * Update the cached value of popSize j, its group term and the links it appears in
+     *
+     * @param j
+     * @param value
+     */
+    protected void updatePopSize(int j, double value) {
+
+        double term;
+
+        popSizeValues[j] = value;
+        logPopSizes[j]   = Math.log(value);
+
+        if (termsKnown) {
+            term = calculateSkylineTerm(j);
+            skylineLogP    += term - skylineTerms[j];
+            skylineTerms[j] = term;
+        }
+
+        for (int i = j; i <= j+1 && i < popSizeValues.length; i++) {
+            term = calculateLinkTerm(i);
+            markovChainLogP += term - linkTerms[i];
+            linkTerms[i]     = term;
+        }
+
+        updateCount++;
+    }
+
+
+    /**
+     * Copy the changed sampling intensities (BESP, all of them if the terms are not known)
+     *
+     * @return true if any of them changed
+     */
+    protected boolean updateSamplingIntensity() {
+
+        boolean changed = false;
+        for (int m = 0; m < samplingIntensityValues.length; m++) {
+            if (samplingIntensity.isDirty(m) || !termsKnown) {
+                samplingIntensityValues[m] = samplingIntensity.getArrayValue(m);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+
+    /**
+     * Calculate the group terms and the sampling intensity part of the skyline likelihood from the statistics
+     *
+     * @param stats
+     */
+    protected void calculateSkylineTerms(SkylineStatistics stats) {
+
+        int m;
+
+        samplingLogP = 0.0;
+        for (m = 0; m < stats.getSamplingIntensityGroupCount(); m++) {
+            samplingLogP += stats.getSamplingIntensitySampleCount(m)*Math.log(samplingIntensityValues[m]);
+        }
+
+        Arrays.fill(popSizeIntensity, 0.0);
+        for (int i = 0; i < stats.segmentCount; i++) {
+            m = stats.segmentSamplingIntensityGroup[i];
+            popSizeIntensity[stats.segmentPopSizeGroup[i]] += samplingIntensityValues[m]*stats.segmentWidth[i];
+        }
+
+        // The statistics are shared with the skyline and only change with the tree and groups
+        for (int j = 0; j < skylineTerms.length; j++) {
+            skylineTerms[j] = calculateSkylineTerm(j);
+        }
+        skylineLogP = samplingLogP + sum(skylineTerms);
+        termsKnown  = true;
+    }
+
+
+    /**
+     * @param j
+     * @return -A_j/N_j + e_j*log(N_j) - N_j*sum_m beta_m*W_jm, with e_j = s_j - c_j for BESP and -c_j for BSP
+     */
+    protected double calculateSkylineTerm(int j) {
+
+        SkylineStatistics stats = skyline.getCurrentStatistics();
+        int events = samplingIntensity != null ? stats.getSampleCount(j) - stats.getCoalescentCount(j) : -stats.getCoalescentCount(j);
+
+        return -stats.getLineageIntegral(j)/popSizeValues[j] + events*logPopSizes[j] - popSizeValues[j]*popSizeIntensity[j];
+    }
+
+
+    /**
+     * @param i
+     * @return log density of x_i given x_{i-1} (Jeffreys prior or 0 for i = 0)
+     */
+    protected double calculateLinkTerm(int i) {
+
+        if (i == 0) {
+            return jeffreys ? -logPopSizes[0] : 0.0;
+        }
+
+        if (useLogNormal) {
+            double z = (logPopSizes[i] - logPopSizes[i-1] + 0.5*sigma*sigma)/sigma;
+            return linkConstant - logPopSizes[i] - 0.5*z*z;
+        } else {
+            return linkConstant + (shape-1)*logPopSizes[i] - shape*popSizeValues[i]/popSizeValues[i-1] - shape*logPopSizes[i-1];
+        }
+    }
+
+
+    private static double sum(double [] values) {
+
+        double total = 0.0;
+        for (double value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+
+    /**
+     * @return log-likelihood of the skyline
+     */
+    public double getSkylineLogP() {
+        return skylineLogP;
+    }
+
+    /**
+     * @return log density of the Markov-chained prior on popSizes
+     */
+    public double getMarkovChainLogP() {
+        return markovChainLogP;
+    }
+
+
+    /****************************/
+    /* Calculation Node methods */
+    /****************************/
+
+    @Override
+    protected boolean requiresRecalculation() {
+        return skyline.isDirtyCalculation();
+    }
+
+    @Override
+    public void store() {
+
+        System.arraycopy(popSizeValues,    0, storedPopSizeValues,    0, popSizeValues.length);
+        System.arraycopy(logPopSizes,      0, storedLogPopSizes,      0, logPopSizes.length);
+        System.arraycopy(skylineTerms,     0, storedSkylineTerms,     0, skylineTerms.length);
+        System.arraycopy(popSizeIntensity, 0, storedPopSizeIntensity, 0, popSizeIntensity.length);
+        System.arraycopy(linkTerms,        0, storedLinkTerms,        0, linkTerms.length);
+        System.arraycopy(samplingIntensityValues, 0, storedSamplingIntensityValues, 0, samplingIntensityValues.length);
+
+        storedSkylineLogP     = skylineLogP;
+        storedMarkovChainLogP = markovChainLogP;
+        storedSamplingLogP    = samplingLogP;
+        storedValuesKnown     = valuesKnown;
+        storedTermsKnown      = termsKnown;
+
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+
+        double [] tmp;
+        tmp = popSizeValues;    popSizeValues    = storedPopSizeValues;    storedPopSizeValues    = tmp;
+        tmp = logPopSizes;      logPopSizes      = storedLogPopSizes;      storedLogPopSizes      = tmp;
+        tmp = skylineTerms;     skylineTerms     = storedSkylineTerms;     storedSkylineTerms     = tmp;
+        tmp = popSizeIntensity; popSizeIntensity = storedPopSizeIntensity; storedPopSizeIntensity = tmp;
+        tmp = linkTerms;        linkTerms        = storedLinkTerms;        storedLinkTerms        = tmp;
+        tmp = samplingIntensityValues; samplingIntensityValues = storedSamplingIntensityValues; storedSamplingIntensityValues = tmp;
+
+        skylineLogP     = storedSkylineLogP;
+        markovChainLogP = storedMarkovChainLogP;
+        samplingLogP    = storedSamplingLogP;
+        valuesKnown     = storedValuesKnown;
+        termsKnown      = storedTermsKnown;
+
+        super.restore();
+    }
+
+
+    /************/
+    /* Loggable */
+    /************/
+
+    @Override
+    public void init(PrintStream out) {
+        out.print(getID() + "\t" + getID() + ".skyline\t" + getID() + ".markovChain\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        out.print(getCurrentLogP() + "\t" + skylineLogP + "\t" + markovChainLogP + "\t");
+    }
+
+
+    /************************/
+    /* Distribution methods */
+    /************************/
+
+    @Override
+    public List<String> getArguments() {
+        return null;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        return null;
+    }
+
+    @Override
+    public void sample(State state, Random random) {
+        skyline.sample(state, random);
+    }
+
+}
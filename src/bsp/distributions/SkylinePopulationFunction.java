@@ -0,0 +1,155 @@
+package bsp.distributions;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.evolution.tree.coalescent.PopulationFunction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/****************************************************
+ * Piecewise constant population function of a BSP. *
+ ****************************************************
+ *
+ * - Exposes the current population sizes of a BSP or BESP skyline as a PopulationFunction, so it can be used
+ *   wherever BEAST expects one (RandomTree, ConstantPopulation replacements in coalescent simulators, ...)
+ * - N(t) = N_j on (t_{j-1}, t_j] (as BSP.getPopSize()), with t_j the change times of the skyline and the last
+ *   population size continuing after the last change time (the tMRCA)
+ * - The cumulative intensity I(t_j) = int_0^t_j 1/N(s) ds is calculated at each change time, so
+ *      getIntensity(t):        binary search for the group of t, then I(t_{j-1}) + (t - t_{j-1})/N_j
+ *      getInverseIntensity(x): binary search for the group of x, then t_{j-1} + (x - I(t_{j-1}))*N_j
+ *   (no numerical integration)
+ * - The intensities are recalculated lazily when the skyline changed
+ * - The skyline needs a tree to get its change times from, so it cannot initialise that same tree
+ *
+ */
+@Description("Piecewise constant population function with the population sizes and change times of a BSP or BESP skyline")
+public class SkylinePopulationFunction extends PopulationFunction.Abstract {
+
+    final public Input<BSP> skylineInput =
+            new Input<>("skyline", "BSP or BESP skyline to get the population sizes and change times from", Input.Validate.REQUIRED);
+
+    protected BSP skyline;
+
+    // Change times (t_j) and cumulative intensity at the start of each group (I(t_{j-1}))
+    protected double [] changeTimes,
+                        cumulativeIntensity;
+
+    protected boolean intensitiesKnown = false;
+
+
+    @Override
+    public void initAndValidate() {
+
+        skyline = skylineInput.get();
+
+        int groups = skyline.getPopSizeDimension();
+        changeTimes         = new double[groups-1];
+        cumulativeIntensity = new double[groups];
+    }
+
+
+    @Override
+    public List<String> getParameterIds() {
+
+        List<String> ids = new ArrayList<>();
+        if (skyline.popSizes.getID() != null) {
+            ids.add(skyline.popSizes.getID());
+        }
+        return ids;
+    }
+
+
+    @Override
+    public void prepare() {
+        updateIntensities();
+    }
+
+
+    /**
+     * Get the change times from the skyline and calculate the cumulative intensity at each of them
+     */
+    protected void updateIntensities() {
+
+        double start = 0.0;
+        for (int j = 0; j < changeTimes.length; j++) {
+            changeTimes[j]           = skyline.getPopSizeChangeTime(j);
+            cumulativeIntensity[j+1] = cumulativeIntensity[j] + (changeTimes[j] - start)/getGroupPopSize(j);
+            start = changeTimes[j];
+        }
+
+        intensitiesKnown = true;
+    }
+
+
+    protected double getGroupPopSize(int j) {
+        return skyline.popSizes.getArrayValue(j);
+    }
+
+
+    /**
+     * @param t
+     * @return index j of the group with t_{j-1} < t <= t_j
+     */
+    protected int getGroup(double t) {
+
+        int j = Arrays.binarySearch(changeTimes, t);
+        return j < 0 ? -j-1 : j;
+    }
+
+
+    @Override
+    public double getPopSize(double t) {
+
+        if (!intensitiesKnown) {
+            updateIntensities();
+        }
+
+        return getGroupPopSize(getGroup(t));
+    }
+
+
+    @Override
+    public double getIntensity(double t) {
+
+        if (!intensitiesKnown) {
+            updateIntensities();
+        }
+
+        int j = getGroup(t);
+        return cumulativeIntensity[j] + (t - (j > 0 ? changeTimes[j-1] : 0.0))/getGroupPopSize(j);
+    }
+
+
+    @Override
+    public double getInverseIntensity(double x) {
+
+        if (!intensitiesKnown) {
+            updateIntensities();
+        }
+
+        // Last group with I(t_{j-1}) <= x
+        int j = Arrays.binarySearch(cumulativeIntensity, x);
+        j = j < 0 ? -j-2 : j;
+        return (j > 0 ? changeTimes[j-1] : 0.0) + (x - cumulativeIntensity[j])*getGroupPopSize(j);
+    }
+
+
+    /****************************/
+    /* Calculation Node methods */
+    /****************************/
+
+    @Override
+    protected boolean requiresRecalculation() {
+        intensitiesKnown = false;
+        return true;
+    }
+
+    @Override
+    protected void restore() {
+        intensitiesKnown = false;
+        super.restore();
+    }
+
+}
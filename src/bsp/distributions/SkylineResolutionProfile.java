@@ -0,0 +1,251 @@
+package bsp.distributions;
+
+import beast.core.CalculationNode;
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.math.GammaFunction;
+
+import java.io.PrintStream;
+
+/*******************************************************************
+ * Skyline log-likelihoods for every number of groups in one pass. *
+ *******************************************************************
+ *
+ * - For K = 1..maxGroups the coalescent events of the tree are divided into K groups of (almost) equal size, as in
+ *   the robust design of BSP (getRobustPopSizeGroupSizes()), and the BSP log-likelihood of each grouping is
+ *   calculated with the population sizes of the groups either
+ *      profile:  set to their maximum likelihood estimates N_j = A_j/c_j, giving sum_j [-c_j - c_j*log(A_j/c_j)]
+ *      marginal: integrated out under independent InverseGamma(shape, scale) priors, giving
+ *                sum_j [a*log(b) - lnGamma(a) + lnGamma(a+c_j) - (a+c_j)*log(b+A_j)]
+ *   where A_j is the integral of (k choose 2) over group j and c_j the number of coalescent events in group j
+ * - The events are sorted once and the integral at every coalescent event is kept as a prefix sum, so all K are
+ *   evaluated in O(intervals + maxGroups^2) instead of one chain (or one pass over the intervals) per K
+ * - Value K-1 is the log-likelihood with K groups. Can be logged to compare skyline resolutions over a single run,
+ *   or used as the input of a prior over the number of groups (marginal likelihoods are comparable across K, profile
+ *   likelihoods always increase with K and need a penalty)
+ * - Uses the shared events if the intervals are SkylineTreeIntervals
+ * - Only for the coalescent (BSP), sampling times are conditioned on
+ *
+ */
+@Description("Profile or marginal BSP log-likelihoods of the tree for every number of equally sized groups from 1 to maxGroups")
+public class SkylineResolutionProfile extends CalculationNode implements Function, Loggable {
+
+    public enum Type { profile, marginal }
+
+    final public Input<TreeIntervals> treeIntervalsInput =
+            new Input<>("treeIntervals", "Intervals for a phylogenetic beast tree", Input.Validate.REQUIRED);
+
+    final public Input<Integer> maxGroupsInput =
+            new Input<>("maxGroups", "Largest number of population size groups to evaluate", Input.Validate.REQUIRED);
+
+    final public Input<Type> typeInput =
+            new Input<>("type", "Maximise (profile) or integrate out (marginal) the population sizes of the groups",
+                        Type.profile, Type.values());
+
+    final public Input<Double> shapeInput =
+            new Input<>("shape", "Shape of the inverse gamma prior on population sizes (marginal only)", 1.0);
+
+    final public Input<Double> scaleInput =
+            new Input<>("scale", "Scale of the inverse gamma prior on population sizes (marginal only)", 1.0);
+
+    protected TreeIntervals intervals;
+    protected SkylineEvents events;
+    protected Type type;
+
+    protected int maxGroups;
+    protected double shape, scale;
+
+    // Integral of (k choose 2) up to each coalescent event (coalescentIntegral[c] = up to the c-th coalescent event)
+    protected double [] coalescentIntegral;
+
+    protected double [] logPs, storedLogPs;
+
+    protected boolean logPsKnown = false, storedLogPsKnown = false;
+
+
+    @Override
+    public void initAndValidate() {
+
+        intervals = treeIntervalsInput.get();
+        maxGroups = maxGroupsInput.get();
+        type      = typeInput.get();
+        shape     = shapeInput.get();
+        scale     = scaleInput.get();
+
+        if (maxGroups < 1) {
+            throw new IllegalArgumentException("maxGroups should be at least 1.");
+        }
+
+        if (maxGroups > intervals.getSampleCount()) {
+            throw new IllegalArgumentException("There are more groups than coalescent events in the tree.");
+        }
+
+        if (type == Type.marginal && (shape <= 0.0 || scale <= 0.0)) {
+            throw new IllegalArgumentException("Shape and scale of the prior should be positive.");
+        }
+
+        logPs       = new double[maxGroups];
+        storedLogPs = new double[maxGroups];
+    }
+
+
+    /**
+     * @param groups number of groups (1..maxGroups)
+     * @return log-likelihood with the coalescent events divided into groups equally sized groups
+     */
+    public double getLogP(int groups) {
+        return getArrayValue(groups-1);
+    }
+
+
+    /**
+     * @return number of groups with the highest log-likelihood
+     */
+    public int getBestGroupCount() {
+
+        int best = 1;
+        for (int k = 2; k <= maxGroups; k++) {
+            if (getLogP(k) > getLogP(best)) {
+                best = k;
+            }
+        }
+        return best;
+    }
+
+
+    /**
+     * Calculate the log-likelihoods for all numbers of groups
+     */
+    protected void update() {
+
+        if (intervals instanceof SkylineTreeIntervals) {
+            events = ((SkylineTreeIntervals) intervals).getEvents();
+        } else {
+            if (events == null) {
+                events = new SkylineEvents();
+            }
+            events.update(intervals);
+        }
+
+        // One pass over the events
+        int nrCoal = events.getCoalescentCount();
+        if (coalescentIntegral == null || coalescentIntegral.length != nrCoal+1) {
+            coalescentIntegral = new double[nrCoal+1];
+        }
+        for (int c = 1; c <= nrCoal; c++) {
+            coalescentIntegral[c] = events.getLineageIntegral(events.getCoalescentIndex(c-1));
+        }
+
+        // Groups of getRobustPopSizeGroupSizes(): the first nrCoal % K groups have one extra event
+        for (int k = 1; k <= maxGroups; k++) {
+            int    each   = nrCoal / k,
+                   extras = nrCoal % k,
+                   start  = 0, end;
+            double lk     = 0.0;
+
+            for (int j = 0; j < k; j++) {
+                end = start + each + (j < extras ? 1 : 0);
+                lk += calculateGroupLogP(coalescentIntegral[end] - coalescentIntegral[start], end - start);
+                start = end;
+            }
+            logPs[k-1] = lk;
+        }
+
+        logPsKnown = true;
+    }
+
+
+    /**
+     * @param integral integral of (k choose 2) over the group
+     * @param coal     number of coalescent events in the group
+     * @return
+     */
+    protected double calculateGroupLogP(double integral, int coal) {
+
+        switch (type) {
+            case marginal:
+                return shape*Math.log(scale) - GammaFunction.lnGamma(shape) + GammaFunction.lnGamma(shape+coal)
+                       - (shape+coal)*Math.log(scale+integral);
+            case profile:
+            default:
+                return -coal - coal*Math.log(integral/coal);
+        }
+    }
+
+
+    /****************************/
+    /* Calculation Node methods */
+    /****************************/
+
+    @Override
+    protected boolean requiresRecalculation() {
+        if (intervals.isDirtyCalculation()) {
+            logPsKnown = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected void store() {
+        System.arraycopy(logPs, 0, storedLogPs, 0, maxGroups);
+        storedLogPsKnown = logPsKnown;
+        super.store();
+    }
+
+    @Override
+    protected void restore() {
+        double [] tmp = logPs;
+        logPs       = storedLogPs;
+        storedLogPs = tmp;
+        logPsKnown  = storedLogPsKnown;
+        super.restore();
+    }
+
+
+    /*****************************/
+    /* Function/Loggable methods */
+    /*****************************/
+
+    @Override
+    public int getDimension() {
+        return maxGroups;
+    }
+
+    @Override
+    public double getArrayValue() {
+        return getArrayValue(0);
+    }
+
+    @Override
+    public double getArrayValue(int dim) {
+        if (!logPsKnown) {
+            update();
+        }
+        return logPs[dim];
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        for (int k = 1; k <= maxGroups; k++) {
+            out.print(this.getID() + "." + k + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (int k = 0; k < maxGroups; k++) {
+            out.print(getArrayValue(k));
+            out.print('\t');
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+
+}
@@ -0,0 +1,159 @@
+package bsp.distributions;
+
+/*********************************************************
+ * Sufficient statistics of the skyline likelihood.      *
+ *********************************************************
+ *
+ * - For a fixed tree and fixed groups the BSP/BESP likelihood only depends on the skyline parameters through a few
+ *   statistics per group:
+ *      A_j     integral of (k choose 2) over population size group j
+ *      c_j     number of coalescent events in population size group j
+ *      s_j     number of sampling events in population size group j
+ *      n_m     number of sampling events in sampling intensity group m
+ *      W_jm    time that population size group j and sampling intensity group m overlap (before the last sample)
+ * - The log-likelihood is then
+ *      BSP:  sum_j [-A_j/N_j - c_j*log(N_j)]
+ *      BESP: sum_j [-A_j/N_j + (s_j-c_j)*log(N_j)] + sum_m n_m*log(beta_m) - sum_jm N_j*beta_m*W_jm
+ *   which can be evaluated (together with the gradient) in O(groups) instead of O(intervals)
+ * - The overlaps W_jm are stored as a list of segments, because every population size group only overlaps with a
+ *   few sampling intensity groups
+ * - Parameter values are passed as a single array, [popSizes, samplingIntensity]
+ * - Filled in by BSP.getStatistics()
+ *
+ */
+public class SkylineStatistics {
+
+    protected int popSizeGroupCount,
+                  samplingIntensityGroupCount,
+                  segmentCount;
+
+    protected double [] lineageIntegral,
+                        segmentWidth;
+
+    protected int    [] coalescentCount,
+                        sampleCount,
+                        samplingIntensitySampleCount,
+                        segmentPopSizeGroup,
+                        segmentSamplingIntensityGroup;
+
+
+    /**
+     * @param popSizeGroups
+     * @param samplingIntensityGroups 0 for BSP
+     */
+    public SkylineStatistics(int popSizeGroups, int samplingIntensityGroups) {
+
+        popSizeGroupCount           = popSizeGroups;
+        samplingIntensityGroupCount = samplingIntensityGroups;
+
+        lineageIntegral = new double[popSizeGroups];
+        coalescentCount = new int[popSizeGroups];
+        sampleCount     = new int[popSizeGroups];
+
+        samplingIntensitySampleCount  = new int[samplingIntensityGroups];
+        segmentWidth                  = new double[popSizeGroups + samplingIntensityGroups];
+        segmentPopSizeGroup           = new int[popSizeGroups + samplingIntensityGroups];
+        segmentSamplingIntensityGroup = new int[popSizeGroups + samplingIntensityGroups];
+    }
+
+
+    public void reset() {
+
+        for (int j = 0; j < popSizeGroupCount; j++) {
+            lineageIntegral[j] = 0.0;
+            coalescentCount[j] = 0;
+            sampleCount[j]     = 0;
+        }
+        for (int m = 0; m < samplingIntensityGroupCount; m++) {
+            samplingIntensitySampleCount[m] = 0;
+        }
+        segmentCount = 0;
+    }
+
+
+    /**
+     * Add time where population size group j and sampling intensity group m overlap
+     * (merged with the previous segment if it has the same groups)
+     *
+     * @param j
+     * @param m
+     * @param width
+     */
+    protected void addSegment(int j, int m, double width) {
+
+        if (width <= 0.0) {
+            return;
+        }
+
+        if (segmentCount > 0 && segmentPopSizeGroup[segmentCount-1] == j && segmentSamplingIntensityGroup[segmentCount-1] == m) {
+            segmentWidth[segmentCount-1] += width;
+        } else {
+            segmentPopSizeGroup[segmentCount]           = j;
+            segmentSamplingIntensityGroup[segmentCount] = m;
+            segmentWidth[segmentCount]                  = width;
+            segmentCount++;
+        }
+    }
+
+
+    /**
+     * Calculate the log-likelihood and (optionally) its gradient with respect to the parameter values
+     *
+     * @param values   [popSizes, samplingIntensity]
+     * @param gradient array of the same length as values to store the gradient in (ignored if null)
+     * @return log-likelihood
+     */
+    public double calculateLogLikelihood(double [] values, double [] gradient) {
+
+        int    j, m, events;
+        double popSize, beta, width,
+               lk = 0.0;
+
+        for (j = 0; j < popSizeGroupCount; j++) {
+            popSize = values[j];
+            events  = samplingIntensityGroupCount > 0 ? sampleCount[j] - coalescentCount[j] : -coalescentCount[j];
+
+            lk += -lineageIntegral[j]/popSize + events*Math.log(popSize);
+            if (gradient != null) {
+                gradient[j] = lineageIntegral[j]/(popSize*popSize) + events/popSize;
+            }
+        }
+
+        for (m = 0; m < samplingIntensityGroupCount; m++) {
+            beta = values[popSizeGroupCount + m];
+
+            lk += samplingIntensitySampleCount[m]*Math.log(beta);
+            if (gradient != null) {
+                gradient[popSizeGroupCount + m] = samplingIntensitySampleCount[m]/beta;
+            }
+        }
+
+        for (int i = 0; i < segmentCount; i++) {
+            j       = segmentPopSizeGroup[i];
+            m       = popSizeGroupCount + segmentSamplingIntensityGroup[i];
+            width   = segmentWidth[i];
+
+            lk += -values[j]*values[m]*width;
+            if (gradient != null) {
+                gradient[j] -= values[m]*width;
+                gradient[m] -= values[j]*width;
+            }
+        }
+
+        return lk;
+    }
+
+
+    public int getPopSizeGroupCount() { return popSizeGroupCount; }
+
+    public int getSamplingIntensityGroupCount() { return samplingIntensityGroupCount; }
+
+    public double getLineageIntegral(int j) { return lineageIntegral[j]; }
+
+    public int getCoalescentCount(int j) { return coalescentCount[j]; }
+
+    public int getSampleCount(int j) { return sampleCount[j]; }
+
+    public int getSamplingIntensitySampleCount(int m) { return samplingIntensitySampleCount[m]; }
+
+}
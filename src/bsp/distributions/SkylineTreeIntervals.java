@@ -0,0 +1,81 @@
+package bsp.distributions;
+
+import beast.core.Description;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.TreeIntervals;
+
+/************************************************************
+ * Tree intervals with shared skyline events.               *
+ ************************************************************
+ *
+ * - Drop-in replacement for TreeIntervals (treeIntervals input of BSP, BESP, BayesianSkyline, Coalescent, ...) that
+ *   also keeps the sorted events with prefix sums (SkylineEvents) of the current tree
+ * - All distributions on the same tree should use the same SkylineTreeIntervals (by idref), so the node heights are
+ *   sorted and the events are calculated at most once per tree state, instead of once per distribution
+ * - Events are calculated lazily when first requested after the tree changed, in one of two buffers. Store only
+ *   remembers which buffer holds the stored events and restore switches back to it, so nothing is copied.
+ * - The events are shared and should not be modified by the distributions
+ *
+ */
+@Description("Tree intervals that also keep the sorted skyline events, to share between BSP/BESP and other coalescent distributions on the same tree")
+public class SkylineTreeIntervals extends TreeIntervals {
+
+    protected SkylineEvents [] buffers = {new SkylineEvents(), new SkylineEvents()};
+
+    protected SkylineEvents events, storedEvents;
+
+    protected boolean eventsKnown = false, storedEventsKnown = false;
+
+
+    public SkylineTreeIntervals() {
+        super();
+    }
+
+    public SkylineTreeIntervals(Tree tree) {
+        super(tree);
+    }
+
+
+    /**
+     * @return sorted events and prefix sums of the current tree (do not modify)
+     */
+    public SkylineEvents getEvents() {
+
+        if (!eventsKnown) {
+            // Do not overwrite the stored events
+            if (events == null || events == storedEvents) {
+                events = events == buffers[0] ? buffers[1] : buffers[0];
+            }
+            events.update(this);
+            eventsKnown = true;
+        }
+
+        return events;
+    }
+
+
+    /****************************/
+    /* Calculation Node methods */
+    /****************************/
+
+    @Override
+    protected boolean requiresRecalculation() {
+        eventsKnown = false;
+        return super.requiresRecalculation();
+    }
+
+    @Override
+    protected void store() {
+        storedEvents      = events;
+        storedEventsKnown = eventsKnown;
+        super.store();
+    }
+
+    @Override
+    protected void restore() {
+        events      = storedEvents;
+        eventsKnown = storedEventsKnown;
+        super.restore();
+    }
+
+}
@@ -0,0 +1,283 @@
+package bsp.operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.StateNode;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.IntervalType;
+import beast.util.Randomizer;
+import bsp.distributions.BESP;
+import bsp.distributions.BSP;
+import bsp.distributions.SkylineEvaluator;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static beast.evolution.tree.coalescent.IntervalType.COALESCENT;
+import static beast.evolution.tree.coalescent.IntervalType.SAMPLE;
+
+/************************************************************
+ * Delayed acceptance for tree operators using the skyline. *
+ ************************************************************
+ *
+ * - Wraps a tree operator (Uniform, SubtreeSlide, WilsonBalding, ScaleOperator on the tree, ...) and screens its
+ *   proposals with the skyline likelihood before the rest of the posterior (the tree likelihood) is calculated
+ * - Stage 1: with p1 the skyline likelihood and HR the Hastings ratio of the wrapped operator, the proposal is
+ *   rejected straight away (the posterior is not calculated) with probability 1 - min(1, p1(y)/p1(x)*HR)
+ * - Stage 2: proposals that pass are returned to MCMC with Hastings ratio p1(x)/p1(y), so the usual acceptance
+ *   probability becomes min(1, p(y)/p(x) * p1(x)/p1(y)). The product of both stages satisfies detailed balance
+ *   (Christen and Fox, 2005), so the stationary distribution is exactly the posterior
+ * - p1 is evaluated directly from the node heights with SkylineEvaluator, using the current group sizes and
+ *   parameters of the skyline. This is the skyline likelihood when the groups are given by group sizes; with minWidth
+ *   or epoch times it is an approximation, which makes screening less efficient but does not affect exactness
+ * - p1 is evaluated twice per proposal, so it reuses primitive arrays: the sample and node heights are sorted
+ *   separately and merged (samples first at the same height) and SkylineEvaluator.calculateLogP() is called on the
+ *   merged events, without boxing or building an evaluator
+ * - Useful when most proposals are rejected by the skyline alone, e.g. large moves on big trees. Operators that do
+ *   not change node heights (Exchange) always pass stage 1 and should not be wrapped
+ * - Acceptance counts and tuning are passed on to the wrapped operator, using the acceptance probability it would
+ *   have had without delayed acceptance
+ *
+ */
+@Description("Delayed-acceptance wrapper for tree operators that rejects proposals using the BSP/BESP likelihood before the " +
+             "rest of the posterior is calculated")
+public class SkylineDelayedAcceptanceOperator extends Operator {
+
+    final public Input<Operator> operatorInput =
+            new Input<>("operator", "Tree operator whose proposals are screened", Input.Validate.REQUIRED);
+
+    final public Input<BSP> skylineInput =
+            new Input<>("skyline", "BSP or BESP skyline on the tree", Input.Validate.REQUIRED);
+
+    final public Input<Tree> treeInput =
+            new Input<>("tree", "Tree changed by the operator (the tree of the skyline)", Input.Validate.REQUIRED);
+
+    protected Operator operator;
+    protected BSP      skyline;
+    protected Tree     tree;
+
+    protected double       [] sampleHeights,
+                              nodeHeights,
+                              eventTimes,
+                              popSizes,
+                              samplingIntensity;
+    protected IntervalType [] eventTypes;
+    protected int          [] cumulativePopSizeGroupSizes,
+                              cumulativeSamplingIntensityGroupSizes;
+
+    // log(p1(y)/p1(x)*HR) of the last proposal (-Infinity if rejected at stage 1)
+    protected double logScreeningRatio;
+
+    protected int screenedCount = 0;
+
+
+    @Override
+    public void initAndValidate() {
+
+        operator = operatorInput.get();
+        skyline  = skylineInput.get();
+        tree     = treeInput.get();
+
+        if (skyline.getPopSizeGroupSizes() == null) {
+            throw new IllegalArgumentException("Delayed acceptance requires a skyline with popSizeGroupSizes (not popSizeChangeTimes).");
+        }
+
+        sampleHeights = new double[tree.getLeafNodeCount()];
+        nodeHeights   = new double[tree.getInternalNodeCount()];
+        eventTimes    = new double[tree.getNodeCount()];
+        eventTypes    = new IntervalType[tree.getNodeCount()];
+    }
+
+
+    @Override
+    public double proposal() {
+
+        logScreeningRatio = Double.NEGATIVE_INFINITY;
+
+        double logP = getSkylineLogP(),
+               logHR = operator.proposal();
+
+        // Nothing to screen with
+        if (logHR == Double.NEGATIVE_INFINITY || Double.isInfinite(logP)) {
+            logScreeningRatio = 0.0;
+            return logHR;
+        }
+
+        double delta = getSkylineLogP() - logP;
+
+        // Stage 1
+        if (delta + logHR < 0.0 && Randomizer.nextDouble() >= Math.exp(delta + logHR)) {
+            screenedCount++;
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // Stage 2 (in MCMC)
+        logScreeningRatio = delta + logHR;
+        return -delta;
+    }
+
+
+    /**
+     * Skyline log-likelihood of the current tree for the current group sizes and parameters of the skyline
+     *
+     * @return
+     */
+    protected double getSkylineLogP() {
+
+        int samples = 0, nodes = 0;
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            if (tree.getNode(i).isLeaf()) {
+                sampleHeights[samples++] = tree.getNode(i).getHeight();
+            } else {
+                nodeHeights[nodes++] = tree.getNode(i).getHeight();
+            }
+        }
+        Arrays.sort(sampleHeights);
+        Arrays.sort(nodeHeights);
+
+        // Sampling events before coalescent events at the same height
+        samples = 0;
+        nodes   = 0;
+        for (int i = 0; i < eventTimes.length; i++) {
+            if (nodes == nodeHeights.length || (samples < sampleHeights.length && sampleHeights[samples] <= nodeHeights[nodes])) {
+                eventTimes[i] = sampleHeights[samples++] - sampleHeights[0];
+                eventTypes[i] = SAMPLE;
+            } else {
+                eventTimes[i] = nodeHeights[nodes++] - sampleHeights[0];
+                eventTypes[i] = COALESCENT;
+            }
+        }
+
+        // Groups or parameters not valid for the skyline
+        cumulativePopSizeGroupSizes = getCumulativeGroupSizes(skyline.getPopSizeGroupSizes(), cumulativePopSizeGroupSizes);
+        popSizes                    = getValues(skyline.popSizeInput.get(), popSizes);
+        if (!isValid(cumulativePopSizeGroupSizes, skyline instanceof BESP ? eventTimes.length : nodeHeights.length, popSizes)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        if (skyline instanceof BESP) {
+            BESP besp = (BESP) skyline;
+            cumulativeSamplingIntensityGroupSizes = getCumulativeGroupSizes(besp.getSamplingIntensityGroupSizes(), cumulativeSamplingIntensityGroupSizes);
+            samplingIntensity                     = getValues(besp.samplingIntensityInput.get(), samplingIntensity);
+            if (!isValid(cumulativeSamplingIntensityGroupSizes, sampleHeights.length, samplingIntensity)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return SkylineEvaluator.calculateLogP(eventTimes, eventTypes, cumulativePopSizeGroupSizes, popSizes,
+                                                  cumulativeSamplingIntensityGroupSizes, samplingIntensity);
+        } else {
+            return SkylineEvaluator.calculateLogP(eventTimes, eventTypes, cumulativePopSizeGroupSizes, popSizes, null, null);
+        }
+    }
+
+
+    /**
+     * @param parameter
+     * @param cumulative array to reuse (a new array is only allocated if the dimension changed)
+     * @return cumulative group sizes
+     */
+    private static int [] getCumulativeGroupSizes(IntegerParameter parameter, int [] cumulative) {
+
+        if (cumulative == null || cumulative.length != parameter.getDimension()) {
+            cumulative = new int[parameter.getDimension()];
+        }
+        int sum = 0;
+        for (int i = 0; i < cumulative.length; i++) {
+            sum += parameter.getValue(i);
+            cumulative[i] = sum;
+        }
+        return cumulative;
+    }
+
+
+    private static double [] getValues(RealParameter parameter, double [] values) {
+
+        if (values == null || values.length != parameter.getDimension()) {
+            values = new double[parameter.getDimension()];
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = parameter.getArrayValue(i);
+        }
+        return values;
+    }
+
+
+    /**
+     * Groups of at least one event that add up to the number of events, and one value per group
+     */
+    private static boolean isValid(int [] cumulative, int events, double [] values) {
+
+        int prev = 0;
+        for (int sum : cumulative) {
+            if (sum <= prev) {
+                return false;
+            }
+            prev = sum;
+        }
+        return prev == events && values.length == cumulative.length;
+    }
+
+
+    /**
+     * @return number of proposals rejected at stage 1
+     */
+    public int getScreenedCount() {
+        return screenedCount;
+    }
+
+
+    /*************************************/
+    /* Passed on to the wrapped operator */
+    /*************************************/
+
+    @Override
+    public List<StateNode> listStateNodes() {
+        return operator.listStateNodes();
+    }
+
+    @Override
+    public void accept() {
+        super.accept();
+        operator.accept();
+    }
+
+    @Override
+    public void reject() {
+        super.reject();
+        operator.reject();
+    }
+
+    @Override
+    public void reject(int reason) {
+        super.reject(reason);
+        operator.reject(reason);
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        operator.optimize(logAlpha + logScreeningRatio);
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return operator.getCoercableParameterValue();
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        operator.setCoercableParameterValue(value);
+    }
+
+    @Override
+    public double getTargetAcceptanceProbability() {
+        return operator.getTargetAcceptanceProbability();
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+        return operator.getPerformanceSuggestion();
+    }
+
+}
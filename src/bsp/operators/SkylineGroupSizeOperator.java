@@ -0,0 +1,174 @@
+package bsp.operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.parameter.IntegerParameter;
+import beast.util.Randomizer;
+import bsp.distributions.BSP;
+
+/*****************************************************************
+ * Group size operator that only proposes valid skyline groups.  *
+ *****************************************************************
+ *
+ * - Moves one event from one group to another (like an integer DeltaExchangeOperator with delta=1), but only
+ *   proposes moves that keep the group sizes within the bounds of the parameter and every group at least minWidth
+ *   long, so the skyline never returns -Infinity because of the proposed groups and the rest of the posterior is not
+ *   calculated for impossible states
+ * - All valid moves are enumerated on the current tree and one is drawn uniformly, so the Hastings ratio is
+ *      log(N(x)) - log(N(x'))
+ *   where N(x) is the number of valid moves from x (every move can be reversed by moving the event back)
+ * - Moving an event from group j to group i shifts the ends of all groups between i and j by one event, so checking
+ *   a move takes O(|i-j|) and enumerating all moves O(groups^3), which is negligible for the usual number of groups
+ * - Works on popSizeGroupSizes of BSP and BESP and on samplingIntensityGroupSizes of BESP
+ * - Returns -Infinity (without changing the state) if there are no valid moves
+ *
+ */
+@Description("Exchanges events between the groups of a BSP or BESP skyline, only proposing group sizes that respect the bounds and minWidth")
+public class SkylineGroupSizeOperator extends Operator {
+
+    final public Input<BSP> skylineInput =
+            new Input<>("skyline", "BSP or BESP skyline the group sizes belong to", Input.Validate.REQUIRED);
+
+    final public Input<IntegerParameter> groupSizesInput =
+            new Input<>("groupSizes", "Group sizes of the skyline (popSizeGroupSizes or samplingIntensityGroupSizes)", Input.Validate.REQUIRED);
+
+    protected BSP skyline;
+    protected IntegerParameter groupSizes;
+
+    protected int lower, upper,
+                  moveCount;
+    protected double minWidth;
+
+    protected int    [] sizes,
+                        cumulativeSizes,
+                        moveFrom,
+                        moveTo;
+    protected double [] eventTimes;
+
+
+    @Override
+    public void initAndValidate() {
+
+        skyline    = skylineInput.get();
+        groupSizes = groupSizesInput.get();
+
+        int nrGroups = groupSizes.getDimension();
+        if (nrGroups < 2) {
+            throw new IllegalArgumentException("There should be at least two groups to exchange events between.");
+        }
+
+        // Throws an exception if the group sizes do not belong to the skyline
+        eventTimes = skyline.getGroupEventTimes(groupSizes, null);
+
+        sizes           = new int[nrGroups];
+        cumulativeSizes = new int[nrGroups];
+        moveFrom        = new int[nrGroups*(nrGroups-1)];
+        moveTo          = new int[nrGroups*(nrGroups-1)];
+    }
+
+
+    @Override
+    public double proposal() {
+
+        int    move, from, to,
+               forwardMoves;
+
+        eventTimes = skyline.getGroupEventTimes(groupSizes, eventTimes);
+        minWidth   = skyline.getMinWidth();
+        lower      = Math.max(groupSizes.getLower(), 1);
+        upper      = groupSizes.getUpper();
+
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = groupSizes.getValue(i);
+        }
+        updateCumulativeSizes();
+
+        // Draw a valid move
+        forwardMoves = countValidMoves();
+        if (forwardMoves == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        move = Randomizer.nextInt(forwardMoves);
+        from = moveFrom[move];
+        to   = moveTo[move];
+
+        sizes[from]--;
+        sizes[to]++;
+        updateCumulativeSizes();
+
+        groupSizes.setValue(from, sizes[from]);
+        groupSizes.setValue(to,   sizes[to]);
+
+        // Number of valid moves from the proposed state (includes the move back)
+        return Math.log(forwardMoves) - Math.log(countValidMoves());
+    }
+
+
+    /**
+     * Find all valid moves from the current sizes (stored in moveFrom and moveTo)
+     *
+     * @return number of valid moves
+     */
+    protected int countValidMoves() {
+
+        moveCount = 0;
+        for (int from = 0; from < sizes.length; from++) {
+            for (int to = 0; to < sizes.length; to++) {
+                if (from != to && isValidMove(from, to)) {
+                    moveFrom[moveCount] = from;
+                    moveTo[moveCount]   = to;
+                    moveCount++;
+                }
+            }
+        }
+
+        return moveCount;
+    }
+
+
+    /**
+     * Check if moving one event from group "from" to group "to" respects the bounds and minWidth.
+     * Only the groups between from and to change (their ends shift by one event).
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    protected boolean isValidMove(int from, int to) {
+
+        if (sizes[from]-1 < lower || sizes[to]+1 > upper) {
+            return false;
+        }
+
+        if (minWidth <= 0.0) {
+            return true;
+        }
+
+        int    first = Math.min(from, to),
+               last  = Math.max(from, to),
+               shift = to < from ? 1 : -1;
+        double end,
+               prev  = first > 0 ? eventTimes[cumulativeSizes[first-1]-1] : 0.0;
+
+        for (int k = first; k <= last; k++) {
+            end = eventTimes[cumulativeSizes[k] + (k < last ? shift : 0) - 1];
+            if (end - prev < minWidth) {
+                return false;
+            }
+            prev = end;
+        }
+
+        return true;
+    }
+
+
+    private void updateCumulativeSizes() {
+
+        cumulativeSizes[0] = sizes[0];
+        for (int i = 1; i < sizes.length; i++) {
+            cumulativeSizes[i] = cumulativeSizes[i-1] + sizes[i];
+        }
+    }
+
+}
@@ -0,0 +1,341 @@
+package bsp.operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.math.distributions.MarkovChainDistribution;
+import beast.util.Randomizer;
+import bsp.distributions.BESP;
+import bsp.distributions.BSP;
+import bsp.distributions.SkylineStatistics;
+
+import java.text.DecimalFormat;
+
+/************************************************************
+ * Hamiltonian Monte Carlo operator for skyline parameters. *
+ ************************************************************
+ *
+ * - Jointly updates popSizes (and samplingIntensity for BESP) on the log scale using leapfrog trajectories
+ * - The target of the trajectories is the skyline likelihood plus the Markov chain priors on popSizes and
+ *   samplingIntensity (if given). Any other priors on these parameters are accounted for by the acceptance step of
+ *   the MCMC, since the whole trajectory is used as a proposal with the Hastings ratio
+ *      K(p) - K(p') + sum(log(x') - log(x))
+ *   (change in kinetic energy and the Jacobian of the log-transform)
+ * - The tree and groups are fixed during the trajectory, so the sufficient statistics of the skyline
+ *   (SkylineStatistics) are calculated once per proposal and every leapfrog step calculates the log-density and
+ *   the gradient together in O(groups), without allocating memory
+ * - The number of leapfrog steps is drawn uniformly between 1 and numSteps for every proposal (random path lengths
+ *   avoid periodic trajectories). No-U-turn sampling is not used, because a NUTS transition is not a
+ *   Metropolis-Hastings proposal and cannot be combined with the other operators in the MCMC.
+ * - The step size is tuned towards an acceptance probability of 0.65
+ * - Only the gamma Markov chain (uselog=false) is supported for the priors
+ *
+ */
+@Description("Hamiltonian Monte Carlo operator for popSizes (and samplingIntensity) of BSP and BESP, on the log scale")
+public class SkylineHMCOperator extends Operator {
+
+    final public Input<BSP> skylineInput =
+            new Input<>("skyline", "BSP or BESP skyline whose parameters are updated", Input.Validate.REQUIRED);
+
+    final public Input<MarkovChainDistribution> popSizePriorInput =
+            new Input<>("popSizePrior", "Markov chain prior on popSizes (included in the gradient)");
+
+    final public Input<MarkovChainDistribution> samplingIntensityPriorInput =
+            new Input<>("samplingIntensityPrior", "Markov chain prior on samplingIntensity (included in the gradient)");
+
+    final public Input<Double> stepSizeInput =
+            new Input<>("stepSize", "Step size of the leapfrog integrator", 0.05);
+
+    final public Input<Integer> numStepsInput =
+            new Input<>("numSteps", "Maximum number of leapfrog steps (the number of steps is drawn uniformly between 1 and numSteps)", 10);
+
+    final public Input<Boolean> optimiseInput =
+            new Input<>("optimise", "Flag to indicate that the step size should be tuned", true);
+
+    protected BSP skyline;
+    protected RealParameter popSizes, samplingIntensity;
+    protected SkylineStatistics stats;
+
+    protected int popSizeDimension, dimension;
+    protected double stepSize;
+
+    protected double [] position,
+                        momentum,
+                        values,
+                        gradient;
+    protected double logDensity;
+
+    // Gamma Markov chain priors
+    protected double popSizeShape, samplingIntensityShape;
+    protected boolean popSizeJeffreys, samplingIntensityJeffreys,
+                      popSizeReverse,  samplingIntensityReverse;
+
+
+    @Override
+    public void initAndValidate() {
+
+        skyline  = skylineInput.get();
+        popSizes = skyline.popSizeInput.get();
+        popSizeDimension = popSizes.getDimension();
+
+        if (skyline instanceof BESP) {
+            samplingIntensity = ((BESP) skyline).samplingIntensityInput.get();
+            dimension = popSizeDimension + samplingIntensity.getDimension();
+        } else {
+            if (samplingIntensityPriorInput.get() != null) {
+                throw new IllegalArgumentException("samplingIntensityPrior can only be used with BESP.");
+            }
+            dimension = popSizeDimension;
+        }
+
+        if (popSizePriorInput.get() != null) {
+            MarkovChainDistribution prior = popSizePriorInput.get();
+            checkPrior(prior, popSizes);
+            popSizeShape    = (Double)  prior.getInputValue("shape");
+            popSizeJeffreys = (Boolean) prior.getInputValue("jeffreys");
+            popSizeReverse  = (Boolean) prior.getInputValue("reverse");
+        }
+
+        if (samplingIntensityPriorInput.get() != null) {
+            MarkovChainDistribution prior = samplingIntensityPriorInput.get();
+            checkPrior(prior, samplingIntensity);
+            samplingIntensityShape    = (Double)  prior.getInputValue("shape");
+            samplingIntensityJeffreys = (Boolean) prior.getInputValue("jeffreys");
+            samplingIntensityReverse  = (Boolean) prior.getInputValue("reverse");
+        }
+
+        stepSize = stepSizeInput.get();
+        if (stepSize <= 0.0 || numStepsInput.get() < 1) {
+            throw new IllegalArgumentException("stepSize should be positive and numSteps at least 1.");
+        }
+
+        position = new double[dimension];
+        momentum = new double[dimension];
+        values   = new double[dimension];
+        gradient = new double[dimension];
+    }
+
+
+    private void checkPrior(MarkovChainDistribution prior, RealParameter parameter) {
+
+        if (prior.getInputValue("parameter") != parameter) {
+            throw new IllegalArgumentException("The Markov chain prior "+prior.getID()+" should be on "+parameter.getID()+".");
+        }
+        if ((Boolean) prior.getInputValue("uselog")) {
+            throw new IllegalArgumentException("Only gamma Markov chain priors (uselog=false) are supported by "+getClass().getSimpleName()+".");
+        }
+    }
+
+
+    @Override
+    public double proposal() {
+
+        int    steps = Randomizer.nextInt(numStepsInput.get()) + 1;
+        double kinetic,
+               logJacobian = 0.0;
+
+        // Sufficient statistics are fixed during the trajectory
+        stats = skyline.getStatistics(stats);
+
+        // Initial position and momentum
+        kinetic = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            position[i] = Math.log(getValue(i));
+            momentum[i] = Randomizer.nextGaussian();
+            kinetic    += 0.5*momentum[i]*momentum[i];
+            logJacobian -= position[i];
+        }
+
+        if (!leapfrog(steps)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // Set new values
+        for (int i = 0; i < dimension; i++) {
+            kinetic     -= 0.5*momentum[i]*momentum[i];
+            logJacobian += position[i];
+
+            if (values[i] < getLower(i) || values[i] > getUpper(i)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+        }
+        for (int i = 0; i < dimension; i++) {
+            setValue(i, values[i]);
+        }
+
+        return kinetic + logJacobian;
+    }
+
+
+    /**
+     * Leapfrog trajectory from the current position and momentum (needs the statistics to be up to date)
+     *
+     * @param steps number of leapfrog steps
+     * @return false if the log-density or gradient is not finite along the trajectory
+     */
+    protected boolean leapfrog(int steps) {
+
+        if (!updateGradient()) {
+            return false;
+        }
+        for (int s = 0; s < steps; s++) {
+            for (int i = 0; i < dimension; i++) {
+                momentum[i] += 0.5*stepSize*gradient[i];
+                position[i] += stepSize*momentum[i];
+            }
+
+            if (!updateGradient()) {
+                return false;
+            }
+
+            for (int i = 0; i < dimension; i++) {
+                momentum[i] += 0.5*stepSize*gradient[i];
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Calculate the log-density (logDensity, in the original parameters) and its gradient with respect to the
+     * log-transformed parameters at the current position (values are set to exp(position))
+     *
+     * @return false if the log-density or gradient is not finite
+     */
+    protected boolean updateGradient() {
+
+        double logP;
+
+        for (int i = 0; i < dimension; i++) {
+            values[i] = Math.exp(position[i]);
+        }
+
+        logP = stats.calculateLogLikelihood(values, gradient);
+        if (popSizePriorInput.get() != null) {
+            logP += addMarkovChainGradient(0, popSizeDimension, popSizeShape, popSizeJeffreys, popSizeReverse);
+        }
+        if (samplingIntensityPriorInput.get() != null) {
+            logP += addMarkovChainGradient(popSizeDimension, dimension-popSizeDimension,
+                                           samplingIntensityShape, samplingIntensityJeffreys, samplingIntensityReverse);
+        }
+
+        // Chain rule for the log-transform (and Jacobian)
+        for (int i = 0; i < dimension; i++) {
+            gradient[i] = gradient[i]*values[i] + 1.0;
+            if (Double.isNaN(gradient[i]) || Double.isInfinite(gradient[i])) {
+                return false;
+            }
+        }
+
+        logDensity = logP;
+        return !(Double.isNaN(logP) || Double.isInfinite(logP));
+    }
+
+
+    /**
+     * Add the gradient of a gamma Markov chain prior (as in MarkovChainDistribution) to the gradient and return the
+     * log-density (up to a constant).
+     *
+     * x_i ~ Gamma(shape, x_{i-1}/shape), so that
+     *     log p(x_i | x_{i-1}) = (shape-1)*log(x_i) - shape*x_i/x_{i-1} - shape*log(x_{i-1}) + const
+     *
+     * @param offset   first element of the parameter in values
+     * @param n        dimension of the parameter
+     * @param shape
+     * @param jeffreys Jeffreys prior on the first element
+     * @param reverse  chain runs from the last element to the first
+     * @return
+     */
+    protected double addMarkovChainGradient(int offset, int n, double shape, boolean jeffreys, boolean reverse) {
+
+        int    first = reverse ? offset+n-1 : offset,
+               step  = reverse ? -1 : 1,
+               prev, curr;
+        double logP = 0.0;
+
+        if (jeffreys) {
+            logP            -= Math.log(values[first]);
+            gradient[first] -= 1.0/values[first];
+        }
+
+        for (int i = 1; i < n; i++) {
+            prev = first + (i-1)*step;
+            curr = first + i*step;
+
+            logP += (shape-1.0)*Math.log(values[curr]) - shape*values[curr]/values[prev] - shape*Math.log(values[prev]);
+
+            gradient[curr] += (shape-1.0)/values[curr] - shape/values[prev];
+            gradient[prev] += shape*values[curr]/(values[prev]*values[prev]) - shape/values[prev];
+        }
+
+        return logP;
+    }
+
+
+    private double getValue(int i) {
+        return i < popSizeDimension ? popSizes.getArrayValue(i) : samplingIntensity.getArrayValue(i - popSizeDimension);
+    }
+
+    private void setValue(int i, double value) {
+        if (i < popSizeDimension) {
+            popSizes.setValue(i, value);
+        } else {
+            samplingIntensity.setValue(i - popSizeDimension, value);
+        }
+    }
+
+    private double getLower(int i) {
+        return i < popSizeDimension ? popSizes.getLower() : samplingIntensity.getLower();
+    }
+
+    private double getUpper(int i) {
+        return i < popSizeDimension ? popSizes.getUpper() : samplingIntensity.getUpper();
+    }
+
+
+    /********************/
+    /* Step size tuning */
+    /********************/
+
+    @Override
+    public double getCoercableParameterValue() {
+        return stepSize;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        stepSize = value;
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        if (optimiseInput.get()) {
+            double delta = calcDelta(logAlpha);
+            setCoercableParameterValue(Math.exp(Math.log(stepSize) + delta));
+        }
+    }
+
+    @Override
+    public double getTargetAcceptanceProbability() {
+        return 0.65;
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+
+        double prob = m_nNrAccepted / (m_nNrAccepted + m_nNrRejected + 0.0);
+        double targetProb = getTargetAcceptanceProbability();
+        double ratio = prob / targetProb;
+        if (ratio > 2.0) ratio = 2.0;
+        if (ratio < 0.5) ratio = 0.5;
+
+        DecimalFormat formatter = new DecimalFormat("#.###");
+        if (prob < 0.40) {
+            return "Try setting stepSize to about " + formatter.format(stepSize*ratio);
+        } else if (prob > 0.85) {
+            return "Try setting stepSize to about " + formatter.format(stepSize*ratio);
+        } else return "";
+    }
+
+}
@@ -0,0 +1,210 @@
+package bsp.operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.parameter.IntegerParameter;
+import beast.util.Randomizer;
+import bsp.distributions.BSP;
+
+/******************************************************************
+ * Informed (locally balanced) proposals for skyline group sizes. *
+ ******************************************************************
+ *
+ * - Chooses one boundary between two neighbouring population size groups uniformly and moves it by at most window
+ *   events, keeping the other boundaries fixed
+ * - Every new position y of the boundary is scored by the likelihood ratio r = p(y)/p(x) of the skyline and y is
+ *   proposed with probability g(r)/Z(x), where g is a balancing function (g(r) = r*g(1/r)), either sqrt(r) or
+ *   r/(1+r) (Barker), and Z(x) the sum over all positions. The Hastings ratio is the exact reverse-move correction
+ *      log(g(1/r)/Z(y)) - log(g(r)/Z(x))
+ * - Only the two groups next to the boundary change, so every position is scored from the sufficient statistics of
+ *   the skyline in O(log(groups)) (BSP.getGroupLogP()) without recalculating the likelihood
+ * - Positions that violate the bounds of the parameter or minWidth are never proposed
+ * - Only the skyline likelihood is used for scoring, the rest of the posterior is accounted for in the acceptance
+ *   probability as usual
+ * - Works on popSizeGroupSizes of BSP and BESP
+ *
+ */
+@Description("Moves a boundary between two population size groups of a BSP or BESP skyline, proposing new positions in " +
+             "proportion to a balancing function of their likelihood ratios")
+public class SkylineInformedGroupSizeOperator extends Operator {
+
+    public enum Balancing { sqrt, barker }
+
+    final public Input<BSP> skylineInput =
+            new Input<>("skyline", "BSP or BESP skyline the group sizes belong to", Input.Validate.REQUIRED);
+
+    final public Input<IntegerParameter> groupSizesInput =
+            new Input<>("groupSizes", "Population size group sizes of the skyline (popSizeGroupSizes)", Input.Validate.REQUIRED);
+
+    final public Input<Integer> windowInput =
+            new Input<>("window", "Maximum number of events a boundary is moved by", 4);
+
+    final public Input<Balancing> balancingInput =
+            new Input<>("balancing", "Balancing function of the likelihood ratio r, sqrt(r) or r/(1+r) (barker)",
+                        Balancing.sqrt, Balancing.values());
+
+    protected BSP skyline;
+    protected IntegerParameter groupSizes;
+    protected Balancing balancing;
+
+    protected int window,
+                  lower, upper;
+
+    // Log-likelihood and log-weight of each position of the boundary (boundary + d at index d + window)
+    protected double [] logPs,
+                        logWeights;
+
+
+    @Override
+    public void initAndValidate() {
+
+        skyline    = skylineInput.get();
+        groupSizes = groupSizesInput.get();
+        window     = windowInput.get();
+        balancing  = balancingInput.get();
+
+        if (groupSizes != skyline.getPopSizeGroupSizes()) {
+            throw new IllegalArgumentException("Group sizes should be the popSizeGroupSizes of the skyline.");
+        }
+
+        if (groupSizes.getDimension() < 2) {
+            throw new IllegalArgumentException("There should be at least two groups to move a boundary between.");
+        }
+
+        if (window < 1) {
+            throw new IllegalArgumentException("The window should be at least 1.");
+        }
+
+        logPs      = new double[2*window+1];
+        logWeights = new double[2*window+1];
+    }
+
+
+    @Override
+    public double proposal() {
+
+        int    j, start, boundary, end, d;
+        double logP, logZ, logForward;
+
+        lower = Math.max(groupSizes.getLower(), 1);
+        upper = groupSizes.getUpper();
+
+        // Boundary between groups j and j+1
+        j     = Randomizer.nextInt(groupSizes.getDimension()-1);
+        start = 0;
+        for (int i = 0; i < j; i++) {
+            start += groupSizes.getNativeValue(i);
+        }
+        boundary = start + groupSizes.getNativeValue(j);
+        end      = boundary + groupSizes.getNativeValue(j+1);
+
+        logP = getLogP(j, start, boundary, end);
+        if (logP == Double.NEGATIVE_INFINITY) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // Forward move
+        logZ = scorePositions(j, start, boundary, end, logP);
+        if (logZ == Double.NEGATIVE_INFINITY) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        d = drawPosition(logZ);
+        logForward = logWeights[d+window] - logZ;
+
+        // Reverse move (from the new position back to the old one)
+        double newLogP = logPs[d+window];
+        logZ = scorePositions(j, start, boundary+d, end, newLogP);
+
+        groupSizes.setValue(j,   boundary+d - start);
+        groupSizes.setValue(j+1, end - boundary-d);
+
+        return getLogBalance(logP - newLogP) - logZ - logForward;
+    }
+
+
+    /**
+     * Score all valid positions of the boundary around boundary (stored in logPs and logWeights)
+     *
+     * @return log of the sum of the weights (-Infinity if there are no valid positions)
+     */
+    protected double scorePositions(int j, int start, int boundary, int end, double logP) {
+
+        int    b;
+        double max = Double.NEGATIVE_INFINITY,
+               sum = 0.0;
+
+        for (int d = -window; d <= window; d++) {
+            b = boundary + d;
+            if (d == 0 || b-start < lower || b-start > upper || end-b < lower || end-b > upper) {
+                logPs[d+window]      = Double.NEGATIVE_INFINITY;
+                logWeights[d+window] = Double.NEGATIVE_INFINITY;
+            } else {
+                logPs[d+window]      = getLogP(j, start, b, end);
+                logWeights[d+window] = logPs[d+window] == Double.NEGATIVE_INFINITY ? Double.NEGATIVE_INFINITY
+                                                                                     : getLogBalance(logPs[d+window] - logP);
+            }
+            max = Math.max(max, logWeights[d+window]);
+        }
+
+        if (max == Double.NEGATIVE_INFINITY) {
+            return max;
+        }
+
+        for (int k = 0; k < logWeights.length; k++) {
+            sum += Math.exp(logWeights[k] - max);
+        }
+        return max + Math.log(sum);
+    }
+
+
+    /**
+     * Draw a position in proportion to the weights
+     *
+     * @return offset d of the new position
+     */
+    protected int drawPosition(double logZ) {
+
+        double u   = Randomizer.nextDouble(),
+               sum = 0.0;
+        int    last = 0;
+
+        for (int k = 0; k < logWeights.length; k++) {
+            if (logWeights[k] > Double.NEGATIVE_INFINITY) {
+                sum += Math.exp(logWeights[k] - logZ);
+                last = k;
+                if (u < sum) {
+                    break;
+                }
+            }
+        }
+
+        return last - window;
+    }
+
+
+    /**
+     * Log-likelihood of groups j and j+1 (up to terms that do not depend on the boundary between them)
+     */
+    protected double getLogP(int j, int start, int boundary, int end) {
+        return skyline.getGroupLogP(j, start, boundary) + skyline.getGroupLogP(j+1, boundary, end);
+    }
+
+
+    /**
+     * @param logR log of the likelihood ratio
+     * @return log(g(r))
+     */
+    protected double getLogBalance(double logR) {
+
+        switch (balancing) {
+            case barker:
+                // log(r/(1+r)) = -log(1+1/r)
+                return logR > 0 ? -Math.log1p(Math.exp(-logR)) : logR - Math.log1p(Math.exp(logR));
+            case sqrt:
+            default:
+                return 0.5*logR;
+        }
+    }
+
+}
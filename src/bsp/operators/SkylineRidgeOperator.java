@@ -0,0 +1,141 @@
+package bsp.operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import bsp.distributions.BESP;
+
+import java.text.DecimalFormat;
+
+/****************************************************************************
+ * Joint scale operator for popSizes and samplingIntensity along the ridge. *
+ ****************************************************************************
+ *
+ * - The sampling part of the BESP likelihood depends on popSizes and samplingIntensity through the product N*beta,
+ *   so the posterior has a ridge where N*beta is constant and independent scale operators on either parameter have
+ *   low acceptance probabilities
+ * - Chooses one population size group j uniformly, scales N_j by s and every sampling intensity group that overlaps
+ *   with group j (before the last sample) by 1/s, so N_j*beta_m stays the same where the groups overlap
+ * - s is drawn uniformly between scaleFactor and 1/scaleFactor (as ScaleOperator). With k sampling intensities
+ *   scaled the Hastings ratio (including the Jacobian) is
+ *      (1 - k - 2)*log(s)
+ * - Only popSizes and samplingIntensity change, so BESP recalculates the likelihood from its sufficient statistics
+ *   in O(groups) instead of O(intervals). Finding the overlapping sampling intensity groups stops at the end of group
+ *   j, so a proposal is O(j + k).
+ * - The scale factor is tuned
+ *
+ */
+@Description("Scales a population size group of a BESP skyline and the overlapping sampling intensity groups in opposite " +
+             "directions, keeping their product constant")
+public class SkylineRidgeOperator extends Operator {
+
+    final public Input<BESP> skylineInput =
+            new Input<>("skyline", "BESP skyline whose parameters are updated", Input.Validate.REQUIRED);
+
+    final public Input<Double> scaleFactorInput =
+            new Input<>("scaleFactor", "Scaling factor: range from scaleFactor to 1/scaleFactor", 0.75);
+
+    final public Input<Boolean> optimiseInput =
+            new Input<>("optimise", "Flag to indicate that the scale factor should be tuned", true);
+
+    protected BESP skyline;
+    protected RealParameter popSizes, samplingIntensity;
+
+    protected double scaleFactor;
+
+
+    @Override
+    public void initAndValidate() {
+
+        skyline           = skylineInput.get();
+        popSizes          = skyline.popSizeInput.get();
+        samplingIntensity = skyline.samplingIntensityInput.get();
+
+        scaleFactor = scaleFactorInput.get();
+        if (scaleFactor <= 0.0 || scaleFactor >= 1.0) {
+            throw new IllegalArgumentException("scaleFactor should be between 0 and 1.");
+        }
+    }
+
+
+    @Override
+    public double proposal() {
+
+        int    j = Randomizer.nextInt(popSizes.getDimension()),
+               k = 0;
+        double scale = scaleFactor + Randomizer.nextDouble()*(1.0/scaleFactor - scaleFactor),
+               start = j > 0 ? skyline.getPopSizeChangeTime(j-1) : 0.0,
+               end   = j < popSizes.getDimension()-1 ? skyline.getPopSizeChangeTime(j) : Double.POSITIVE_INFINITY,
+               value;
+
+        // Sampling intensity groups overlapping with (start, end] (change times are increasing)
+        double groupStart = 0.0, groupEnd;
+        for (int m = 0; m < samplingIntensity.getDimension() && groupStart < end; m++) {
+            groupEnd = skyline.getSamplingIntensityChangeTime(m);
+            if (groupStart < end && groupEnd > start) {
+                value = samplingIntensity.getValue(m) / scale;
+                if (value < samplingIntensity.getLower() || value > samplingIntensity.getUpper()) {
+                    return Double.NEGATIVE_INFINITY;
+                }
+                samplingIntensity.setValue(m, value);
+                k++;
+            }
+            groupStart = groupEnd;
+        }
+
+        value = popSizes.getValue(j) * scale;
+        if (value < popSizes.getLower() || value > popSizes.getUpper()) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        popSizes.setValue(j, value);
+
+        return (1 - k - 2)*Math.log(scale);
+    }
+
+
+    /***********************/
+    /* Scale factor tuning */
+    /***********************/
+
+    @Override
+    public double getCoercableParameterValue() {
+        return scaleFactor;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        scaleFactor = value;
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        if (optimiseInput.get()) {
+            double delta = calcDelta(logAlpha);
+            delta += Math.log(1.0/scaleFactor - 1.0);
+            setCoercableParameterValue(1.0/(Math.exp(delta) + 1.0));
+        }
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+
+        double prob = m_nNrAccepted / (m_nNrAccepted + m_nNrRejected + 0.0);
+        double targetProb = getTargetAcceptanceProbability();
+        double ratio = prob / targetProb;
+        if (ratio > 2.0) ratio = 2.0;
+        if (ratio < 0.5) ratio = 0.5;
+
+        // new scale factor
+        double sf = Math.pow(scaleFactor, ratio);
+
+        DecimalFormat formatter = new DecimalFormat("#.###");
+        if (prob < 0.10) {
+            return "Try setting scaleFactor to about " + formatter.format(sf);
+        } else if (prob > 0.40) {
+            return "Try setting scaleFactor to about " + formatter.format(sf);
+        } else return "";
+    }
+
+}
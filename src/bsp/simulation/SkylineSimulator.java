@@ -0,0 +1,397 @@
+package bsp.simulation;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Runnable;
+import beast.core.parameter.RealParameter;
+import beast.core.util.Log;
+import beast.util.Randomizer;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**************************************************
+ * Simulate trees under the BSP or BESP model.    *
+ **************************************************
+ *
+ * - Population sizes are piecewise constant, N(t) = popSizes[j] between popSizeChangeTimes[j-1] and
+ *   popSizeChangeTimes[j] (the last population size extends to infinity). Times are the distance from the present.
+ * - BSP: sampling times are fixed (samplingTimes, or sampleCount samples at time 0)
+ * - BESP: sampling times are drawn from a Poisson process with rate beta(t)*N(t), where the sampling intensity
+ *   beta(t) = samplingIntensity[m] between samplingIntensityChangeTimes[m-1] and samplingIntensityChangeTimes[m] and
+ *   0 after the last change time (the end of sampling). If sampleCount is given the process is conditioned on
+ *   sampleCount samples, otherwise it is conditioned on at least 2 samples.
+ * - Genealogies are simulated backwards in time under the coalescent with rate (k choose 2)/N(t)
+ * - Every tree gets its own random number stream, split from a single SplittableRandom in the order of the trees, so
+ *   the output only depends on the seed and not on the number of threads
+ * - Trees are simulated on a thread pool and written to fileName as Newick (one tree per line) in order. At most
+ *   bufferSize trees are kept in memory, so memory use does not grow with treeCount.
+ * - Tips are labelled t1, t2, ... in the order of their sampling times (most recent first)
+ *
+ */
+@Description("Simulates sampling times and genealogies under the BSP or BESP model and writes them to a Newick file")
+public class SkylineSimulator extends Runnable {
+
+    final public Input<RealParameter> popSizeInput =
+            new Input<>("popSizes", "Effective population sizes (most recent first)", Input.Validate.REQUIRED);
+
+    final public Input<RealParameter> popSizeChangeTimesInput =
+            new Input<>("popSizeChangeTimes", "Times when the population size changes (dimension one less than popSizes)");
+
+    final public Input<RealParameter> samplingTimesInput =
+            new Input<>("samplingTimes", "Fixed sampling times (BSP, distance from the present)");
+
+    final public Input<Integer> sampleCountInput =
+            new Input<>("sampleCount", "Number of samples at time 0 (BSP) or number of samples to condition on (BESP)");
+
+    final public Input<RealParameter> samplingIntensityInput =
+            new Input<>("samplingIntensity", "Sampling intensities (BESP, most recent first)");
+
+    final public Input<RealParameter> samplingIntensityChangeTimesInput =
+            new Input<>("samplingIntensityChangeTimes", "Times when the sampling intensity changes (BESP, same dimension as "+
+                        "samplingIntensity, the last time is the end of sampling)");
+
+    final public Input<Integer> treeCountInput =
+            new Input<>("treeCount", "Number of trees to simulate", 1);
+
+    final public Input<Long> seedInput =
+            new Input<>("seed", "Seed of the random number streams (the BEAST seed if not given)");
+
+    final public Input<Integer> threadsInput =
+            new Input<>("threads", "Number of threads (number of processors if not given)");
+
+    final public Input<Integer> bufferSizeInput =
+            new Input<>("bufferSize", "Maximum number of simulated trees kept in memory before writing", 1000);
+
+    final public Input<String> fileNameInput =
+            new Input<>("fileName", "Name of the file the trees are written to", Input.Validate.REQUIRED);
+
+    protected double [] popSizes,
+                        popSizeChangeTimes,
+                        samplingTimes,
+                        samplingIntensity,
+                        samplingIntensityChangeTimes;
+
+    // Sampling rate beta(t)*N(t) on segments (BESP)
+    protected double [] segmentEnds,
+                        segmentRates,
+                        cumulativeSegmentMass;
+
+    protected int sampleCount;
+
+
+    @Override
+    public void initAndValidate() {
+
+        popSizes           = getValues(popSizeInput.get());
+        popSizeChangeTimes = getValues(popSizeChangeTimesInput.get());
+        if (popSizeChangeTimes.length != popSizes.length-1) {
+            throw new IllegalArgumentException("The dimension of popSizeChangeTimes should be one less than the dimension of popSizes.");
+        }
+        checkIncreasing(popSizeChangeTimes, "popSizeChangeTimes");
+        for (double popSize : popSizes) {
+            if (!(popSize > 0.0)) {
+                throw new IllegalArgumentException("Population sizes should be positive.");
+            }
+        }
+
+        sampleCount = sampleCountInput.get() != null ? sampleCountInput.get() : 0;
+
+        if (samplingIntensityInput.get() != null) {
+            // BESP
+            if (samplingTimesInput.get() != null) {
+                throw new IllegalArgumentException("Only one of samplingTimes and samplingIntensity should be specified.");
+            }
+            samplingIntensity            = getValues(samplingIntensityInput.get());
+            samplingIntensityChangeTimes = getValues(samplingIntensityChangeTimesInput.get());
+            if (samplingIntensityChangeTimes.length != samplingIntensity.length) {
+                throw new IllegalArgumentException("samplingIntensityChangeTimes should have the same dimension as samplingIntensity.");
+            }
+            checkIncreasing(samplingIntensityChangeTimes, "samplingIntensityChangeTimes");
+            initSamplingSegments();
+
+            if (cumulativeSegmentMass[cumulativeSegmentMass.length-1] <= 0.0) {
+                throw new IllegalArgumentException("The expected number of samples is 0.");
+            }
+            if (sampleCountInput.get() != null && sampleCount < 2) {
+                throw new IllegalArgumentException("sampleCount should be at least 2.");
+            }
+        } else {
+            // BSP
+            if (samplingIntensityChangeTimesInput.get() != null) {
+                throw new IllegalArgumentException("samplingIntensityChangeTimes can only be used with samplingIntensity.");
+            }
+            if ((samplingTimesInput.get() == null) == (sampleCountInput.get() == null)) {
+                throw new IllegalArgumentException("Exactly one of samplingTimes and sampleCount should be specified.");
+            }
+            samplingTimes = samplingTimesInput.get() != null ? getValues(samplingTimesInput.get()) : new double[sampleCount];
+            Arrays.sort(samplingTimes);
+            if (samplingTimes.length < 2 || samplingTimes[0] < 0.0) {
+                throw new IllegalArgumentException("There should be at least 2 samples, at non-negative times.");
+            }
+        }
+
+        if (treeCountInput.get() < 0 || bufferSizeInput.get() < 1 || (threadsInput.get() != null && threadsInput.get() < 1)) {
+            throw new IllegalArgumentException("treeCount should be non-negative and bufferSize and threads positive.");
+        }
+    }
+
+
+    private static double [] getValues(RealParameter parameter) {
+
+        double [] values = new double[parameter == null ? 0 : parameter.getDimension()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = parameter.getArrayValue(i);
+        }
+        return values;
+    }
+
+
+    private static void checkIncreasing(double [] times, String name) {
+
+        double prev = 0.0;
+        for (double t : times) {
+            if (!(t > prev)) {
+                throw new IllegalArgumentException(name + " should be positive and strictly increasing.");
+            }
+            prev = t;
+        }
+    }
+
+
+    /**
+     * Merge population size and sampling intensity change times into segments with constant sampling rate
+     * beta(t)*N(t), up to the end of sampling
+     */
+    protected void initSamplingSegments() {
+
+        double end   = samplingIntensityChangeTimes[samplingIntensityChangeTimes.length-1],
+               start = 0.0;
+        int    j = 0, m = 0, s = 0,
+               n = samplingIntensity.length + popSizeChangeTimes.length;
+
+        segmentEnds           = new double[n];
+        segmentRates          = new double[n];
+        cumulativeSegmentMass = new double[n];
+
+        while (start < end) {
+            double next = Math.min(samplingIntensityChangeTimes[m], j < popSizeChangeTimes.length ? popSizeChangeTimes[j] : end);
+
+            segmentEnds[s]           = next;
+            segmentRates[s]          = samplingIntensity[m]*popSizes[j];
+            cumulativeSegmentMass[s] = (s > 0 ? cumulativeSegmentMass[s-1] : 0.0) + segmentRates[s]*(next - start);
+            s++;
+
+            if (j < popSizeChangeTimes.length && popSizeChangeTimes[j] == next) j++;
+            if (samplingIntensityChangeTimes[m] == next) m++;
+            start = next;
+        }
+
+        segmentEnds           = Arrays.copyOf(segmentEnds, s);
+        segmentRates          = Arrays.copyOf(segmentRates, s);
+        cumulativeSegmentMass = Arrays.copyOf(cumulativeSegmentMass, s);
+    }
+
+
+    @Override
+    public void run() throws IOException, InterruptedException, ExecutionException {
+
+        int  treeCount  = treeCountInput.get(),
+             bufferSize = bufferSizeInput.get(),
+             threads    = threadsInput.get() != null ? threadsInput.get() : Runtime.getRuntime().availableProcessors();
+        long seed       = seedInput.get() != null ? seedInput.get() : Randomizer.getSeed();
+
+        SplittableRandom random  = new SplittableRandom(seed);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+
+        try (Writer out = new BufferedWriter(new FileWriter(fileNameInput.get()))) {
+
+            int submitted = 0;
+            while (submitted < treeCount || !pending.isEmpty()) {
+
+                // Keep at most bufferSize trees in memory (streams are split in tree order)
+                while (submitted < treeCount && pending.size() < bufferSize) {
+                    final SplittableRandom stream = random.split();
+                    pending.add(executor.submit(() -> simulateTree(stream)));
+                    submitted++;
+                }
+
+                out.write(pending.poll().get());
+                out.write('\n');
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Log.info.println("Simulated " + treeCount + " trees to " + fileNameInput.get());
+    }
+
+
+    /**
+     * Simulate a tree (thread-safe, all state is local)
+     *
+     * @param random
+     * @return Newick string
+     */
+    public String simulateTree(SplittableRandom random) {
+
+        double [] times = samplingIntensity != null ? simulateSamplingTimes(random) : samplingTimes;
+
+        int    n = times.length,
+               nodeCount = n,
+               k = 0,
+               next = 0;
+        double t = times[0],
+               coalescentTime;
+
+        double [] heights  = new double[2*n-1];
+        int    [] children = new int[2*(n-1)],
+                  active   = new int[n];
+
+        while (next < n || k > 1) {
+
+            coalescentTime = k > 1 ? getCoalescentTime(t, k, -Math.log(1.0 - random.nextDouble())) : Double.POSITIVE_INFINITY;
+
+            if (next < n && times[next] <= coalescentTime) {
+                // Sample
+                t = times[next];
+                heights[next] = t;
+                active[k++]   = next++;
+            } else {
+                // Coalescence of two random lineages
+                t = coalescentTime;
+                int a = random.nextInt(k),
+                    b = random.nextInt(k-1);
+                if (b >= a) b++;
+
+                heights[nodeCount]            = t;
+                children[2*(nodeCount-n)]     = active[a];
+                children[2*(nodeCount-n) + 1] = active[b];
+
+                active[a] = nodeCount++;
+                active[b] = active[--k];
+            }
+        }
+
+        StringBuilder newick = new StringBuilder();
+        toNewick(newick, nodeCount-1, n, heights, children);
+        return newick.append(';').toString();
+    }
+
+
+    /**
+     * Time of the next coalescent event from time t with k lineages, where the integrated rate should equal the
+     * exponential draw
+     *
+     * @param t
+     * @param k
+     * @param exponential Exp(1) random variable
+     * @return
+     */
+    protected double getCoalescentTime(double t, int k, double exponential) {
+
+        double rate = k*(k-1)/2.0,
+               end;
+
+        int j = 0;
+        while (j < popSizeChangeTimes.length && popSizeChangeTimes[j] <= t) {
+            j++;
+        }
+
+        while (true) {
+            end = j < popSizeChangeTimes.length ? popSizeChangeTimes[j] : Double.POSITIVE_INFINITY;
+            if (t + exponential*popSizes[j]/rate <= end) {
+                return t + exponential*popSizes[j]/rate;
+            }
+            exponential -= (end - t)*rate/popSizes[j];
+            t = end;
+            j++;
+        }
+    }
+
+
+    /**
+     * Draw sampling times from the Poisson process with rate beta(t)*N(t) (BESP), conditioned on sampleCount samples
+     * if given, or at least 2 samples otherwise
+     *
+     * @param random
+     * @return sorted sampling times
+     */
+    protected double [] simulateSamplingTimes(SplittableRandom random) {
+
+        double [] times;
+
+        if (sampleCount > 0) {
+            // Given the number of samples, the times are independent with density proportional to the rate
+            double total = cumulativeSegmentMass[cumulativeSegmentMass.length-1];
+            times = new double[sampleCount];
+            for (int i = 0; i < sampleCount; i++) {
+                int s = Arrays.binarySearch(cumulativeSegmentMass, random.nextDouble()*total);
+                if (s < 0) {
+                    s = -s - 1;
+                }
+                s = Math.min(s, segmentEnds.length-1);
+
+                double start = s > 0 ? segmentEnds[s-1] : 0.0;
+                times[i] = start + random.nextDouble()*(segmentEnds[s] - start);
+            }
+        } else {
+            times = new double[16];
+            int count;
+            do {
+                count = 0;
+                double start = 0.0;
+                for (int s = 0; s < segmentEnds.length; s++) {
+                    double t = start;
+                    while (segmentRates[s] > 0.0) {
+                        t += -Math.log(1.0 - random.nextDouble())/segmentRates[s];
+                        if (t >= segmentEnds[s]) {
+                            break;
+                        }
+                        if (count == times.length) {
+                            times = Arrays.copyOf(times, 2*count);
+                        }
+                        times[count++] = t;
+                    }
+                    start = segmentEnds[s];
+                }
+            } while (count < 2);
+            times = Arrays.copyOf(times, count);
+        }
+
+        Arrays.sort(times);
+        return times;
+    }
+
+
+    /**
+     * Write the subtree below node (tips are 0..n-1, internal node i has children[2*(i-n)] and children[2*(i-n)+1])
+     */
+    private static void toNewick(StringBuilder newick, int node, int n, double [] heights, int [] children) {
+
+        if (node < n) {
+            newick.append('t').append(node+1);
+        } else {
+            int left  = children[2*(node-n)],
+                right = children[2*(node-n) + 1];
+
+            newick.append('(');
+            toNewick(newick, left, n, heights, children);
+            newick.append(':').append(heights[node] - heights[left]).append(',');
+            toNewick(newick, right, n, heights, children);
+            newick.append(':').append(heights[node] - heights[right]).append(')');
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+package bsp.util;
+
+import beast.core.Logger;
+import beast.core.util.Log;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*****************************************************
+ * Run many small BEAST analyses in one JVM.         *
+ *****************************************************
+ *
+ * - Runs every XML file in a directory, or one template XML for every tree (Newick, one per line) in a tree file,
+ *   on a fixed number of worker threads, so JVM startup is shared by all runs and class loading and JIT compilation
+ *   by the runs of a worker
+ * - In every XML $(seed) and $(filebase) are replaced by the seed and the output file base of the run (the output
+ *   directory plus the XML name, or the template name and tree number), and $(tree) by the tree (template only).
+ *   Loggers should use $(filebase) in their file names to keep the output of the runs apart. The XML of every run is
+ *   written to [filebase].batch.xml before parsing.
+ * - Seeds of the runs are drawn from the batch seed in the order of the runs
+ * - BEAST has static state, e.g. a single random number generator (Randomizer) and Logger.FILE_MODE. Every worker
+ *   loads BEAST in its own class loader (from the class path of BatchRunner), so concurrent runs do not share it and
+ *   every run is reproducible from its seed with any number of threads. Runs are called by reflection
+ *   (runIsolated()).
+ * - At most 2*threads runs are queued at a time, so the tree file is read as the runs progress
+ * - A run that fails is reported and does not stop the batch, the exit code is the number of failed runs (max 255)
+ *
+ * Usage: BatchRunner [-threads N] [-seed S] [-out DIR] [-overwrite] (XMLDIR | -template XML -trees FILE)
+ *
+ */
+public class BatchRunner {
+
+    protected final int threads;
+    protected final File outputDir;
+    protected final SplittableRandom seeds;
+
+    protected final AtomicInteger runs     = new AtomicInteger(),
+                                  failures = new AtomicInteger();
+
+    // Class loader of every worker thread (closed when a batch is finished)
+    protected final List<URLClassLoader> loaders = new ArrayList<>();
+    protected final ThreadLocal<Method>  runMethod = new ThreadLocal<>();
+
+
+    /**
+     * @param threads   number of worker threads
+     * @param seed      seed used to draw the seeds of the runs (null for the current time)
+     * @param outputDir directory for the output of the runs
+     */
+    public BatchRunner(int threads, Long seed, File outputDir) {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads should be at least 1.");
+        }
+
+        this.threads   = threads;
+        this.outputDir = outputDir;
+        this.seeds     = new SplittableRandom(seed != null ? seed : System.currentTimeMillis());
+    }
+
+
+    /**
+     * Run every .xml file in a directory (in alphabetical order)
+     *
+     * @param dir
+     * @return number of failed runs
+     */
+    public int runDirectory(File dir) throws IOException, InterruptedException {
+
+        File [] files = dir.listFiles((d, name) -> name.endsWith(".xml") && !name.endsWith(".batch.xml"));
+        if (files == null) {
+            throw new IOException("Cannot read directory " + dir);
+        }
+        Arrays.sort(files);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore       queue    = new Semaphore(2*threads);
+        try {
+            for (File file : files) {
+                String name = file.getName().substring(0, file.getName().length()-4);
+                submit(executor, queue, name, new String(Files.readAllBytes(file.toPath()), "UTF-8"), null);
+            }
+        } finally {
+            shutdown(executor);
+        }
+
+        return failures.get();
+    }
+
+
+    /**
+     * Run a template XML once for every tree in a tree file (Newick, one tree per line, empty lines are skipped)
+     *
+     * @param template
+     * @param trees
+     * @return number of failed runs
+     */
+    public int runTemplate(File template, File trees) throws IOException, InterruptedException {
+
+        String xml  = new String(Files.readAllBytes(template.toPath()), "UTF-8"),
+               base = template.getName().replaceAll("\\.xml$", ""),
+               tree;
+        int    i = 0;
+
+        if (!xml.contains("$(tree)")) {
+            throw new IllegalArgumentException("The template should contain $(tree).");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore       queue    = new Semaphore(2*threads);
+        try (BufferedReader reader = new BufferedReader(new FileReader(trees))) {
+            while ((tree = reader.readLine()) != null) {
+                tree = tree.trim();
+                if (!tree.isEmpty()) {
+                    i++;
+                    submit(executor, queue, base + "_" + i, xml, tree);
+                }
+            }
+        } finally {
+            shutdown(executor);
+        }
+
+        return failures.get();
+    }
+
+
+    protected void submit(ExecutorService executor, Semaphore queue, String name, String xml, String tree) throws InterruptedException {
+
+        final long   seed     = seeds.nextLong(Long.MAX_VALUE);
+        final String fileBase = new File(outputDir, name).getPath();
+
+        queue.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    run(name, xml, tree, seed, fileBase);
+                } finally {
+                    queue.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            queue.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Substitute the variables, write the XML of the run and run it (failures are logged)
+     */
+    protected void run(String name, String xml, String tree, long seed, String fileBase) {
+
+        long start = System.currentTimeMillis();
+
+        try {
+            xml = xml.replace("$(seed)", Long.toString(seed)).replace("$(filebase)", fileBase);
+            if (tree != null) {
+                xml = xml.replace("$(tree)", tree);
+            }
+
+            File file = new File(fileBase + ".batch.xml");
+            try (Writer out = new FileWriter(file)) {
+                out.write(xml);
+            }
+
+            try {
+                getRunMethod().invoke(null, file.getPath(), seed, Logger.FILE_MODE.name());
+            } catch (InvocationTargetException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+
+            Log.info.println("Run " + runs.incrementAndGet() + " (" + name + ", seed " + seed + ") finished in "
+                           + (System.currentTimeMillis() - start)/1000.0 + " seconds");
+
+        } catch (Exception e) {
+            runs.incrementAndGet();
+            failures.incrementAndGet();
+            Log.err.println("Run " + name + " (seed " + seed + ") failed: " + e);
+        }
+    }
+
+
+    /**
+     * Run an XML file with a seed (called by reflection in the class loader of a worker)
+     *
+     * @param file
+     * @param seed
+     * @param fileMode Logger.FILE_MODE of the batch
+     */
+    public static void runIsolated(String file, long seed, String fileMode) throws Exception {
+
+        Logger.FILE_MODE = Logger.LogFileMode.valueOf(fileMode);
+        Randomizer.setSeed(seed);
+        new XMLParser().parseFile(new File(file)).run();
+    }
+
+
+    /**
+     * @return runIsolated() in the class loader of the current worker (created the first time)
+     */
+    protected Method getRunMethod() throws ReflectiveOperationException, MalformedURLException {
+
+        Method method = runMethod.get();
+        if (method == null) {
+            // Parent is the parent of the system class loader, so BEAST and this package are loaded again
+            URLClassLoader loader = new URLClassLoader(getClassPath(), ClassLoader.getSystemClassLoader().getParent());
+            synchronized (loaders) {
+                loaders.add(loader);
+            }
+            Thread.currentThread().setContextClassLoader(loader);
+
+            method = loader.loadClass(BatchRunner.class.getName()).getMethod("runIsolated", String.class, long.class, String.class);
+            runMethod.set(method);
+        }
+        return method;
+    }
+
+
+    private static URL [] getClassPath() throws MalformedURLException {
+
+        // Includes packages added to the class path by BEAST
+        if (BatchRunner.class.getClassLoader() instanceof URLClassLoader) {
+            return ((URLClassLoader) BatchRunner.class.getClassLoader()).getURLs();
+        }
+
+        String [] paths = System.getProperty("java.class.path").split(File.pathSeparator);
+        URL    [] urls  = new URL[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            urls[i] = new File(paths[i]).toURI().toURL();
+        }
+        return urls;
+    }
+
+
+    private void shutdown(ExecutorService executor) throws InterruptedException {
+
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // wait for the remaining runs
+        }
+
+        synchronized (loaders) {
+            for (URLClassLoader loader : loaders) {
+                try {
+                    loader.close();
+                } catch (IOException e) {
+                    Log.warning.println("WARNING: Could not close the class loader of a worker: " + e);
+                }
+            }
+            loaders.clear();
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+
+        Integer threads   = null;
+        Long    seed      = null;
+        File    outputDir = new File("."),
+                dir       = null,
+                template  = null,
+                trees     = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-threads":   threads   = Integer.parseInt(args[++i]); break;
+                    case "-seed":      seed      = Long.parseLong(args[++i]);   break;
+                    case "-out":       outputDir = new File(args[++i]);         break;
+                    case "-template":  template  = new File(args[++i]);         break;
+                    case "-trees":     trees     = new File(args[++i]);         break;
+                    case "-overwrite": Logger.FILE_MODE = Logger.LogFileMode.overwrite; break;
+                    default:
+                        if (args[i].startsWith("-") || dir != null) {
+                            throw new IllegalArgumentException("Unknown argument " + args[i]);
+                        }
+                        dir = new File(args[i]);
+                }
+            }
+            if ((dir == null) == (template == null) || (template == null) != (trees == null)) {
+                throw new IllegalArgumentException("Give either a directory of XML files or -template and -trees.");
+            }
+            if (threads == null) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+        } catch (RuntimeException e) {
+            Log.err.println(e.getMessage() + "\n"
+                          + "Usage: BatchRunner [-threads N] [-seed S] [-out DIR] [-overwrite] (XMLDIR | -template XML -trees FILE)");
+            System.exit(255);
+        }
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outputDir);
+        }
+
+        BatchRunner runner = new BatchRunner(threads, seed, outputDir);
+        int failed = dir != null ? runner.runDirectory(dir) : runner.runTemplate(template, trees);
+
+        Log.info.println(runner.runs.get() + " runs finished, " + failed + " failed");
+        System.exit(Math.min(failed, 255));
+    }
+
+}
@@ -0,0 +1,43 @@
+package bsp.util;
+
+import java.io.PrintStream;
+
+/********************************************
+ * Prints doubles to a log without garbage. *
+ ********************************************
+ *
+ * - Writes the same text as PrintStream.print(double), but formats into a reused StringBuilder and byte buffer
+ *   instead of allocating a String for every value
+ * - Not thread-safe (every logger has its own)
+ *
+ */
+final class DoublePrinter {
+
+    private final StringBuilder text  = new StringBuilder(32);
+    private       byte []       bytes = new byte[32];
+
+
+    /**
+     * Print a value followed by a separator
+     *
+     * @param out
+     * @param value
+     * @param separator
+     */
+    void print(PrintStream out, double value, char separator) {
+
+        text.setLength(0);
+        text.append(value).append(separator);
+
+        // Double.toString() only uses ASCII characters
+        final int length = text.length();
+        if (bytes.length < length) {
+            bytes = new byte[length];
+        }
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        out.write(bytes, 0, length);
+    }
+
+}
@@ -0,0 +1,87 @@
+package bsp.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*******************************************
+ * Performance counters for BSP and BESP.  *
+ *******************************************
+ *
+ * - Counts calls to calculateLogP() and updateArrays(), full recalculations (walking over all intervals) and partial
+ *   recalculations (only estimated change times updated), minWidth rejections, stores and restores, and the
+ *   cumulative time spent in calculateLogP()
+ * - Only collected if counters have been set on the skyline (e.g. by skylineCounterLogger), otherwise the overhead
+ *   is a single null check
+ * - Counters can be written by the MCMC thread and by the worker calculating the likelihood asynchronously, and read
+ *   over JMX, so they are LongAdders
+ *
+ */
+public class SkylineCounters implements SkylineCountersMBean {
+
+    protected final LongAdder logPCalculations      = new LongAdder(),
+                              arrayUpdates          = new LongAdder(),
+                              fullRecalculations    = new LongAdder(),
+                              partialRecalculations = new LongAdder(),
+                              minWidthRejections    = new LongAdder(),
+                              stores                = new LongAdder(),
+                              restores              = new LongAdder(),
+                              calculationNanos      = new LongAdder();
+
+
+    public void logPCalculated(long nanos) {
+        logPCalculations.increment();
+        calculationNanos.add(nanos);
+    }
+
+    public void arraysUpdated(boolean full) {
+        arrayUpdates.increment();
+        if (full) {
+            fullRecalculations.increment();
+        } else {
+            partialRecalculations.increment();
+        }
+    }
+
+    public void minWidthRejected() { minWidthRejections.increment(); }
+
+    public void stored() { stores.increment(); }
+
+    public void restored() { restores.increment(); }
+
+
+    @Override
+    public long getLogPCalculations() { return logPCalculations.sum(); }
+
+    @Override
+    public long getArrayUpdates() { return arrayUpdates.sum(); }
+
+    @Override
+    public long getFullRecalculations() { return fullRecalculations.sum(); }
+
+    @Override
+    public long getPartialRecalculations() { return partialRecalculations.sum(); }
+
+    @Override
+    public long getMinWidthRejections() { return minWidthRejections.sum(); }
+
+    @Override
+    public long getStores() { return stores.sum(); }
+
+    @Override
+    public long getRestores() { return restores.sum(); }
+
+    @Override
+    public long getCalculationNanos() { return calculationNanos.sum(); }
+
+    @Override
+    public void reset() {
+        logPCalculations.reset();
+        arrayUpdates.reset();
+        fullRecalculations.reset();
+        partialRecalculations.reset();
+        minWidthRejections.reset();
+        stores.reset();
+        restores.reset();
+        calculationNanos.reset();
+    }
+
+}
@@ -0,0 +1,26 @@
+package bsp.util;
+
+/**
+ * JMX management interface for SkylineCounters
+ */
+public interface SkylineCountersMBean {
+
+    long getLogPCalculations();
+
+    long getArrayUpdates();
+
+    long getFullRecalculations();
+
+    long getPartialRecalculations();
+
+    long getMinWidthRejections();
+
+    long getStores();
+
+    long getRestores();
+
+    long getCalculationNanos();
+
+    void reset();
+
+}
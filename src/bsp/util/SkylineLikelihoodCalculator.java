@@ -0,0 +1,381 @@
+package bsp.util;
+
+import beast.core.util.Log;
+import beast.evolution.tree.coalescent.IntervalType;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.TreeParser;
+import bsp.distributions.SkylineEvaluator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static beast.evolution.tree.coalescent.IntervalType.COALESCENT;
+
+/*****************************************************************
+ * Skyline log-likelihoods of every tree in a tree log.          *
+ *****************************************************************
+ *
+ * - Streams a NEXUS tree log (tree STATE_n = ...) or a file with one Newick tree per line and calculates the BSP
+ *   log-likelihood (or the BESP log-likelihood if samplingIntensity is given) of every tree with SkylineEvaluator
+ * - Every parameter (popSizes, popSizeGroupSizes, samplingIntensity, samplingIntensityGroupSizes) is either a list of
+ *   fixed values (e.g. 1,2,3) or the name of a parameter in the trace log (-log), whose columns are name.1, name.2, ...
+ *   (or name if the dimension is 1). Trace log rows are matched to trees by state (or by order for Newick files).
+ *   Group sizes that are not given are equal (robust design).
+ * - Trees are evaluated on all cores and the results (state and log-likelihood) are written in tree order. At most
+ *   bufferSize trees are kept in memory, so the tree log is never read into memory.
+ * - Every tree is parsed with TreeParser (so metadata annotations are allowed) and its events are ordered by
+ *   TreeIntervals, so log-likelihoods are the same as BSP and BESP on the parsed tree, including the order of events
+ *   at the same time. TreeIntervals orders these by node number: tips of a NEXUS tree log keep the numbers of the
+ *   analysis, but internal nodes can be numbered differently, so BESP likelihoods can still differ from the logged
+ *   likelihood if a sampling and a coalescent event at the same time are in different population size groups (BSP
+ *   likelihoods never differ).
+ * - Multifurcations are counted as several coalescent events at the same time
+ *
+ * Usage: SkylineLikelihoodCalculator -trees FILE [-log FILE] [-out FILE] [-burnin TREES] [-threads N] [-bufferSize N]
+ *                                    -popSizes X [-popSizeGroupSizes X] [-samplingIntensity X [-samplingIntensityGroupSizes X]]
+ *
+ */
+public class SkylineLikelihoodCalculator {
+
+    /**
+     * Fixed values or trace log columns of a parameter
+     */
+    protected static class ParameterSource {
+
+        final String name;
+        double [] values;
+        int    [] columns;
+
+        ParameterSource(String spec) {
+
+            name = spec;
+            String [] tokens = spec.trim().split("[,\\s]+");
+            try {
+                values = new double[tokens.length];
+                for (int i = 0; i < tokens.length; i++) {
+                    values[i] = Double.parseDouble(tokens[i]);
+                }
+            } catch (NumberFormatException e) {
+                values = null;
+            }
+        }
+
+        void findColumns(String [] header) {
+
+            if (values != null) {
+                return;
+            }
+            if (header == null) {
+                throw new IllegalArgumentException(name + " is not a list of values and there is no trace log (-log).");
+            }
+
+            List<String>  columnNames = Arrays.asList(header);
+            List<Integer> found       = new ArrayList<>();
+            if (columnNames.contains(name)) {
+                found.add(columnNames.indexOf(name));
+            } else {
+                for (int d = 1; columnNames.contains(name + "." + d); d++) {
+                    found.add(columnNames.indexOf(name + "." + d));
+                }
+            }
+            if (found.isEmpty()) {
+                throw new IllegalArgumentException("No column " + name + " (or " + name + ".1, ...) in the trace log.");
+            }
+
+            columns = new int[found.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = found.get(i);
+            }
+        }
+
+        double [] get(String [] row) {
+
+            if (values != null) {
+                return values;
+            }
+            double [] result = new double[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                result[i] = Double.parseDouble(row[columns[i]]);
+            }
+            return result;
+        }
+    }
+
+
+    protected final ParameterSource popSizes,
+                                    popSizeGroupSizes,
+                                    samplingIntensity,
+                                    samplingIntensityGroupSizes;
+
+
+    /**
+     * @param popSizes                    values or trace log name
+     * @param popSizeGroupSizes           values or trace log name (equal group sizes if null)
+     * @param samplingIntensity           values or trace log name (BSP if null)
+     * @param samplingIntensityGroupSizes values or trace log name (equal group sizes if null)
+     */
+    public SkylineLikelihoodCalculator(String popSizes, String popSizeGroupSizes, String samplingIntensity, String samplingIntensityGroupSizes) {
+
+        if (popSizes == null) {
+            throw new IllegalArgumentException("popSizes should be specified.");
+        }
+        if (samplingIntensity == null && samplingIntensityGroupSizes != null) {
+            throw new IllegalArgumentException("samplingIntensityGroupSizes can only be used with samplingIntensity.");
+        }
+
+        this.popSizes                    = new ParameterSource(popSizes);
+        this.popSizeGroupSizes           = popSizeGroupSizes           != null ? new ParameterSource(popSizeGroupSizes)           : null;
+        this.samplingIntensity           = samplingIntensity           != null ? new ParameterSource(samplingIntensity)           : null;
+        this.samplingIntensityGroupSizes = samplingIntensityGroupSizes != null ? new ParameterSource(samplingIntensityGroupSizes) : null;
+    }
+
+
+    /**
+     * Calculate the log-likelihood of every tree and write "state logP" lines to out (in tree order)
+     *
+     * @param trees      tree log reader
+     * @param log        trace log reader (null if all parameters are fixed)
+     * @param out
+     * @param burnin     number of trees to skip
+     * @param threads
+     * @param bufferSize maximum number of trees in memory
+     * @return number of trees evaluated
+     */
+    public long run(BufferedReader trees, BufferedReader log, Writer out, long burnin, int threads, int bufferSize)
+            throws IOException, InterruptedException, ExecutionException {
+
+        String    line, newick, state;
+        String [] header = null, row = null;
+        long      treeIndex = 0, count = 0;
+
+        // Trace log header
+        if (log != null) {
+            while ((line = log.readLine()) != null && (line.startsWith("#") || line.trim().isEmpty())) {
+                // skip comments
+            }
+            if (line == null) {
+                throw new IOException("Trace log is empty.");
+            }
+            header = line.split("\t");
+        }
+        for (ParameterSource source : new ParameterSource[] {popSizes, popSizeGroupSizes, samplingIntensity, samplingIntensityGroupSizes}) {
+            if (source != null) {
+                source.findColumns(header);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+
+        try {
+            out.write("state\tlogP\n");
+
+            while ((line = trees.readLine()) != null) {
+
+                // Newick line or NEXUS tree (translate blocks are not needed, because labels are not used)
+                line = line.trim();
+                if (line.regionMatches(true, 0, "tree ", 0, 5)) {
+                    int eq = line.indexOf('=');
+                    state  = line.substring(5, eq).trim();
+                    newick = line.substring(eq+1).trim();
+                    if (state.startsWith("STATE_")) {
+                        state = state.substring(6);
+                    }
+                } else
+                if (line.startsWith("(")) {
+                    newick = line;
+                    state  = Long.toString(treeIndex);
+                } else {
+                    continue;
+                }
+
+                // Matching trace log row (by state if the trees have states, otherwise by order)
+                if (log != null) {
+                    row = nextRow(log, line.startsWith("(") ? null : state);
+                }
+
+                treeIndex++;
+                if (treeIndex <= burnin) {
+                    continue;
+                }
+
+                final String    treeState  = state,
+                                treeNewick = newick;
+                final String [] treeRow    = row;
+                pending.add(executor.submit(() -> treeState + "\t" + calculateLogP(treeNewick, treeRow)));
+                count++;
+
+                if (pending.size() >= bufferSize) {
+                    out.write(pending.poll().get());
+                    out.write('\n');
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                out.write(pending.poll().get());
+                out.write('\n');
+            }
+            out.flush();
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return count;
+    }
+
+
+    private static String [] nextRow(BufferedReader log, String state) throws IOException {
+
+        String line;
+        while ((line = log.readLine()) != null) {
+            if (line.startsWith("#") || line.trim().isEmpty()) {
+                continue;
+            }
+
+            String [] row = line.split("\t");
+            if (state == null || row[0].equals(state)) {
+                return row;
+            }
+            if (Long.parseLong(row[0]) > Long.parseLong(state)) {
+                break;
+            }
+        }
+        throw new IOException("No trace log row for tree " + (state != null ? "state " + state : "(the trace log has fewer rows than trees)") + ".");
+    }
+
+
+    /**
+     * Log-likelihood of one tree (thread-safe)
+     *
+     * @param newick
+     * @param row    trace log row (null if all parameters are fixed)
+     * @return
+     */
+    public double calculateLogP(String newick, String [] row) {
+
+        TreeIntervals   intervals  = getIntervals(newick);
+        double       [] eventTimes = SkylineEvaluator.getEventTimes(intervals);
+        IntervalType [] eventTypes = SkylineEvaluator.getEventTypes(intervals);
+        int coalescentCount = 0, sampleCount = 0;
+        for (int i = 0; i < eventTimes.length; i++) {
+            if (eventTypes[i] == COALESCENT) {
+                coalescentCount++;
+            } else {
+                sampleCount++;
+            }
+        }
+
+        double [] N = popSizes.get(row);
+        if (samplingIntensity == null) {
+            return new SkylineEvaluator(eventTimes, eventTypes, getGroupSizes(popSizeGroupSizes, row, coalescentCount, N.length), N).getLogP();
+        } else {
+            double [] beta = samplingIntensity.get(row);
+            return new SkylineEvaluator(eventTimes, eventTypes,
+                                        getGroupSizes(popSizeGroupSizes, row, eventTimes.length, N.length), N,
+                                        getGroupSizes(samplingIntensityGroupSizes, row, sampleCount, beta.length), beta).getLogP();
+        }
+    }
+
+
+    private static int [] getGroupSizes(ParameterSource source, String [] row, int events, int groups) {
+
+        int [] sizes = new int[groups];
+        if (source == null) {
+            // Robust design (as BSP.getRobustPopSizeGroupSizes())
+            for (int i = 0; i < groups; i++) {
+                sizes[i] = events / groups + (i < events % groups ? 1 : 0);
+            }
+        } else {
+            double [] values = source.get(row);
+            if (values.length != groups) {
+                throw new IllegalArgumentException("The dimension of " + source.name + " does not match the number of groups.");
+            }
+            for (int i = 0; i < groups; i++) {
+                sizes[i] = (int) Math.round(values[i]);
+            }
+        }
+        return sizes;
+    }
+
+
+    /**
+     * Parse a Newick tree (of a tree log) and get its intervals, as BSP and BESP
+     *
+     * @param newick
+     * @return
+     */
+    public static TreeIntervals getIntervals(String newick) {
+
+        // Rooting comment of NEXUS trees ([&R] or [&U])
+        newick = newick.trim();
+        if (newick.startsWith("[")) {
+            newick = newick.substring(newick.indexOf(']')+1).trim();
+        }
+        return new TreeIntervals(new TreeParser(newick, false));
+    }
+
+
+    public static void main(String[] args) throws Exception {
+
+        String treeFile = null, logFile = null, outFile = null,
+               popSizes = null, popSizeGroupSizes = null, samplingIntensity = null, samplingIntensityGroupSizes = null;
+        long   burnin     = 0;
+        int    threads    = Runtime.getRuntime().availableProcessors(),
+               bufferSize = 10000;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-trees":                       treeFile = args[++i];                    break;
+                    case "-log":                         logFile  = args[++i];                    break;
+                    case "-out":                         outFile  = args[++i];                    break;
+                    case "-burnin":                      burnin   = Long.parseLong(args[++i]);    break;
+                    case "-threads":                     threads  = Integer.parseInt(args[++i]);  break;
+                    case "-bufferSize":                  bufferSize = Integer.parseInt(args[++i]); break;
+                    case "-popSizes":                    popSizes = args[++i];                    break;
+                    case "-popSizeGroupSizes":           popSizeGroupSizes = args[++i];           break;
+                    case "-samplingIntensity":           samplingIntensity = args[++i];           break;
+                    case "-samplingIntensityGroupSizes": samplingIntensityGroupSizes = args[++i]; break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+            if (treeFile == null || threads < 1 || bufferSize < 1) {
+                throw new IllegalArgumentException("A tree file should be specified (-trees) and threads and bufferSize should be positive.");
+            }
+        } catch (RuntimeException e) {
+            Log.err.println(e.getMessage() + "\n"
+                          + "Usage: SkylineLikelihoodCalculator -trees FILE [-log FILE] [-out FILE] [-burnin TREES] [-threads N] [-bufferSize N]\n"
+                          + "           -popSizes X [-popSizeGroupSizes X] [-samplingIntensity X [-samplingIntensityGroupSizes X]]\n"
+                          + "       where X is a list of values (1,2,3) or the name of a parameter in the trace log");
+            System.exit(1);
+        }
+
+        SkylineLikelihoodCalculator calculator = new SkylineLikelihoodCalculator(popSizes, popSizeGroupSizes, samplingIntensity, samplingIntensityGroupSizes);
+
+        try (BufferedReader trees = new BufferedReader(new FileReader(treeFile));
+             BufferedReader log   = logFile != null ? new BufferedReader(new FileReader(logFile)) : null;
+             Writer         out   = new BufferedWriter(outFile != null ? new FileWriter(outFile) : new OutputStreamWriter(System.out))) {
+
+            long count = calculator.run(trees, log, out, burnin, threads, bufferSize);
+            if (outFile != null) {
+                Log.info.println("Calculated skyline log-likelihoods of " + count + " trees");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package bsp.util;
+
+import beast.core.Description;
+import beast.core.Operator;
+import beast.core.OperatorSchedule;
+
+/**
+ * Operator schedule that remembers the last selected operator, so that skyline events (SkylineRecorder) can be
+ * attributed to the operator that proposed the state.
+ *
+ * Use as <operatorschedule spec="bsp.util.SkylineOperatorSchedule"/> in the MCMC element. The operator is kept per
+ * thread, so chains running in parallel do not see each other's operators.
+ */
+@Description("Operator schedule that records the selected operator for skyline Flight Recorder events")
+public class SkylineOperatorSchedule extends OperatorSchedule {
+
+    private static final ThreadLocal<Operator> currentOperator = new ThreadLocal<>();
+
+    @Override
+    public Operator selectOperator() {
+        Operator operator = super.selectOperator();
+        currentOperator.set(operator);
+        return operator;
+    }
+
+    /**
+     * @return the last operator selected on this thread (null if none)
+     */
+    public static Operator getCurrentOperator() {
+        return currentOperator.get();
+    }
+
+}
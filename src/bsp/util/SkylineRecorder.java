@@ -0,0 +1,46 @@
+package bsp.util;
+
+import beast.core.Operator;
+import beast.core.util.Log;
+
+/**
+ * Receives events from BSP and BESP (calculateLogP, updateArrays, redistributing groups at initialization, store and
+ * restore) with the number of intervals, the number of groups touched and the operator that proposed the state
+ * (captured by the skyline on the MCMC thread, because calculations can run on the worker in async mode).
+ *
+ * Disabled (null on the skyline) unless the system property bsp.jfr is true, in which case events are emitted to
+ * Java Flight Recorder (SkylineFlightRecorder, in src-jfr, which is only compiled if the JDK has jdk.jfr).
+ */
+public interface SkylineRecorder {
+
+    enum EventType { CALCULATE_LOGP, UPDATE_ARRAYS, REDISTRIBUTE_GROUPS, STORE, RESTORE }
+
+    void begin(EventType type);
+
+    void end(EventType type, int intervalCount, int groupCount, Operator operator);
+
+
+    /**
+     * Create a Java Flight Recorder event recorder if enabled with -Dbsp.jfr=true
+     * (loaded by name, so jdk.jfr is never loaded otherwise)
+     *
+     * @param skyline id of the skyline
+     * @return null if disabled, or if the package was built or runs without Java Flight Recorder
+     */
+    static SkylineRecorder create(String skyline) {
+
+        if (!Boolean.getBoolean("bsp.jfr")) {
+            return null;
+        }
+
+        try {
+            return (SkylineRecorder) Class.forName("bsp.util.SkylineFlightRecorder")
+                                          .getConstructor(String.class)
+                                          .newInstance(skyline);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            Log.warning.println("WARNING: Java Flight Recorder events are not available in this build or JVM (" + e + ")");
+            return null;
+        }
+    }
+
+}
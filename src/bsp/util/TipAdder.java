@@ -0,0 +1,183 @@
+package bsp.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.StateNode;
+import beast.core.StateNodeInitialiser;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Starting tree for a rerun with new sequences: the tree of the previous run with the new tips grafted on.
+ *
+ * - Put it after the initialiser that sets the tip dates of the tree (e.g. RandomTree) in the init section of MCMC.
+ *   Tips of the tree that are not in previousTree are attached to a random branch that is older than the tip, at a
+ *   uniform height on the branch, every other node keeps its height in the previous tree (shifted if the most recent
+ *   tip changed)
+ * - previousTree is e.g. the last tree of the previous run (TreeParser with the newick from the tree log or state).
+ *   Its tip heights should be the tip heights of the tree up to a shift.
+ * - See examples/BSP/hcv_bsp_mcpgamma_rerun.xml
+ * - The other parameters resume from the values given in the XML (e.g. the last state of the previous run). With
+ *   extendGroupSizes="true", BSP and BESP add the events of the new tips to the smallest groups if the group sizes add
+ *   up to fewer events than the tree (or reassign them if epoch times are given), so the group sizes of the previous
+ *   run can be used as they are
+ */
+@Description("Initialises a tree from the tree of a previous run, grafting on the tips that were added since")
+public class TipAdder extends BEASTObject implements StateNodeInitialiser {
+
+    final public Input<Tree> treeInput =
+            new Input<>("tree", "Tree to initialise (with all tips and their dates)", Input.Validate.REQUIRED);
+
+    final public Input<Tree> previousTreeInput =
+            new Input<>("previousTree", "Tree of the previous run (on a subset of the tips of tree)", Input.Validate.REQUIRED);
+
+    protected Tree tree, previousTree;
+
+    protected int nextInternalNr;
+
+
+    @Override
+    public void initAndValidate() {
+        tree         = treeInput.get();
+        previousTree = previousTreeInput.get();
+    }
+
+
+    @Override
+    public void initStateNodes() {
+
+        // Tips (with dates) of the tree to initialise
+        Map<String, Node> tips = new HashMap<>();
+        for (Node node : tree.getExternalNodes()) {
+            tips.put(node.getID(), node);
+        }
+
+        // Shift of the node heights (the most recent tip may have changed), the same for every tip up to rounding
+        Set<String> previousTips = new HashSet<>();
+        double offset    = Double.NaN,
+               tolerance = 1e-6*Math.max(1.0, previousTree.getRoot().getHeight());
+        for (Node node : previousTree.getExternalNodes()) {
+            previousTips.add(node.getID());
+            Node tip = tips.get(node.getID());
+            if (tip == null) {
+                throw new IllegalArgumentException("Tip " + node.getID() + " of previousTree is not in the tree.");
+            }
+            if (Double.isNaN(offset)) {
+                offset = tip.getHeight() - node.getHeight();
+            } else
+            if (Math.abs(tip.getHeight() - node.getHeight() - offset) > tolerance) {
+                throw new IllegalArgumentException("The tip dates of previousTree do not match the tip dates of the tree " +
+                                                   "(tip " + node.getID() + " is shifted by " + (tip.getHeight() - node.getHeight()) +
+                                                   " instead of " + offset + ").");
+            }
+        }
+
+        nextInternalNr = tree.getLeafNodeCount();
+        Node root = copy(previousTree.getRoot(), tips, offset);
+
+        // New tips
+        for (Node tip : tree.getExternalNodes()) {
+            if (!previousTips.contains(tip.getID())) {
+                root = graft(root, copyTip(tip));
+            }
+        }
+
+        tree.assignFromWithoutID(new Tree(root));
+    }
+
+
+    /**
+     * Copy of a subtree of previousTree with the node numbers of tree and the tip heights of tree
+     */
+    protected Node copy(Node node, Map<String, Node> tips, double offset) {
+
+        if (node.isLeaf()) {
+            return copyTip(tips.get(node.getID()));
+        }
+
+        Node copy = new Node();
+        copy.setNr(nextInternalNr++);
+        copy.setHeight(node.getHeight() + offset);
+        for (Node child : node.getChildren()) {
+            Node childCopy = copy(child, tips, offset);
+            if (childCopy.getHeight() > copy.getHeight()) {
+                throw new IllegalArgumentException("The tip dates of previousTree do not match the tip dates of the tree " +
+                                                   "(a node is older than its parent after shifting).");
+            }
+            copy.addChild(childCopy);
+        }
+        return copy;
+    }
+
+
+    protected Node copyTip(Node tip) {
+
+        Node copy = new Node();
+        copy.setID(tip.getID());
+        copy.setNr(tip.getNr());
+        copy.setHeight(tip.getHeight());
+        return copy;
+    }
+
+
+    /**
+     * Attach tip to a random branch that is older than the tip (or above the root if the tip is older than the root)
+     *
+     * @return the (new) root
+     */
+    protected Node graft(Node root, Node tip) {
+
+        List<Node> branches = new ArrayList<>();
+        collectBranches(root, tip.getHeight(), branches);
+
+        Node parent = new Node();
+        parent.setNr(nextInternalNr++);
+
+        if (branches.isEmpty()) {
+            // Above the root (on average 10% older than the root or the tip)
+            double lower = Math.max(root.getHeight(), tip.getHeight());
+            parent.setHeight(lower + Randomizer.nextExponential(10.0/Math.max(lower, 1e-6)));
+            parent.addChild(root);
+            parent.addChild(tip);
+            return parent;
+        }
+
+        Node   node  = branches.get(Randomizer.nextInt(branches.size())),
+               above = node.getParent();
+        double lower = Math.max(node.getHeight(), tip.getHeight());
+
+        parent.setHeight(lower + Randomizer.nextDouble()*(above.getHeight() - lower));
+        above.removeChild(node);
+        above.addChild(parent);
+        parent.addChild(node);
+        parent.addChild(tip);
+        return root;
+    }
+
+
+    private static void collectBranches(Node node, double height, List<Node> branches) {
+
+        if (!node.isRoot() && node.getParent().getHeight() > Math.max(height, node.getHeight())) {
+            branches.add(node);
+        }
+        for (Node child : node.getChildren()) {
+            collectBranches(child, height, branches);
+        }
+    }
+
+
+    @Override
+    public void getInitialisedStateNodes(List<StateNode> stateNodes) {
+        stateNodes.add(tree);
+    }
+
+}
@@ -13,6 +13,9 @@ public class popSizeChangeTimeLogger extends CalculationNode implements Loggable
     final public Input<BSP> skylineInput =
             new Input<>("skyline", "Skyline to log change times for", Input.Validate.REQUIRED);
 
+    // Formats change times without allocating
+    private final DoublePrinter printer = new DoublePrinter();
+
     @Override
     public void initAndValidate() {
         // nothing to do
@@ -38,7 +41,7 @@ public class popSizeChangeTimeLogger extends CalculationNode implements Loggable
 
         final int values = skyline.getPopSizeDimension();
         for (int value = 0; value < values; value++) {
-            out.print(skyline.getPopSizeChangeTime(value) + "\t");
+            printer.print(out, skyline.getPopSizeChangeTime(value), '\t');
         }
     }
 
@@ -13,6 +13,9 @@ public class samplingIntensityChangeTimeLogger extends CalculationNode implement
     final public Input<BESP> skylineInput =
             new Input<>("skyline", "Skyline to log change times for", Input.Validate.REQUIRED);
 
+    // Formats change times without allocating
+    private final DoublePrinter printer = new DoublePrinter();
+
     @Override
     public void initAndValidate() {
         // nothing to do
@@ -38,7 +41,7 @@ public class samplingIntensityChangeTimeLogger extends CalculationNode implement
 
         final int values = skyline.getSamplingIntensityDimension();
         for (int value = 0; value < values; value++) {
-            out.print(skyline.getSamplingIntensityChangeTime(value) + "\t");
+            printer.print(out, skyline.getSamplingIntensityChangeTime(value), '\t');
         }
     }
 
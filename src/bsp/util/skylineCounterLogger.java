@@ -0,0 +1,112 @@
+package bsp.util;
+
+import beast.core.CalculationNode;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.util.Log;
+import bsp.distributions.BSP;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Logs performance counters of a skyline (number of likelihood calculations, full and partial recalculations,
+ * minWidth rejections, stores, restores and milliseconds spent calculating the likelihood).
+ *
+ * Counters are only collected on skylines that have a skylineCounterLogger. The counters are also registered as a
+ * JMX MBean (bsp:type=SkylineCounters,name=[skyline id]) so they can be read by monitoring agents, and unregistered
+ * again when the logger is closed.
+ */
+public class skylineCounterLogger extends CalculationNode implements Loggable, Function {
+
+    final public Input<BSP> skylineInput =
+            new Input<>("skyline", "Skyline to log performance counters for", Input.Validate.REQUIRED);
+
+    final public Input<Boolean> jmxInput =
+            new Input<>("jmx", "Register the counters as a JMX MBean", true);
+
+    protected static final String [] columns = {"calculations", "updates", "full", "partial", "rejections", "stores", "restores", "ms"};
+
+    protected SkylineCounters counters;
+
+    protected ObjectName mbeanName;
+
+    @Override
+    public void initAndValidate() {
+        final BSP skyline = skylineInput.get();
+
+        counters = skyline.getCounters();
+        if (counters == null) {
+            counters = new SkylineCounters();
+            skyline.setCounters(counters);
+        }
+
+        if (jmxInput.get() && mbeanName == null) {
+            try {
+                ObjectName name = new ObjectName("bsp:type=SkylineCounters,name=" +
+                                                 ObjectName.quote(skyline.getID() == null ? "skyline" : skyline.getID()));
+                if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(counters, name);
+                    mbeanName = name;
+                }
+            } catch (JMException e) {
+                Log.warning.println("WARNING: Could not register skyline counters as a JMX MBean: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        for (String column : columns) {
+            out.print(this.getID() + "." + column + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (int value = 0; value < columns.length; value++) {
+            out.print((long) getArrayValue(value) + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                Log.warning.println("WARNING: Could not unregister skyline counters JMX MBean: " + e.getMessage());
+            }
+            mbeanName = null;
+        }
+    }
+
+    @Override
+    public int getDimension() {
+        return columns.length;
+    }
+
+    @Override
+    public double getArrayValue() {
+        return counters.getLogPCalculations();
+    }
+
+    @Override
+    public double getArrayValue(int dim) {
+        switch (dim) {
+            case 0:  return counters.getLogPCalculations();
+            case 1:  return counters.getArrayUpdates();
+            case 2:  return counters.getFullRecalculations();
+            case 3:  return counters.getPartialRecalculations();
+            case 4:  return counters.getMinWidthRejections();
+            case 5:  return counters.getStores();
+            case 6:  return counters.getRestores();
+            case 7:  return counters.getCalculationNanos() / 1000000;
+            default: throw new IllegalArgumentException("Dimension should be less than " + columns.length);
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+package bsp.distributions;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.TreeParser;
+import bsp.util.popSizeChangeTimeLogger;
+import bsp.util.samplingIntensityChangeTimeLogger;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Allocation regression tests for bsp.distributions.BSP.java and bsp.distributions.BESP.java
+ *
+ * Uses the per-thread allocation counter of the JVM to check that calculateLogP(), updateArrays(), getPopSize(),
+ * getSamplingIntensity() and the change time loggers (getArrayValue() and log()) do not allocate after a warm-up, when
+ * the skyline parameters or the tree change (skipped if the JVM does not support allocation counters). TreeIntervals allocates when it
+ * recalculates the intervals, so after a node height change the intervals are recalculated outside the measurement.
+ *
+ * - BSP with group sizes and with estimated change times, and with a node height change
+ * - BESP with group sizes and with estimated change times, and with a node height change
+ */
+public class AllocationTest extends TestCase {
+
+    private static final int ITERATIONS = 20000;
+
+    // Boxed once, so setting parameter values does not allocate
+    private static final Double [] VALUES = {1.0, 2.0, 3.0},
+                                   TIMES  = {7.5, 12.5, 16.0};
+
+    // Discards the log, so only the allocations of the loggers are measured
+    private static final PrintStream LOG = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) { }
+
+        @Override
+        public void write(byte [] b, int off, int len) { }
+    });
+
+    private static final String TREE = "((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);";
+
+
+    private static long getAllocatedBytes(ThreadMXBean threads) {
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Run step ITERATIONS times to warm up, then check that another ITERATIONS steps do not allocate
+     * (the allocations of reading the counter are subtracted)
+     */
+    private static void assertNoAllocation(String name, Runnable step) {
+        assertNoAllocation(name, null, step);
+    }
+
+    /**
+     * As above, but prepare is run before every step and is not measured
+     */
+    private static void assertNoAllocation(String name, Runnable prepare, Runnable step) {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean) ||
+            !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocation counters not supported, skipping " + name);
+            return;
+        }
+        ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (prepare != null) {
+                prepare.run();
+            }
+            step.run();
+        }
+
+        long start    = getAllocatedBytes(threads),
+             overhead = getAllocatedBytes(threads) - start,
+             allocated;
+
+        if (prepare == null) {
+            start = getAllocatedBytes(threads);
+            for (int i = 0; i < ITERATIONS; i++) {
+                step.run();
+            }
+            allocated = getAllocatedBytes(threads) - start - overhead;
+        } else {
+            allocated = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                prepare.run();
+                start = getAllocatedBytes(threads);
+                step.run();
+                allocated += getAllocatedBytes(threads) - start - overhead;
+            }
+        }
+
+        System.out.println(name + ": " + allocated + " bytes allocated in " + ITERATIONS + " evaluations");
+        assertTrue(name + " allocated " + allocated + " bytes in " + ITERATIONS + " evaluations", allocated < ITERATIONS);
+    }
+
+
+    @Test
+    public void testBSP () {
+
+        System.out.println("Allocations: BSP with group sizes and estimated change times.");
+
+        Tree tree = new TreeParser(TREE, false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+        int [] k = {0};
+
+        // Group sizes
+        RealParameter popSizes1 = new RealParameter("1.0 2.0");
+        BSP skyline1 = new BSP();
+        skyline1.initByName("popSizes", popSizes1, "popSizeGroupSizes", "2 2", "treeIntervals", intervals);
+        popSizeChangeTimeLogger logger1 = new popSizeChangeTimeLogger();
+        logger1.initByName("skyline", skyline1);
+
+        assertNoAllocation("BSP group sizes", () -> {
+            skyline1.store();
+            popSizes1.setValue(k[0] % 2, VALUES[k[0]++ % 3]);
+            skyline1.requiresRecalculation();
+            skyline1.calculateLogP();
+            skyline1.getPopSize(TIMES[k[0] % 3]);
+            logger1.getArrayValue(0);
+            logger1.log(k[0], LOG);
+            skyline1.restore();
+        });
+
+        // Estimated change times
+        RealParameter popSizes2    = new RealParameter("1.0 2.0"),
+                      changeTimes2 = new RealParameter("12.5");
+        BSP skyline2 = new BSP();
+        skyline2.initByName("popSizes", popSizes2, "popSizeChangeTimes", changeTimes2, "treeIntervals", intervals);
+        popSizeChangeTimeLogger logger2 = new popSizeChangeTimeLogger();
+        logger2.initByName("skyline", skyline2);
+
+        assertNoAllocation("BSP change times", () -> {
+            skyline2.store();
+            popSizes2.setValue(k[0] % 2, VALUES[k[0] % 3]);
+            changeTimes2.setValue(0, TIMES[k[0]++ % 3]);
+            skyline2.requiresRecalculation();
+            skyline2.calculateLogP();
+            skyline2.getPopSize(TIMES[k[0] % 3]);
+            logger2.getArrayValue(0);
+            logger2.log(k[0], LOG);
+            skyline2.restore();
+        });
+
+        // Node height change (between its oldest child at 15 and its parent at 17)
+        Tree tree3 = new TreeParser(TREE, false);
+        TreeIntervals intervals3 = new TreeIntervals(tree3);
+        Node node3 = tree3.getRoot().getLeft().getLeft();
+        RealParameter popSizes3 = new RealParameter("1.0 2.0");
+        BSP skyline3 = new BSP();
+        skyline3.initByName("popSizes", popSizes3, "popSizeGroupSizes", "2 2", "treeIntervals", intervals3);
+
+        assertNoAllocation("BSP tree", () -> {
+            node3.setHeight(k[0] % 2 == 0 ? 15.5 : 16.5);
+            intervals3.checkDirtiness();
+            intervals3.getIntervalCount();
+        }, () -> {
+            skyline3.store();
+            popSizes3.setValue(k[0] % 2, VALUES[k[0]++ % 3]);
+            skyline3.requiresRecalculation();
+            skyline3.calculateLogP();
+            skyline3.getPopSize(TIMES[k[0] % 3]);
+            skyline3.restore();
+        });
+    }
+
+
+    @Test
+    public void testBESP () {
+
+        System.out.println("Allocations: BESP with group sizes and estimated change times.");
+
+        Tree tree = new TreeParser(TREE, false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+        int [] k = {0};
+
+        // Group sizes
+        RealParameter popSizes1          = new RealParameter("1.0 2.0"),
+                      samplingIntensity1 = new RealParameter("2.0 1.0");
+        BESP skyline1 = new BESP();
+        skyline1.initByName("popSizes", popSizes1, "popSizeGroupSizes", "6 3", "samplingIntensity", samplingIntensity1,
+                            "samplingIntensityGroupSizes", "3 2", "treeIntervals", intervals);
+        samplingIntensityChangeTimeLogger logger1 = new samplingIntensityChangeTimeLogger();
+        logger1.initByName("skyline", skyline1);
+
+        assertNoAllocation("BESP group sizes", () -> {
+            skyline1.store();
+            popSizes1.setValue(k[0] % 2, VALUES[k[0] % 3]);
+            samplingIntensity1.setValue(k[0] % 2, VALUES[k[0]++ % 3]);
+            skyline1.requiresRecalculation();
+            skyline1.calculateLogP();
+            skyline1.getPopSize(TIMES[k[0] % 3]);
+            skyline1.getSamplingIntensity(TIMES[k[0] % 3]);
+            logger1.getArrayValue(0);
+            logger1.log(k[0], LOG);
+            skyline1.restore();
+        });
+
+        // Estimated change times
+        RealParameter popSizes2          = new RealParameter("1.0 2.0"),
+                      samplingIntensity2 = new RealParameter("2.0 1.0"),
+                      changeTimes2       = new RealParameter("12.5");
+        BESP skyline2 = new BESP();
+        skyline2.initByName("popSizes", popSizes2, "popSizeChangeTimes", changeTimes2, "samplingIntensity", samplingIntensity2,
+                            "samplingIntensityGroupSizes", "3 2", "treeIntervals", intervals);
+        samplingIntensityChangeTimeLogger logger2 = new samplingIntensityChangeTimeLogger();
+        logger2.initByName("skyline", skyline2);
+
+        assertNoAllocation("BESP change times", () -> {
+            skyline2.store();
+            popSizes2.setValue(k[0] % 2, VALUES[k[0] % 3]);
+            samplingIntensity2.setValue(k[0] % 2, VALUES[k[0] % 3]);
+            changeTimes2.setValue(0, TIMES[k[0]++ % 3]);
+            skyline2.requiresRecalculation();
+            skyline2.calculateLogP();
+            skyline2.getPopSize(TIMES[k[0] % 3]);
+            skyline2.getSamplingIntensity(TIMES[k[0] % 3]);
+            logger2.getArrayValue(0);
+            logger2.log(k[0], LOG);
+            skyline2.restore();
+        });
+
+        // Node height change (between its oldest child at 15 and its parent at 17)
+        Tree tree3 = new TreeParser(TREE, false);
+        TreeIntervals intervals3 = new TreeIntervals(tree3);
+        Node node3 = tree3.getRoot().getLeft().getLeft();
+        RealParameter popSizes3          = new RealParameter("1.0 2.0"),
+                      samplingIntensity3 = new RealParameter("2.0 1.0");
+        BESP skyline3 = new BESP();
+        skyline3.initByName("popSizes", popSizes3, "popSizeGroupSizes", "6 3", "samplingIntensity", samplingIntensity3,
+                            "samplingIntensityGroupSizes", "3 2", "treeIntervals", intervals3);
+
+        assertNoAllocation("BESP tree", () -> {
+            node3.setHeight(k[0] % 2 == 0 ? 15.5 : 16.5);
+            intervals3.checkDirtiness();
+            intervals3.getIntervalCount();
+        }, () -> {
+            skyline3.store();
+            popSizes3.setValue(k[0] % 2, VALUES[k[0] % 3]);
+            samplingIntensity3.setValue(k[0] % 2, VALUES[k[0]++ % 3]);
+            skyline3.requiresRecalculation();
+            skyline3.calculateLogP();
+            skyline3.getPopSize(TIMES[k[0] % 3]);
+            skyline3.getSamplingIntensity(TIMES[k[0] % 3]);
+            skyline3.restore();
+        });
+    }
+
+}
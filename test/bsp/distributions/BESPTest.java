@@ -1,5 +1,8 @@
 package bsp.distributions;
 
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
 import beast.evolution.tree.coalescent.TreeIntervals;
 import beast.util.TreeParser;
@@ -7,6 +10,8 @@ import junit.framework.TestCase;
 import org.junit.Test;
 import test.beast.BEASTTestCase;
 
+import java.io.IOException;
+
 /**
  * Unit tests for bsp.distributions.BESP.java
  *
@@ -142,6 +147,92 @@ public class BESPTest extends TestCase {
         assertEquals(-289.280186700424, logP1, BEASTTestCase.PRECISION);
     }
 
+    /**************************/
+    /* Estimated change times */
+    /**************************/
+
+    @Test
+    public void testEstimatedChangeTimes1 () {
+
+        System.out.println("Estimated change times: Compared to group sizes when change times are at event times.");
+
+        Tree tree = new TreeParser("((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        BESP skyline1 = new BESP();
+        skyline1.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0", "popSizeGroupSizes", "6 3",
+                            "samplingIntensityGroupSizes", "3 2", "treeIntervals", intervals);
+
+        BESP skyline2 = new BESP();
+        skyline2.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0", "popSizeChangeTimes", ""+skyline1.getPopSizeChangeTime(0),
+                            "samplingIntensityGroupSizes", "3 2", "treeIntervals", intervals);
+
+        assertEquals(skyline1.calculateLogP(), skyline2.calculateLogP(), BEASTTestCase.PRECISION);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(skyline1.getPopSizeChangeTime(i), skyline2.getPopSizeChangeTime(i));
+        }
+
+        System.out.println(skyline2);
+    }
+
+
+    /*************************/
+    /* Sufficient statistics */
+    /*************************/
+
+    @Test
+    public void testStatistics1 () {
+
+        System.out.println("Sufficient statistics: Compared to likelihood and finite differences.");
+
+        String [] trees = {"((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:17.0,(D4Thai78:5.0,D4Thai84:11.0):12.0):17.0);",
+                           "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:26.0,(D4Thai78:5.0,D4Thai84:11.0):21.0):8.0);"};
+
+        for (String newick : trees) {
+            Tree tree = new TreeParser(newick, false);
+            TreeIntervals intervals = new TreeIntervals(tree);
+
+            BSP skyline1 = new BESP();
+            skyline1.initByName("popSizes", "3.0 2.0 1.0", "samplingIntensity", "2.0 3.0",
+                                "popSizeGroupSizes", "3 4 4", "samplingIntensityGroupSizes", "4 2", "treeIntervals", intervals);
+            BSPTest.checkStatistics(skyline1, new double[] {3.0, 2.0, 1.0, 2.0, 3.0});
+
+            BSP skyline2 = new BESP();
+            skyline2.initByName("popSizes", "3.0 2.0 1.0", "samplingIntensity", "2.0 3.0", "popSizeChangeTimes", "9.5 21.5",
+                                "samplingIntensityGroupSizes", "4 2", "treeIntervals", intervals);
+            BSPTest.checkStatistics(skyline2, new double[] {3.0, 2.0, 1.0, 2.0, 3.0});
+        }
+    }
+
+
+    /**************************************************/
+    /* Gradient with respect to internal node heights */
+    /**************************************************/
+
+    @Test
+    public void testNodeHeightGradient1 () throws IOException {
+
+        System.out.println("Gradient with respect to node heights: Compared to finite differences on the test trees, with ties and a polytomy.");
+
+        for (Tree tree : BSPTest.getGradientTrees()) {
+            int checked = BSPTest.checkNodeHeightGradient(tree, intervals -> {
+                BSP skyline = new BESP();
+                skyline.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0", "treeIntervals", intervals);
+                return skyline;
+            });
+            assertEquals(tree.getInternalNodeCount(), checked);
+
+            checked = BSPTest.checkNodeHeightGradient(tree, intervals -> {
+                BSP skyline = new BESP();
+                skyline.initByName("popSizes", "3.0 1.0 2.0", "popSizeChangeTimes", "9.5 21.5", "samplingIntensity", "2.0 1.0",
+                                   "treeIntervals", intervals);
+                return skyline;
+            });
+            assertEquals(tree.getInternalNodeCount(), checked);
+        }
+    }
+
+
     /*****************************/
     /* Getting change-time tests */
     /*****************************/
@@ -209,6 +300,228 @@ public class BESPTest extends TestCase {
 
 
 
+    /***************/
+    /* Tied events */
+    /***************/
+
+    @Test
+    public void testTiedEvents() {
+
+        System.out.println("Tied events: Batched likelihood with group boundaries between tied events compared to SkylineEvaluator.");
+
+        // 6 samples at 0, 2 samples at 1.5 and 2 coalescent events at 5
+        Tree tree = new TreeParser("(((A:3.0,B:3.0):2.0,(C:1.0,D:1.0):4.0):3.0,((E:4.0,F:4.0):1.0,(G:0.5,H:0.5):3.0):3.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+        double [] eventTimes = SkylineEvaluator.getEventTimes(intervals);
+
+        // BSP (population size groups split the coalescent events at 5)
+        BSP skyline1 = new BSP();
+        skyline1.initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "5 2", "treeIntervals", intervals);
+        SkylineEvaluator evaluator1 = new SkylineEvaluator(eventTimes, SkylineEvaluator.getEventTypes(intervals),
+                                                           new int [] {5, 2}, new double [] {1.0, 2.0});
+
+        assertEquals(evaluator1.getLogP(), skyline1.calculateLogP(), BEASTTestCase.PRECISION);
+        assertEquals(8, skyline1.events.getBatchCount());
+
+        // BESP (population size and sampling intensity groups split the samples at 0)
+        BESP skyline2 = new BESP();
+        skyline2.initByName("popSizes", "3.0 2.0 1.0", "samplingIntensity", "2.0 0.5", "popSizeGroupSizes", "4 5 6",
+                            "samplingIntensityGroupSizes", "3 5", "treeIntervals", intervals);
+        SkylineEvaluator evaluator2 = new SkylineEvaluator(eventTimes, SkylineEvaluator.getEventTypes(intervals),
+                                                           new int [] {4, 5, 6}, new double [] {3.0, 2.0, 1.0},
+                                                           new int [] {3, 5},    new double [] {2.0, 0.5});
+
+        assertEquals(evaluator2.getLogP(), skyline2.calculateLogP(), BEASTTestCase.PRECISION);
+    }
+
+
+    @Test
+    public void testGroupLogP() {
+
+        System.out.println("Group log-likelihoods: Sum over the groups equals the likelihood (up to the sampling intensity terms).");
+
+        Tree tree = new TreeParser("(((A:3.0,B:3.0):2.0,(C:1.0,D:1.0):4.0):3.0,((E:4.0,F:4.0):1.0,(G:0.5,H:0.5):3.0):3.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        for (String groupSizes : new String [] {"4 5 6", "7 7 1", "2 12 1"}) {
+            BESP skyline = new BESP();
+            skyline.initByName("popSizes", "3.0 2.0 1.0", "samplingIntensity", "2.0 0.5", "popSizeGroupSizes", groupSizes,
+                               "samplingIntensityGroupSizes", "3 5", "treeIntervals", intervals);
+
+            // Sampling intensity terms of the sampling events
+            double logP = 3*Math.log(2.0) + 5*Math.log(0.5);
+            int    start = 0;
+            for (int j = 0; j < 3; j++) {
+                int end = start + skyline.getPopSizeGroupSizes().getValue(j);
+                logP += skyline.getGroupLogP(j, start, end);
+                start = end;
+            }
+            assertEquals(skyline.calculateLogP(), logP, BEASTTestCase.PRECISION);
+        }
+    }
+
+
+    @Test
+    public void testParameterUpdates() {
+
+        System.out.println("Parameter updates: Likelihood when only popSizes or samplingIntensity change equals a full calculation.");
+
+        Tree tree = new TreeParser("(((A:3.0,B:3.0):2.0,(C:1.0,D:1.0):4.0):3.0,((E:4.0,F:4.0):1.0,(G:0.5,H:0.5):3.0):3.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        RealParameter popSizes          = new RealParameter("3.0 2.0 1.0"),
+                      samplingIntensity = new RealParameter("2.0 0.5");
+        IntegerParameter groupSizes     = new IntegerParameter("4 5 6");
+        BESP skyline = new BESP();
+        skyline.initByName("popSizes", popSizes, "samplingIntensity", samplingIntensity, "popSizeGroupSizes", groupSizes,
+                           "samplingIntensityGroupSizes", "3 5", "treeIntervals", intervals);
+
+        // Parameter changes (accepted or rejected), with a change of the groups in between
+        double [] values = {0.5, 1.5, 4.0, 0.25};
+        for (int i = 0; i < 12; i++) {
+            Double  [] oldPopSizes          = popSizes.getValues(),
+                       oldSamplingIntensity = samplingIntensity.getValues();
+            Integer [] oldGroupSizes        = groupSizes.getValues();
+
+            skyline.store();
+            popSizes.setValue(i % 3, values[i % 4]);
+            samplingIntensity.setValue(i % 2, values[(i+1) % 4]);
+            if (i == 6) {
+                groupSizes.setValue(0, 7);
+                groupSizes.setValue(2, 3);
+            }
+            skyline.checkDirtiness();
+
+            BESP expected = new BESP();
+            expected.initByName("popSizes", popSizes.getValue(0)+" "+popSizes.getValue(1)+" "+popSizes.getValue(2),
+                                "samplingIntensity", samplingIntensity.getValue(0)+" "+samplingIntensity.getValue(1),
+                                "popSizeGroupSizes", groupSizes.getValue(0)+" "+groupSizes.getValue(1)+" "+groupSizes.getValue(2),
+                                "samplingIntensityGroupSizes", "3 5", "treeIntervals", intervals);
+            assertEquals(expected.calculateLogP(), skyline.calculateLogP(), BEASTTestCase.PRECISION);
+            assertEquals(expected.getGroupLogP(0, 0, 2), skyline.getGroupLogP(0, 0, 2), BEASTTestCase.PRECISION);
+
+            // Reject every third state
+            if (i % 3 == 2) {
+                for (int j = 0; j < 3; j++) {
+                    popSizes.setValue(j, oldPopSizes[j]);
+                    groupSizes.setValue(j, oldGroupSizes[j]);
+                }
+                for (int m = 0; m < 2; m++) {
+                    samplingIntensity.setValue(m, oldSamplingIntensity[m]);
+                }
+                skyline.restore();
+            }
+            popSizes.setEverythingDirty(false);
+            samplingIntensity.setEverythingDirty(false);
+            groupSizes.setEverythingDirty(false);
+        }
+    }
+
+
+    /*************/
+    /* Tip dates */
+    /*************/
+
+    @Test
+    public void testTipDateChange() {
+
+        System.out.println("Sampling times: Likelihood after changing a tip date equals the likelihood of the changed tree.");
+
+        Tree tree1 = new TreeParser("((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);",false),
+             tree2 = new TreeParser("((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:8.0):5.0,D4Indon77:5.0);",false);
+        SkylineTreeIntervals intervals = new SkylineTreeIntervals(tree1);
+
+        BESP skyline1 = new BESP();
+        skyline1.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0", "popSizeGroupSizes", "6 3",
+                            "samplingIntensityGroupSizes", "3 2", "treeIntervals", intervals);
+        skyline1.calculateLogP();
+
+        // Move D4Tahiti79 from 15 to 9 (sampling times 0, 8, 10, 15, 17 become 0, 8, 9, 10, 17)
+        for (Node node : tree1.getExternalNodes()) {
+            if (node.getID().equals("D4Tahiti79")) {
+                node.setHeight(9.0);
+            }
+        }
+        intervals.checkDirtiness();
+        skyline1.checkDirtiness();
+
+        BESP skyline2 = new BESP();
+        skyline2.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0", "popSizeGroupSizes", "6 3",
+                            "samplingIntensityGroupSizes", "3 2", "treeIntervals", new TreeIntervals(tree2));
+
+        assertEquals(skyline2.calculateLogP(), skyline1.calculateLogP(), BEASTTestCase.PRECISION);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(skyline2.getSamplingIntensityChangeTime(i), skyline1.getSamplingIntensityChangeTime(i), BEASTTestCase.PRECISION);
+        }
+    }
+
+
+    @Test
+    public void testTipDateMoves() {
+
+        System.out.println("Sampling times: Sampling intensity change times and likelihood stay the same as for a new skyline while tip dates move one at a time.");
+
+        Tree tree = new TreeParser("((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        BESP skyline = new BESP();
+        skyline.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0 0.5", "popSizeGroupSizes", "6 3",
+                           "samplingIntensityGroupSizes", "2 2 1", "treeIntervals", intervals, "validateEvery", 1);
+        skyline.calculateLogP();
+
+        // Tip, new height (across other tips, onto the height of another tip, back again)
+        String [] tips    = {"D4Tahiti79", "D4PRico86", "D4Mexico84", "D4Tahiti79", "D4PRico86", "D4ElSal94"};
+        double [] heights = {9.0,          12.0,        9.0,          1.0,          7.0,         2.0};
+
+        for (int k = 0; k < tips.length; k++) {
+            for (Node node : tree.getExternalNodes()) {
+                if (node.getID().equals(tips[k])) {
+                    node.setHeight(heights[k]);
+                }
+            }
+            intervals.checkDirtiness();
+            skyline.checkDirtiness();
+
+            BESP expected = new BESP();
+            expected.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0 0.5", "popSizeGroupSizes", "6 3",
+                                "samplingIntensityGroupSizes", "2 2 1", "treeIntervals", new TreeIntervals(new TreeParser(tree.getRoot().toNewick(), false)));
+
+            assertEquals(expected.calculateLogP(), skyline.calculateLogP(), BEASTTestCase.PRECISION);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected.getSamplingIntensityChangeTime(i), skyline.getSamplingIntensityChangeTime(i), BEASTTestCase.PRECISION);
+            }
+        }
+        assertEquals(0, skyline.getValidationFailures());
+    }
+
+
+    /***************************************************/
+    /* Group sizes from a previous run with fewer tips */
+    /***************************************************/
+
+    @Test
+    public void testExtendedGroupSizes() {
+
+        System.out.println("Extended group sizes: New events are added to the smallest population size and sampling intensity groups.");
+
+        Tree tree = new TreeParser("((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);",false);
+
+        BESP skyline = new BESP();
+        skyline.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0", "popSizeGroupSizes", "3 3",
+                           "samplingIntensityGroupSizes", "2 1", "treeIntervals", new TreeIntervals(tree), "extendGroupSizes", true);
+
+        BESP expected = new BESP();
+        expected.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0", "popSizeGroupSizes", "5 4",
+                            "samplingIntensityGroupSizes", "3 2", "treeIntervals", new TreeIntervals(tree));
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(expected.popSizeGroupSizes.getValue(i), skyline.popSizeGroupSizes.getValue(i));
+            assertEquals(expected.samplingIntensityGroupSizes.getValue(i), skyline.samplingIntensityGroupSizes.getValue(i));
+        }
+        assertEquals(expected.calculateLogP(), skyline.calculateLogP(), BEASTTestCase.PRECISION);
+    }
+
+
     /*********************************************************************/
     /* Getting population size and sampling intensity at different times */
     /*********************************************************************/
@@ -1,14 +1,30 @@
 package bsp.distributions;
 
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.core.util.CompoundDistribution;
+import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
 import beast.evolution.tree.coalescent.BayesianSkyline;
 import beast.evolution.tree.coalescent.TreeIntervals;
 import beast.math.Binomial;
 import beast.util.TreeParser;
+import bsp.util.SkylineOperatorSchedule;
+import bsp.util.SkylineRecorder;
 import junit.framework.TestCase;
 import org.junit.Test;
 import test.beast.BEASTTestCase;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
 
 /**
  * Unit tests for bsp.distributions.BSP.java
@@ -17,6 +33,15 @@ import test.beast.BEASTTestCase;
  * - Compare likelihood to the original Bayesian Skyline Plot implementation in BEAST2 core (beast.evolution.tree.coalescent.BayesianSkyline.java)
  * - Test methods for getting segment change times
  * - Test methods for getting population size at different times (this is slightly different to the original Bayesian Skyline Plot)
+ * - Test estimated change times
+ * - Compare gradient with respect to node heights to finite differences
+ * - Compare likelihood from sufficient statistics to the likelihood
+ * - Compare the sum of the group log-likelihoods to the likelihood
+ * - Test extending group sizes that add up to fewer coalescent events than the tree (only with extendGroupSizes)
+ * - Test that async mode gives the same likelihoods, calculates them on a worker of the skyline while the current
+ *   thread continues, refuses shared tree intervals and detects a skyline evaluated first in the posterior, and
+ *   that recorder events calculated on the worker have the operator that proposed the state
+ * - Test shadow validation of the cached values
  *
  *
  **/
@@ -366,6 +391,576 @@ public class BSPTest extends TestCase {
 
     }
 
+    /**************************/
+    /* Estimated change times */
+    /**************************/
+
+    @Test
+    public void testEstimatedChangeTimes1 () {
+
+        System.out.println("Estimated change times: Compared to group sizes when change times are at coalescent times.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        BSP skyline1 = new BSP();
+        skyline1.initByName("popSizes", "1.0 2.0 3.0", "popSizeGroupSizes", "1 2 2", "treeIntervals", intervals);
+
+        BSP skyline2 = new BSP();
+        skyline2.initByName("popSizes", "1.0 2.0 3.0", "popSizeChangeTimes", "11.0 25.0", "treeIntervals", intervals);
+
+        assertEquals(skyline1.calculateLogP(), skyline2.calculateLogP(), BEASTTestCase.PRECISION);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(skyline1.getPopSizeChangeTime(i), skyline2.getPopSizeChangeTime(i));
+        }
+
+        System.out.println(skyline2);
+    }
+
+
+    @Test
+    public void testEstimatedChangeTimes2 () {
+
+        System.out.println("Estimated change times: Change time between coalescent times and outside of the tree.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        RealParameter changeTimes = new RealParameter("24.0");
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0", "popSizeChangeTimes", changeTimes, "treeIntervals", intervals);
+
+        // Lineages through time: 2 on (0,6], 4 on (6,11], 3 on (11,20], 4 on (20,23], 3 on (23,25], 2 on (25,28],
+        // 3 on (28,30], 2 on (30,40]. Coalescent events at 11, 23, 25, 30, 40.
+        double A1 = 1*6 + 6*5 + 3*9 + 6*3 + 3*1,
+               A2 = 3*1 + 1*3 + 3*2 + 1*10;
+        double expected = -A1/1.0 - 2*Math.log(1.0) - A2/2.0 - 3*Math.log(2.0);
+        assertEquals(expected, skyline.calculateLogP(), BEASTTestCase.PRECISION);
+
+        // Moving the change time back and forth gives the same likelihood
+        skyline.store();
+        changeTimes.setValue(0, 35.0);
+        skyline.calculateLogP();
+        skyline.store();
+        changeTimes.setValue(0, 24.0);
+        assertEquals(expected, skyline.calculateLogP(), BEASTTestCase.PRECISION);
+
+        // Change time older than the tMRCA (root at 40), then restore
+        skyline.store();
+        changeTimes.setValue(0, 41.0);
+        assertEquals(Double.NEGATIVE_INFINITY, skyline.calculateLogP());
+
+        changeTimes.setValue(0, 24.0);
+        skyline.restore();
+        assertEquals(expected, skyline.calculateLogP(), BEASTTestCase.PRECISION);
+    }
+
+
+    /*************************/
+    /* Sufficient statistics */
+    /*************************/
+
+    /**
+     * Check that the likelihood calculated from the sufficient statistics is the same as the likelihood of the
+     * skyline, and compare the gradient with respect to the skyline parameters to central finite differences
+     *
+     * @param skyline
+     * @param values [popSizes, samplingIntensity] of the skyline
+     */
+    static void checkStatistics(BSP skyline, double [] values) {
+
+        final double eps = 1E-6;
+
+        SkylineStatistics stats = skyline.getStatistics(null);
+        double [] gradient = new double[values.length];
+
+        assertEquals(skyline.calculateLogP(), stats.calculateLogLikelihood(values, gradient), BEASTTestCase.PRECISION);
+
+        for (int i = 0; i < values.length; i++) {
+            double value = values[i];
+
+            values[i] = value + eps;
+            double forward = stats.calculateLogLikelihood(values, null);
+
+            values[i] = value - eps;
+            double backward = stats.calculateLogLikelihood(values, null);
+
+            values[i] = value;
+            assertEquals((forward-backward)/(2*eps), gradient[i], 1E-4);
+        }
+    }
+
+
+    @Test
+    public void testStatistics1 () {
+
+        System.out.println("Sufficient statistics: Compared to likelihood and finite differences.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:17.0,(D4Thai78:5.0,D4Thai84:11.0):12.0):17.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        BSP skyline1 = new BSP();
+        skyline1.initByName("popSizes", "3.0 1.0 2.0", "popSizeGroupSizes", "1 2 2", "treeIntervals", intervals);
+        checkStatistics(skyline1, new double[] {3.0, 1.0, 2.0});
+
+        BSP skyline2 = new BSP();
+        skyline2.initByName("popSizes", "3.0 1.0 2.0", "popSizeChangeTimes", "9.5 21.5", "treeIntervals", intervals);
+        checkStatistics(skyline2, new double[] {3.0, 1.0, 2.0});
+    }
+
+
+    @Test
+    public void testGroupLogP() {
+
+        System.out.println("Group log-likelihoods: Sum over the groups equals the likelihood.");
+
+        Tree tree = new TreeParser("(((A:3.0,B:3.0):2.0,(C:1.0,D:1.0):4.0):3.0,((E:4.0,F:4.0):1.0,(G:0.5,H:0.5):3.0):3.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        for (String groupSizes : new String [] {"2 3 2", "5 1 1", "1 1 5"}) {
+            BSP skyline = new BSP();
+            skyline.initByName("popSizes", "1.0 2.0 0.5", "popSizeGroupSizes", groupSizes, "treeIntervals", intervals);
+
+            double logP = 0.0;
+            int    start = 0;
+            for (int j = 0; j < 3; j++) {
+                int end = start + skyline.getPopSizeGroupSizes().getValue(j);
+                logP += skyline.getGroupLogP(j, start, end);
+                start = end;
+            }
+            assertEquals(skyline.calculateLogP(), logP, BEASTTestCase.PRECISION);
+        }
+    }
+
+
+    /**************************************************/
+    /* Gradient with respect to internal node heights */
+    /**************************************************/
+
+    /**
+     * Shipped trees test/testLikelihood1.tree to test/testLikelihood5.tree (homochronous, heterochronous and with
+     * tied events), a tree with a polytomy (a zero-length branch) and a tree with a coalescent event after the last
+     * sample at the same time
+     */
+    static Tree [] getGradientTrees() throws IOException {
+
+        Tree [] trees = new Tree[7];
+        for (int i = 0; i < 5; i++) {
+            String newick = new String(Files.readAllBytes(Paths.get("test", "testLikelihood" + (i+1) + ".tree")), "UTF-8").trim();
+            trees[i] = new TreeParser(newick, false);
+        }
+        trees[5] = new TreeParser("((((D4Philip56:7.0,D4Philip64:7.0):0.0,D4Philip84:7.0):5.0,D4SLanka78:12.0):28.0,(D4Thai78:5.0,D4Thai84:5.0):35.0);", false);
+        trees[6] = new TreeParser("((D4Philip56:5.0,D4Philip64:5.0):25.0,(D4Philip84:20.0,D4SLanka78:25.0):5.0);", false);
+        return trees;
+    }
+
+
+    /**
+     * Compare the gradient to finite differences for every internal node.
+     *
+     * The log-likelihood is linear in the node heights as long as the order of the events and the group assignments
+     * do not change. At a node that is tied with another event (or with its parent or child in a polytomy) it is
+     * only differentiable in the direction that keeps the order of the events in TreeIntervals, so the gradient is
+     * compared to a one-sided difference in that direction. Nodes that cannot move in either direction without
+     * changing the order (in the middle of three or more tied events) are not checked.
+     *
+     * @param tree
+     * @param skylineFactory creates a new skyline for the tree intervals
+     * @return number of nodes checked
+     */
+    static int checkNodeHeightGradient(Tree tree, Function<TreeIntervals, BSP> skylineFactory) {
+
+        final double eps = 1E-6,
+                     tol = 1E-4;
+
+        int checked = 0;
+        TreeIntervals intervals = new TreeIntervals(tree);
+        double [] gradient = skylineFactory.apply(intervals).getNodeHeightGradient(null);
+        double    logP     = skylineFactory.apply(new TreeIntervals(tree)).calculateLogP();
+
+        for (Node node : tree.getNodesAsArray()) {
+            if (node.isLeaf()) {
+                assertEquals(0.0, gradient[node.getNr()]);
+                continue;
+            }
+
+            // Position of the node in TreeIntervals and whether it can move up or down without changing the order
+            int i = 0;
+            while (!intervals.getLineagesAdded(i).contains(node)) {
+                i++;
+            }
+            double  height = node.getHeight();
+            boolean up     = (i+1 == intervals.getIntervalCount() || intervals.getInterval(i+1) > 0.0) &&
+                             (node.isRoot() || node.getParent().getHeight() > height),
+                    down   = i > 0 && intervals.getInterval(i) > 0.0 &&
+                             node.getLeft().getHeight() < height && node.getRight().getHeight() < height;
+
+            double forward = logP, backward = logP, width = 0.0;
+            if (up) {
+                node.setHeight(height + eps);
+                forward = skylineFactory.apply(new TreeIntervals(tree)).calculateLogP();
+                width  += eps;
+            }
+            if (down) {
+                node.setHeight(height - eps);
+                backward = skylineFactory.apply(new TreeIntervals(tree)).calculateLogP();
+                width   += eps;
+            }
+            node.setHeight(height);
+
+            if (width > 0.0) {
+                assertEquals("Gradient for node " + node.getNr(), (forward - backward)/width, gradient[node.getNr()], tol);
+                checked++;
+            }
+        }
+        return checked;
+    }
+
+
+    @Test
+    public void testNodeHeightGradient1 () throws IOException {
+
+        System.out.println("Gradient with respect to node heights: Compared to finite differences on the test trees, with ties and a polytomy.");
+
+        for (Tree tree : getGradientTrees()) {
+            int checked = checkNodeHeightGradient(tree, intervals -> {
+                BSP skyline = new BSP();
+                skyline.initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 2", "treeIntervals", intervals);
+                return skyline;
+            });
+            assertEquals(tree.getInternalNodeCount(), checked);
+
+            checked = checkNodeHeightGradient(tree, intervals -> {
+                BSP skyline = new BSP();
+                skyline.initByName("popSizes", "3.0 1.0 2.0", "popSizeChangeTimes", "9.5 21.5", "treeIntervals", intervals);
+                return skyline;
+            });
+            assertEquals(tree.getInternalNodeCount(), checked);
+        }
+    }
+
+
+    /**************/
+    /* Async mode */
+    /**************/
+
+    @Test
+    public void testAsync () {
+
+        System.out.println("Async mode: Same likelihoods as calculating on the current thread.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+
+        // Separate tree intervals, because the intervals of an async skyline should not be used on the main thread
+        TreeIntervals [] intervals = {new TreeIntervals(tree), new TreeIntervals(tree)};
+        BSP [] skylines = {new BSP(), new BSP()};
+        for (int k = 0; k < 2; k++) {
+            skylines[k].initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", intervals[k], "async", k == 1);
+        }
+        assertEquals(skylines[0].calculateLogP(), skylines[1].calculateLogP());
+
+        Node node = tree.getRoot().getLeft();
+        for (int i = 0; i < 9; i++) {
+            for (BSP skyline : skylines) {
+                skyline.store();
+                skyline.popSizeGroupSizes.setValue(0, 1 + i % 3);
+                skyline.popSizeGroupSizes.setValue(1, 4 - i % 3);
+                skyline.popSizes.setValue(i % 2, 0.5 + i);
+            }
+            node.setHeight(node.getHeight() + (i % 2 == 0 ? 1.0 : -0.5));
+            for (int k = 0; k < 2; k++) {
+                intervals[k].checkDirtiness();
+                skylines[k].checkDirtiness();
+            }
+
+            // Rejected without calculating the likelihood (e.g. another prior was -Infinity)
+            if (i % 4 == 3) {
+                for (BSP skyline : skylines) {
+                    skyline.restore();
+                }
+            }
+            assertEquals(skylines[0].calculateLogP(), skylines[1].calculateLogP());
+        }
+    }
+
+
+    /**
+     * Waits for the test to release the calculation on the worker
+     */
+    static class BlockingBSP extends BSP {
+
+        CountDownLatch started, release;
+        String thread;
+
+        @Override
+        protected double calculateLogPNow() {
+
+            if (started != null) {
+                thread = Thread.currentThread().getName();
+                started.countDown();
+                try {
+                    // Fails instead of hanging if the calculation is not on a worker
+                    if (!release.await(10, TimeUnit.SECONDS)) {
+                        throw new RuntimeException("Calculation was not released.");
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.calculateLogPNow();
+        }
+    }
+
+
+    @Test
+    public void testAsyncOverlap () throws InterruptedException {
+
+        System.out.println("Async mode: The likelihood is calculated on a worker of the skyline while the current thread continues.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+
+        TreeIntervals [] intervals = {new TreeIntervals(tree), new TreeIntervals(tree), new TreeIntervals(tree)};
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", intervals[0]);
+
+        BlockingBSP [] async = {new BlockingBSP(), new BlockingBSP()};
+        for (int k = 0; k < 2; k++) {
+            async[k].setID("skyline" + k);
+            async[k].initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", intervals[k+1], "async", true);
+            async[k].calculateLogP();
+            async[k].started = new CountDownLatch(1);
+            async[k].release = new CountDownLatch(1);
+        }
+
+        tree.getRoot().getLeft().setHeight(tree.getRoot().getLeft().getHeight() + 1.0);
+        for (int k = 0; k < 3; k++) {
+            intervals[k].checkDirtiness();
+        }
+        skyline.checkDirtiness();
+        for (BlockingBSP s : async) {
+            s.checkDirtiness();
+        }
+
+        // Both calculations started before calculateLogP() and are still running, each on its own worker
+        for (BlockingBSP s : async) {
+            assertTrue(s.started.await(10, TimeUnit.SECONDS));
+            assertNotNull(s.pendingLogP);
+            assertFalse(s.pendingLogP.isDone());
+        }
+        assertEquals("bsp-skyline-worker-skyline0", async[0].thread);
+        assertEquals("bsp-skyline-worker-skyline1", async[1].thread);
+
+        for (BlockingBSP s : async) {
+            s.release.countDown();
+            assertEquals(skyline.calculateLogP(), s.calculateLogP());
+        }
+    }
+
+
+    @Test
+    public void testAsyncRecorderOperator () {
+
+        System.out.println("Async mode: Recorder events calculated on the worker have the operator of the MCMC thread.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        // Thread and operator of every calculateLogP event
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", intervals, "async", true);
+        skyline.setID("skyline");
+        skyline.setRecorder(new SkylineRecorder() {
+            @Override
+            public void begin(EventType type) { }
+
+            @Override
+            public void end(EventType type, int intervalCount, int groupCount, Operator operator) {
+                if (type == EventType.CALCULATE_LOGP) {
+                    events.add(Thread.currentThread().getName() + " " + (operator == null ? "" : operator.getID()));
+                }
+            }
+        });
+        skyline.calculateLogP();
+
+        Operator proposer = new Operator() {
+            @Override
+            public void initAndValidate() { }
+
+            @Override
+            public double proposal() { return 0.0; }
+        };
+        proposer.initByName("weight", 1.0);
+        proposer.setID("proposer");
+        SkylineOperatorSchedule schedule = new SkylineOperatorSchedule();
+        schedule.addOperator(proposer);
+        assertSame(proposer, schedule.selectOperator());
+
+        skyline.store();
+        tree.getRoot().getLeft().setHeight(tree.getRoot().getLeft().getHeight() + 1.0);
+        intervals.checkDirtiness();
+        skyline.checkDirtiness();
+        skyline.calculateLogP();
+
+        assertEquals(2, events.size());
+        assertEquals(Thread.currentThread().getName() + " ", events.get(0));
+        assertEquals("bsp-skyline-worker-skyline proposer", events.get(1));
+    }
+
+
+    @Test
+    public void testAsyncIntervals () {
+
+        System.out.println("Async mode: Refuse SkylineTreeIntervals and tree intervals used by other objects.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+
+        try {
+            new BSP().initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", new SkylineTreeIntervals(tree), "async", true);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // Intervals already used by another skyline
+        TreeIntervals intervals = new TreeIntervals(tree);
+        new BSP().initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", intervals);
+        try {
+            new BSP().initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", intervals, "async", true);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // Intervals used by another skyline initialised later are found when the first calculation is started
+        intervals = new TreeIntervals(tree);
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", intervals, "async", true);
+        new BSP().initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", intervals);
+        try {
+            skyline.popSizeGroupSizes.setValue(0, 3);
+            skyline.popSizeGroupSizes.setValue(1, 2);
+            skyline.checkDirtiness();
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testAsyncOrder () {
+
+        System.out.println("Async mode: Detect skylines evaluated before every other distribution in the posterior.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+
+        for (boolean likelihoodFirst : new boolean [] {false, true}) {
+            BSP skyline = new BSP(),
+                likelihood = new BSP();
+            skyline.initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", new TreeIntervals(tree), "async", true);
+            likelihood.initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", new TreeIntervals(tree));
+            assertFalse(skyline.isEvaluatedFirst());
+
+            CompoundDistribution prior     = new CompoundDistribution(),
+                                 posterior = new CompoundDistribution();
+            prior.initByName("distribution", skyline);
+            if (likelihoodFirst) {
+                posterior.initByName("distribution", likelihood, "distribution", prior);
+            } else {
+                posterior.initByName("distribution", prior, "distribution", likelihood);
+            }
+
+            assertEquals(!likelihoodFirst, skyline.isEvaluatedFirst());
+        }
+    }
+
+
+    /*********************/
+    /* Shadow validation */
+    /*********************/
+
+    @Test
+    public void testShadowValidation () {
+
+        System.out.println("Shadow validation: Cached values agree with values from scratch, corrupted caches are detected.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0", "popSizeGroupSizes", "2 3", "treeIntervals", intervals, "validateEvery", 1);
+        skyline.calculateLogP();
+
+        Node node = tree.getRoot().getLeft();
+        for (int i = 0; i < 9; i++) {
+            skyline.store();
+            if (i % 3 == 0) {
+                skyline.popSizeGroupSizes.setValue(0, 1 + i % 2);
+                skyline.popSizeGroupSizes.setValue(1, 4 - i % 2);
+            }
+            if (i % 3 == 1) {
+                node.setHeight(node.getHeight() + 0.5);
+            }
+            skyline.popSizes.setValue(i % 2, 0.5 + i);
+            intervals.checkDirtiness();
+            skyline.checkDirtiness();
+            skyline.calculateLogP();
+        }
+        assertEquals(0, skyline.getValidationFailures());
+
+        // Accept the last state, then corrupt a group time that is not used by the likelihood
+        skyline.popSizeGroupSizes.setEverythingDirty(false);
+        skyline.popSizes.setEverythingDirty(false);
+        skyline.popSizeGroupTimes[0] += 1.0;
+        skyline.calculateLogP();
+        assertEquals(1, skyline.getValidationFailures());
+    }
+
+
+    /***************************************************/
+    /* Group sizes from a previous run with fewer tips */
+    /***************************************************/
+
+    @Test
+    public void testExtendedGroupSizes () {
+
+        System.out.println("Extended group sizes: New coalescent events are added to the smallest groups.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0 3.0", "popSizeGroupSizes", "1 2 1", "treeIntervals", new TreeIntervals(tree),
+                           "extendGroupSizes", true);
+
+        BSP expected = new BSP();
+        expected.initByName("popSizes", "1.0 2.0 3.0", "popSizeGroupSizes", "2 2 1", "treeIntervals", new TreeIntervals(tree));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(expected.popSizeGroupSizes.getValue(i), skyline.popSizeGroupSizes.getValue(i));
+        }
+        assertEquals(expected.calculateLogP(), skyline.calculateLogP(), BEASTTestCase.PRECISION);
+
+        // Group sizes of 1 without bounds still have a lower bound of 1
+        skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0 3.0", "popSizeGroupSizes", "1 1 1", "treeIntervals", new TreeIntervals(tree),
+                           "extendGroupSizes", true);
+        assertEquals(1, (int) skyline.popSizeGroupSizes.getLower());
+        assertEquals(5, skyline.popSizeGroupSizes.getValue(0) + skyline.popSizeGroupSizes.getValue(1) + skyline.popSizeGroupSizes.getValue(2));
+
+        // Only if asked for, otherwise the robust design is used
+        int [][] groupSizes = {{2, 1, 2}, {2, 2, 1}};
+        for (int k = 0; k < 2; k++) {
+            skyline = new BSP();
+            skyline.initByName("popSizes", "1.0 2.0 3.0", "popSizeGroupSizes", "1 1 2", "treeIntervals", new TreeIntervals(tree),
+                               "extendGroupSizes", k == 0);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(groupSizes[k][i], (int) skyline.popSizeGroupSizes.getValue(i));
+            }
+        }
+    }
+
+
     /**********************************************/
     /* Getting population size at different times */
     /**********************************************/
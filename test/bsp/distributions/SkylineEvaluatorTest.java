@@ -0,0 +1,170 @@
+package bsp.distributions;
+
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.IntervalType;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+import java.util.stream.IntStream;
+
+/**
+ * Unit tests for bsp.distributions.SkylineEvaluator.java
+ *
+ * - Compare likelihood, change times and N(t)/beta(t) to BSP and BESP
+ *      1. Homochronous tree (BSP)
+ *      2. Heterochronous tree with non-unique sampling and coalescent times (BESP)
+ * - New parameter values on the same events
+ * - Concurrent evaluation
+ * - Invalid input
+ */
+public class SkylineEvaluatorTest extends TestCase {
+
+
+    @Test
+    public void testBSP1 () {
+
+        System.out.println("SkylineEvaluator compared to BSP: Tree with homochronous sampling.");
+
+        Tree tree = new TreeParser("((D4Philip56:30.0,(D4Philip64:23.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:25.0,(D4Thai78:11.0,D4Thai84:11.0):14.0):15.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0 3.0", "popSizeGroupSizes", "2 2 1", "treeIntervals", intervals);
+
+        SkylineEvaluator evaluator = new SkylineEvaluator(SkylineEvaluator.getEventTimes(intervals), SkylineEvaluator.getEventTypes(intervals),
+                                                          new int [] {2, 2, 1}, new double [] {1.0, 2.0, 3.0});
+
+        assertEquals(skyline.calculateLogP(), evaluator.getLogP(), BEASTTestCase.PRECISION);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(skyline.getPopSizeChangeTime(i), evaluator.getPopSizeChangeTime(i), BEASTTestCase.PRECISION);
+        }
+        for (double t : new double [] {-1.0, 0.0, 5.0, 11.0, 11.5, 23.0, 24.0, 40.0, 100.0}) {
+            assertEquals(skyline.getPopSize(t), evaluator.getPopSize(t));
+        }
+        assertFalse(evaluator.hasSamplingIntensity());
+    }
+
+
+    @Test
+    public void testBESP1 () {
+
+        System.out.println("SkylineEvaluator compared to BESP: Tree with non-unique sampling and coalescent times.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:17.0,(D4Thai78:5.0,D4Thai84:11.0):12.0):17.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        BESP skyline = new BESP();
+        skyline.initByName("popSizes", "3.0 2.0 1.0", "samplingIntensity", "2.0 3.0",
+                           "popSizeGroupSizes", "3 4 4", "samplingIntensityGroupSizes", "4 2", "treeIntervals", intervals);
+
+        SkylineEvaluator evaluator = new SkylineEvaluator(SkylineEvaluator.getEventTimes(intervals), SkylineEvaluator.getEventTypes(intervals),
+                                                          new int [] {3, 4, 4}, new double [] {3.0, 2.0, 1.0},
+                                                          new int [] {4, 2},    new double [] {2.0, 3.0});
+
+        assertEquals(-205.234349834419, evaluator.getLogP(), BEASTTestCase.PRECISION);
+        assertEquals(skyline.calculateLogP(), evaluator.getLogP(), BEASTTestCase.PRECISION);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(skyline.getPopSizeChangeTime(i), evaluator.getPopSizeChangeTime(i), BEASTTestCase.PRECISION);
+        }
+        for (int i = 0; i < 2; i++) {
+            assertEquals(skyline.getSamplingIntensityChangeTime(i), evaluator.getSamplingIntensityChangeTime(i), BEASTTestCase.PRECISION);
+        }
+        for (double t : new double [] {-1.0, 0.0, 2.0, 5.0, 6.0, 10.0, 17.0, 23.0, 30.0, 100.0}) {
+            assertEquals(skyline.getPopSize(t), evaluator.getPopSize(t));
+            assertEquals(skyline.getSamplingIntensity(t), evaluator.getSamplingIntensity(t));
+        }
+    }
+
+
+    @Test
+    public void testWithParameters () {
+
+        System.out.println("SkylineEvaluator: New parameter values on the same events.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:26.0,(D4Thai78:5.0,D4Thai84:11.0):21.0):8.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        SkylineEvaluator evaluator1 = new SkylineEvaluator(SkylineEvaluator.getEventTimes(intervals), SkylineEvaluator.getEventTypes(intervals),
+                                                           new int [] {5, 2, 4}, new double [] {1.0, 1.0, 1.0},
+                                                           new int [] {3, 2, 1}, new double [] {1.0, 1.0, 1.0});
+        SkylineEvaluator evaluator2 = evaluator1.withParameters(new double [] {2.0, 3.0, 4.0}, new double [] {2.0, 3.0, 4.0});
+
+        assertEquals(-289.280186700424, evaluator2.getLogP(), BEASTTestCase.PRECISION);
+        assertEquals(evaluator1.getPopSizeChangeTime(1), evaluator2.getPopSizeChangeTime(1));
+        assertEquals(1.0, evaluator1.getPopSize(30.0));
+
+        try {
+            evaluator1.withParameters(new double [] {2.0, 3.0, 4.0}, null);
+            fail("samplingIntensity should be required for BESP");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testConcurrent () {
+
+        System.out.println("SkylineEvaluator: Evaluating the same skyline from several threads.");
+
+        Tree tree = new TreeParser("((D4Philip56:30.0,(D4Philip64:23.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:25.0,(D4Thai78:11.0,D4Thai84:11.0):14.0):15.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        final SkylineEvaluator evaluator = new SkylineEvaluator(SkylineEvaluator.getEventTimes(intervals), SkylineEvaluator.getEventTypes(intervals),
+                                                                new int [] {3, 2}, new double [] {1.0, 2.0});
+
+        double [] expected = new double[1000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = evaluator.withParameters(new double [] {1.0 + i, 2.0}, null).getLogP();
+        }
+
+        double [] logP = IntStream.range(0, expected.length).parallel()
+                                  .mapToDouble(i -> evaluator.withParameters(new double [] {1.0 + i, 2.0}, null).getLogP())
+                                  .toArray();
+
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], logP[i]);
+        }
+        assertEquals(new SkylineEvaluator(SkylineEvaluator.getEventTimes(intervals), SkylineEvaluator.getEventTypes(intervals),
+                                          new int [] {3, 2}, new double [] {1.0, 2.0}).getLogP(), evaluator.getLogP());
+    }
+
+
+    @Test
+    public void testInvalidInput () {
+
+        System.out.println("SkylineEvaluator: Invalid input.");
+
+        double       [] times = {0.0, 0.0, 1.0, 2.0};
+        IntervalType [] types = {IntervalType.SAMPLE, IntervalType.SAMPLE, IntervalType.SAMPLE, IntervalType.COALESCENT};
+
+        // Group sizes do not add up to the number of coalescent events
+        try {
+            new SkylineEvaluator(times, types, new int [] {2}, new double [] {1.0});
+            fail("Group sizes should add up to the number of coalescent events");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // Times decreasing
+        try {
+            new SkylineEvaluator(new double [] {0.0, 1.0, 0.5, 2.0}, types, new int [] {1}, new double [] {1.0});
+            fail("Event times should be non-decreasing");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // Coalescent event with one lineage
+        try {
+            new SkylineEvaluator(new double [] {0.0, 1.0}, new IntervalType [] {IntervalType.SAMPLE, IntervalType.COALESCENT},
+                                 new int [] {1}, new double [] {1.0});
+            fail("Coalescent events need at least two lineages");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package bsp.distributions;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+/**
+ * Unit tests for bsp.distributions.SkylineInitializer.java
+ *
+ * - BSP population sizes are the generalized skyline estimates on the starting tree (the maximum likelihood
+ *   estimates), also if the tree changed after the skyline was initialised
+ * - BESP population sizes and sampling intensities are at the maximum of the likelihood
+ */
+public class SkylineInitializerTest extends TestCase {
+
+
+    @Test
+    public void testBSP () {
+
+        System.out.println("SkylineInitializer: BSP population sizes at the generalized skyline estimates.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        RealParameter popSizes = new RealParameter("1.0 1.0");
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", popSizes, "popSizeGroupSizes", "3 2", "treeIntervals", intervals);
+
+        // Starting tree changes after the skyline was initialised
+        tree.assignFrom(new TreeParser("((D4Philip56:4.0,(D4Philip64:3.0,D4Philip84:23.0):9.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false));
+
+        SkylineInitializer initializer = new SkylineInitializer();
+        initializer.initByName("skyline", skyline);
+        initializer.initStateNodes();
+
+        SkylineStatistics stats = skyline.getStatistics(null);
+        for (int j = 0; j < 2; j++) {
+            assertEquals(stats.getLineageIntegral(j)/stats.getCoalescentCount(j), popSizes.getValue(j), BEASTTestCase.PRECISION);
+        }
+        assertGradientZero(skyline, popSizes.getValues(), null);
+    }
+
+
+    @Test
+    public void testBESP () {
+
+        System.out.println("SkylineInitializer: BESP parameters at the maximum likelihood estimates.");
+
+        Tree tree = new TreeParser("((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        RealParameter popSizes          = new RealParameter("1.0 1.0"),
+                      samplingIntensity = new RealParameter("1.0 1.0");
+        BESP skyline = new BESP();
+        skyline.initByName("popSizes", popSizes, "popSizeGroupSizes", "6 3", "samplingIntensity", samplingIntensity,
+                           "samplingIntensityGroupSizes", "3 2", "treeIntervals", intervals);
+        double logP = skyline.calculateLogP();
+
+        SkylineInitializer initializer = new SkylineInitializer();
+        initializer.initByName("skyline", skyline, "iterations", 200);
+        initializer.initStateNodes();
+
+        assertTrue(skyline.calculateLogP() > logP);
+        assertGradientZero(skyline, popSizes.getValues(), samplingIntensity.getValues());
+    }
+
+
+    private static void assertGradientZero(BSP skyline, Double [] popSizes, Double [] samplingIntensity) {
+
+        int n = popSizes.length + (samplingIntensity != null ? samplingIntensity.length : 0);
+        double [] values   = new double[n],
+                  gradient = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = i < popSizes.length ? popSizes[i] : samplingIntensity[i - popSizes.length];
+        }
+
+        skyline.getStatistics(null).calculateLogLikelihood(values, gradient);
+        for (int i = 0; i < n; i++) {
+            assertEquals(0.0, gradient[i]*values[i], 1e-6);
+        }
+    }
+
+}
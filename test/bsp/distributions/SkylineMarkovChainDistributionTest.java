@@ -0,0 +1,188 @@
+package bsp.distributions;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.math.distributions.MarkovChainDistribution;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+/**
+ * Unit tests for bsp.distributions.SkylineMarkovChainDistribution.java
+ *
+ * - Compare the skyline log-likelihood to a new BSP/BESP and the prior to a new MarkovChainDistribution while
+ *   popSizes, sampling intensities, groups and the tree change (with rejected steps)
+ * - Check that changing a single popSize only updates the cached terms, and only of the changed (dirty) elements
+ *
+ **/
+public class SkylineMarkovChainDistributionTest extends TestCase {
+
+    static final String newick = "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);";
+
+
+    static double getMarkovChainLogP(Double [] popSizes, double shape, boolean jeffreys, boolean useLogNormal) {
+
+        MarkovChainDistribution markovChain = new MarkovChainDistribution();
+        markovChain.initByName("parameter", new RealParameter(popSizes), "shape", shape, "jeffreys", jeffreys, "uselog", useLogNormal);
+        return markovChain.calculateLogP();
+    }
+
+
+    static void checkLogP(SkylineMarkovChainDistribution distribution, BSP expected, Double [] popSizes, double shape,
+                          boolean jeffreys, boolean useLogNormal) {
+
+        double skylineLogP     = expected.calculateLogP(),
+               markovChainLogP = getMarkovChainLogP(popSizes, shape, jeffreys, useLogNormal);
+
+        assertEquals(skylineLogP,     distribution.getSkylineLogP(),     BEASTTestCase.PRECISION);
+        assertEquals(markovChainLogP, distribution.getMarkovChainLogP(), BEASTTestCase.PRECISION);
+        assertEquals(skylineLogP + markovChainLogP, distribution.getCurrentLogP(), BEASTTestCase.PRECISION);
+    }
+
+
+    /**
+     * Propose a change, calculate (or reject) and compare to a new skyline
+     */
+    static void step(SkylineMarkovChainDistribution distribution, Runnable change, boolean reject) {
+
+        BSP skyline = distribution.skyline;
+
+        skyline.popSizes.store();
+        skyline.store();
+        distribution.store();
+
+        change.run();
+        skyline.checkDirtiness();
+        distribution.checkDirtiness();
+        distribution.calculateLogP();
+
+        if (reject) {
+            skyline.popSizes.restore();
+            skyline.restore();
+            distribution.restore();
+        }
+
+        // Accepted
+        skyline.popSizes.setEverythingDirty(false);
+        skyline.popSizeGroupSizes.setEverythingDirty(false);
+        if (skyline instanceof BESP) {
+            ((BESP) skyline).samplingIntensity.setEverythingDirty(false);
+        }
+    }
+
+
+    /*******/
+    /* BSP */
+    /*******/
+
+    @Test
+    public void testBSP () {
+
+        System.out.println("BSP: Skyline likelihood and Markov chain are the same as calculated separately.");
+
+        for (boolean useLogNormal : new boolean [] {false, true}) {
+
+            Tree tree = new TreeParser(newick, false);
+            BSP skyline = new BSP();
+            skyline.initByName("popSizes", "1.0 2.0 1.5", "popSizeGroupSizes", "2 2 1", "treeIntervals", new TreeIntervals(tree));
+
+            SkylineMarkovChainDistribution distribution = new SkylineMarkovChainDistribution();
+            distribution.initByName("skyline", skyline, "shape", 2.0, "jeffreys", true, "useLogNormal", useLogNormal);
+            distribution.calculateLogP();
+
+            RealParameter popSizes = skyline.popSizes;
+            for (int i = 0; i < 12; i++) {
+                final int k = i;
+
+                switch (i % 4) {
+                    case 0:
+                        // Single popSize
+                        distribution.updateCount = 0;
+                        step(distribution, () -> popSizes.setValue(k % 3, 0.5 + k), false);
+                        assertTrue(distribution.termsKnown);
+                        assertEquals(1, distribution.updateCount);
+                        break;
+                    case 1:
+                        // Two popSizes
+                        distribution.updateCount = 0;
+                        step(distribution, () -> { popSizes.setValue(0, 0.25*k); popSizes.setValue(1, 3.0/k); }, false);
+                        assertEquals(2, distribution.updateCount);
+                        break;
+                    case 2:
+                        // Groups
+                        step(distribution, () -> { skyline.popSizeGroupSizes.setValue(0, 1 + k % 3); skyline.popSizeGroupSizes.setValue(1, 3 - k % 3); }, false);
+                        break;
+                    case 3:
+                        // Rejected
+                        step(distribution, () -> popSizes.setValue(2, 10.0), true);
+                        break;
+                }
+
+                BSP expected = new BSP();
+                expected.initByName("popSizes", new RealParameter(popSizes.getValues()),
+                                    "popSizeGroupSizes", skyline.popSizeGroupSizes.getValue(0) + " " + skyline.popSizeGroupSizes.getValue(1) + " " +
+                                                         skyline.popSizeGroupSizes.getValue(2),
+                                    "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+                checkLogP(distribution, expected, popSizes.getValues(), 2.0, true, useLogNormal);
+                assertEquals(distribution.getSkylineLogP(), skyline.getCurrentLogP(), BEASTTestCase.PRECISION);
+            }
+
+            // Tree
+            Node node = tree.getRoot().getLeft();
+            step(distribution, () -> { node.setHeight(node.getHeight() + 1.0); popSizes.setValue(0, 2.0); skyline.intervals.checkDirtiness(); }, false);
+
+            BSP expected = new BSP();
+            expected.initByName("popSizes", new RealParameter(popSizes.getValues()), "popSizeGroupSizes", skyline.popSizeGroupSizes,
+                                "treeIntervals", new TreeIntervals(tree));
+            checkLogP(distribution, expected, popSizes.getValues(), 2.0, true, useLogNormal);
+        }
+    }
+
+
+    /********/
+    /* BESP */
+    /********/
+
+    @Test
+    public void testBESP () {
+
+        System.out.println("BESP: Skyline likelihood and Markov chain are the same as calculated separately.");
+
+        String newick = "((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);";
+
+        BESP skyline = new BESP();
+        skyline.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0 0.5", "popSizeGroupSizes", "6 3",
+                           "samplingIntensityGroupSizes", "2 2 1", "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+        RealParameter popSizes          = skyline.popSizes,
+                      samplingIntensity = skyline.samplingIntensity;
+
+        SkylineMarkovChainDistribution distribution = new SkylineMarkovChainDistribution();
+        distribution.initByName("skyline", skyline);
+        distribution.calculateLogP();
+
+        for (int i = 0; i < 6; i++) {
+            final int k = i;
+
+            if (i % 2 == 0) {
+                // Single popSize (sampling intensities of the previous step were accepted, so the terms are kept)
+                assertFalse(distribution.updateSamplingIntensity());
+                distribution.updateCount = 0;
+                step(distribution, () -> popSizes.setValue(k % 2, 0.5 + k), false);
+                assertTrue(distribution.termsKnown);
+                assertEquals(1, distribution.updateCount);
+            } else {
+                step(distribution, () -> { samplingIntensity.setValue(k % 3, 0.5*k); popSizes.setValue(0, 1.0/k); }, false);
+            }
+
+            BESP expected = new BESP();
+            expected.initByName("popSizes", new RealParameter(popSizes.getValues()), "samplingIntensity", new RealParameter(samplingIntensity.getValues()),
+                                "popSizeGroupSizes", "6 3", "samplingIntensityGroupSizes", "2 2 1",
+                                "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+            checkLogP(distribution, expected, popSizes.getValues(), 1.0, false, false);
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package bsp.distributions;
+
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+/**
+ * Unit tests for bsp.distributions.SkylinePopulationFunction.java
+ *
+ * - Population sizes are the same as BSP.getPopSize()
+ * - Intensities are the same as numerically integrating 1/N(t) and getInverseIntensity() inverts getIntensity()
+ * - Intensities are updated after the skyline changed
+ */
+public class SkylinePopulationFunctionTest extends TestCase {
+
+
+    @Test
+    public void testIntensity () {
+
+        System.out.println("SkylinePopulationFunction: Intensities and inverse intensities.");
+
+        Tree tree = new TreeParser("((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);",false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0 0.5", "popSizeChangeTimes", "4.0 12.5", "treeIntervals", intervals);
+
+        SkylinePopulationFunction popFunction = new SkylinePopulationFunction();
+        popFunction.initByName("skyline", skyline);
+
+        double integral = 0.0, step = 0.0001;
+        for (double t = step/2; t < 25.0; t += step) {
+            assertEquals(skyline.getPopSize(t), popFunction.getPopSize(t));
+            integral += step/popFunction.getPopSize(t);
+
+            double time = t + step/2;
+            if (Math.abs(time - Math.round(time)) < step/2) {
+                assertEquals(integral, popFunction.getIntensity(time), 1e-6);
+                assertEquals(time, popFunction.getInverseIntensity(popFunction.getIntensity(time)), BEASTTestCase.PRECISION);
+            }
+        }
+
+        // Skyline changes
+        skyline.popSizes.setValue(0, 4.0);
+        skyline.checkDirtiness();
+        popFunction.checkDirtiness();
+        assertEquals(4.0/4.0, popFunction.getIntensity(4.0), BEASTTestCase.PRECISION);
+        assertEquals(4.0 + 2.0*2.0, popFunction.getInverseIntensity(4.0/4.0 + 2.0), BEASTTestCase.PRECISION);
+    }
+
+}
@@ -0,0 +1,88 @@
+package bsp.distributions;
+
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+/**
+ * Unit tests for bsp.distributions.SkylineResolutionProfile.java
+ *
+ * - Profile log-likelihoods are the BSP log-likelihoods (robust design) at the maximum likelihood population sizes,
+ *   and no population sizes give a higher likelihood
+ * - Marginal log-likelihood with one group is the same as numerically integrating over the population size
+ */
+public class SkylineResolutionProfileTest extends TestCase {
+
+    private static final String TREE = "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);";
+
+
+    @Test
+    public void testProfile () {
+
+        System.out.println("SkylineResolutionProfile: Profile likelihoods are BSP likelihoods at the MLEs.");
+
+        Tree tree = new TreeParser(TREE, false);
+        TreeIntervals intervals = new SkylineTreeIntervals(tree);
+
+        SkylineResolutionProfile profile = new SkylineResolutionProfile();
+        profile.initByName("treeIntervals", intervals, "maxGroups", 5);
+
+        SkylineEvents events = new SkylineEvents();
+        events.update(intervals);
+
+        for (int k = 1; k <= 5; k++) {
+
+            // Maximum likelihood population sizes of the robust design, N_j = A_j/c_j
+            StringBuilder popSizes = new StringBuilder();
+            int start = 0;
+            for (int j = 0; j < k; j++) {
+                int end = start + 5/k + (j < 5 % k ? 1 : 0);
+                double integral = events.getLineageIntegral(events.getCoalescentIndex(end-1)) -
+                                  (start > 0 ? events.getLineageIntegral(events.getCoalescentIndex(start-1)) : 0.0);
+                popSizes.append(integral/(end - start)).append(" ");
+                start = end;
+            }
+
+            BSP skyline = new BSP();
+            skyline.initByName("popSizes", popSizes.toString().trim(), "treeIntervals", intervals);
+            double logP = skyline.calculateLogP();
+            assertEquals(logP, profile.getLogP(k), BEASTTestCase.PRECISION);
+
+            // Any other population sizes are worse
+            skyline.popSizes.setValue(0, skyline.popSizes.getValue(0)*1.1);
+            skyline.checkDirtiness();
+            assertTrue(skyline.calculateLogP() < profile.getLogP(k));
+        }
+    }
+
+
+    @Test
+    public void testMarginal () {
+
+        System.out.println("SkylineResolutionProfile: Marginal likelihood with one group.");
+
+        Tree tree = new TreeParser(TREE, false);
+        TreeIntervals intervals = new TreeIntervals(tree);
+
+        SkylineResolutionProfile profile = new SkylineResolutionProfile();
+        profile.initByName("treeIntervals", intervals, "maxGroups", 3, "type", "marginal", "shape", 2.0, "scale", 3.0);
+
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0", "treeIntervals", intervals);
+
+        // Integrate the likelihood times the inverse gamma density over log(N) (midpoint rule)
+        double sum = 0.0, step = 0.001;
+        for (double x = -10.0 + step/2; x < 15.0; x += step) {
+            double N = Math.exp(x);
+            skyline.popSizes.setValue(0, N);
+            skyline.checkDirtiness();
+            double logPrior = 2.0*Math.log(3.0) - beast.math.GammaFunction.lnGamma(2.0) - 3.0*Math.log(N) - 3.0/N;
+            sum += Math.exp(skyline.calculateLogP() + logPrior + x)*step;
+        }
+        assertEquals(Math.log(sum), profile.getLogP(1), 1e-6);
+    }
+
+}
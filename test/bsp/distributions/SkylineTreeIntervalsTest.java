@@ -0,0 +1,96 @@
+package bsp.distributions;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+/**
+ * Unit tests for bsp.distributions.SkylineTreeIntervals.java
+ *
+ * - Likelihoods of BSP and BESP (group sizes and change times) with shared intervals are the same as with TreeIntervals
+ * - Events are recalculated after the tree changed without overwriting the stored events, and restored by restore()
+ */
+public class SkylineTreeIntervalsTest extends TestCase {
+
+
+    @Test
+    public void testSharedLikelihood () {
+
+        System.out.println("SkylineTreeIntervals: Likelihoods are the same as with TreeIntervals.");
+
+        Tree tree = new TreeParser("((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);",false);
+        TreeIntervals        intervals1 = new TreeIntervals(tree);
+        SkylineTreeIntervals intervals2 = new SkylineTreeIntervals(tree);
+
+        // Group sizes and change times
+        String [][] bsp  = {{"popSizeGroupSizes", "2 2"}, {"popSizeChangeTimes", "7.5"}},
+                    besp = {{"popSizeGroupSizes", "6 3"}, {"popSizeChangeTimes", "7.5"}};
+
+        for (int i = 0; i < 2; i++) {
+            BSP skyline1 = new BSP(),
+                skyline2 = new BSP();
+            skyline1.initByName("popSizes", "1.0 2.0", bsp[i][0], bsp[i][1], "treeIntervals", intervals1);
+            skyline2.initByName("popSizes", "1.0 2.0", bsp[i][0], bsp[i][1], "treeIntervals", intervals2);
+            assertEquals(skyline1.calculateLogP(), skyline2.calculateLogP(), BEASTTestCase.PRECISION);
+            assertEquals(skyline1.getPopSizeChangeTime(0), skyline2.getPopSizeChangeTime(0), BEASTTestCase.PRECISION);
+
+            BESP skyline3 = new BESP(),
+                 skyline4 = new BESP();
+            skyline3.initByName("popSizes", "1.0 2.0", besp[i][0], besp[i][1], "samplingIntensity", "2.0 1.0",
+                                "samplingIntensityGroupSizes", "3 2", "treeIntervals", intervals1);
+            skyline4.initByName("popSizes", "1.0 2.0", besp[i][0], besp[i][1], "samplingIntensity", "2.0 1.0",
+                                "samplingIntensityGroupSizes", "3 2", "treeIntervals", intervals2);
+            assertEquals(skyline3.calculateLogP(), skyline4.calculateLogP(), BEASTTestCase.PRECISION);
+            assertEquals(skyline3.getPopSizeChangeTime(0), skyline4.getPopSizeChangeTime(0), BEASTTestCase.PRECISION);
+            assertEquals(skyline3.getSamplingIntensityChangeTime(0), skyline4.getSamplingIntensityChangeTime(0), BEASTTestCase.PRECISION);
+        }
+    }
+
+
+    @Test
+    public void testStoreRestore () {
+
+        System.out.println("SkylineTreeIntervals: Stored events are not overwritten and are restored.");
+
+        Tree tree = new TreeParser("((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",false);
+        SkylineTreeIntervals intervals = new SkylineTreeIntervals(tree);
+
+        RealParameter changeTimes = new RealParameter("24.0");
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0", "popSizeChangeTimes", changeTimes, "treeIntervals", intervals);
+        double logP = skyline.calculateLogP();
+
+        SkylineEvents events = intervals.getEvents();
+        double rootTime = events.getRootTime();
+
+        // Events are calculated once per tree state
+        assertSame(events, intervals.getEvents());
+
+        // New state: events are calculated in the other buffer
+        intervals.store();
+        skyline.store();
+        intervals.requiresRecalculation();
+        SkylineEvents newEvents = intervals.getEvents();
+        assertNotSame(events, newEvents);
+        assertEquals(rootTime, newEvents.getRootTime());
+
+        // Rejected: stored events are restored
+        intervals.restore();
+        skyline.restore();
+        assertSame(events, intervals.getEvents());
+        assertEquals(logP, skyline.calculateLogP(), BEASTTestCase.PRECISION);
+
+        // Accepted twice: the buffer of the stored events is never overwritten
+        intervals.store();
+        intervals.requiresRecalculation();
+        newEvents = intervals.getEvents();
+        intervals.store();
+        intervals.requiresRecalculation();
+        assertNotSame(newEvents, intervals.getEvents());
+    }
+
+}
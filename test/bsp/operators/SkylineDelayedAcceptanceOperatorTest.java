@@ -0,0 +1,192 @@
+package bsp.operators;
+
+import beast.core.Input;
+import beast.core.Operator;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import bsp.distributions.BESP;
+import bsp.distributions.BSP;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+/**
+ * Unit tests for bsp.operators.SkylineDelayedAcceptanceOperator.java
+ *
+ * - The skyline likelihood used for screening is the same as the likelihood of BSP and BESP
+ * - Metropolis-Hastings chains with and without delayed acceptance, moving one node height, have the same mean node
+ *   height as the target (calculated by numerical integration), for BSP and BESP. The target is the skyline
+ *   likelihood times a normal density on the node height (standing in for the tree likelihood).
+ *
+ **/
+public class SkylineDelayedAcceptanceOperatorTest extends TestCase {
+
+    static final String heterochronous = "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);";
+
+    // Normal density on the node height
+    static final double mean = 1.2,
+                        sd   = 0.3;
+
+
+    /**
+     * Draws the height of one node uniformly between its oldest child and its parent
+     */
+    public static class NodeHeightOperator extends Operator {
+
+        final public Input<Tree> treeInput = new Input<>("tree", "Tree with the node", Input.Validate.REQUIRED);
+
+        Node node;
+
+        @Override
+        public void initAndValidate() {
+            Node root = treeInput.get().getRoot();
+            node = root.getLeft().isLeaf() ? root.getRight() : root.getLeft();
+        }
+
+        double getLower() {
+            return Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        }
+
+        double getUpper() {
+            return node.getParent().getHeight();
+        }
+
+        @Override
+        public double proposal() {
+            node.setHeight(getLower() + Randomizer.nextDouble()*(getUpper() - getLower()));
+            return 0.0;
+        }
+    }
+
+
+    static BSP getSkyline(Tree tree, boolean besp) {
+
+        BSP skyline;
+        if (besp) {
+            skyline = new BESP();
+            skyline.initByName("popSizes", "0.5 2.0", "popSizeGroupSizes", "3 2", "samplingIntensity", "2.0 1.0",
+                               "samplingIntensityGroupSizes", "2 1", "treeIntervals", new TreeIntervals(tree));
+        } else {
+            skyline = new BSP();
+            skyline.initByName("popSizes", "0.5 2.0", "popSizeGroupSizes", "1 1", "treeIntervals", new TreeIntervals(tree));
+        }
+        return skyline;
+    }
+
+
+    /**
+     * Log of the target density of the current node height (not normalised)
+     */
+    static double getLogTarget(Tree tree, Node node, boolean besp) {
+
+        double z = (node.getHeight() - mean)/sd;
+        return getSkyline(tree, besp).calculateLogP() - 0.5*z*z;
+    }
+
+
+    static SkylineDelayedAcceptanceOperator getOperator(Tree tree, BSP skyline, Operator operator) {
+
+        SkylineDelayedAcceptanceOperator delayed = new SkylineDelayedAcceptanceOperator();
+        delayed.initByName("operator", operator, "skyline", skyline, "tree", tree, "weight", 1.0);
+        return delayed;
+    }
+
+
+    @Test
+    public void testSkylineLogP () {
+
+        System.out.println("SkylineDelayedAcceptanceOperator: Screening likelihood is the same as BSP and BESP.");
+
+        Tree tree = new TreeParser(heterochronous, false);
+        BSP  [] skylines = {new BSP(), new BESP()};
+        skylines[0].initByName("popSizes", "1.0 2.0 1.5", "popSizeGroupSizes", "2 2 1", "treeIntervals", new TreeIntervals(tree));
+        skylines[1].initByName("popSizes", "2.0 3.0", "popSizeGroupSizes", "6 5", "samplingIntensity", "1.0 2.0 3.0",
+                               "samplingIntensityGroupSizes", "3 2 1", "treeIntervals", new TreeIntervals(tree));
+
+        for (BSP skyline : skylines) {
+            NodeHeightOperator operator = new NodeHeightOperator();
+            operator.initByName("tree", tree, "weight", 1.0);
+            assertEquals(skyline.calculateLogP(), getOperator(tree, skyline, operator).getSkylineLogP(), BEASTTestCase.PRECISION);
+        }
+    }
+
+
+    static void checkTarget(String newick, boolean besp) {
+
+        final int nrSteps  = 100000,
+                  nrPoints = 2000;
+
+        // Mean of the target by numerical integration
+        Tree tree = new TreeParser(newick, false);
+        NodeHeightOperator operator = new NodeHeightOperator();
+        operator.initByName("tree", tree, "weight", 1.0);
+
+        double lower = operator.getLower(),
+               upper = operator.getUpper(),
+               h0    = operator.node.getHeight(),
+               sum   = 0.0,
+               sumH  = 0.0;
+        for (int i = 0; i < nrPoints; i++) {
+            double h = lower + (i + 0.5)*(upper - lower)/nrPoints;
+            operator.node.setHeight(h);
+            double w = Math.exp(getLogTarget(tree, operator.node, besp));
+            sum  += w;
+            sumH += w*h;
+        }
+        double targetMean = sumH/sum;
+
+        // Chains without and with delayed acceptance
+        for (boolean delayed : new boolean [] {false, true}) {
+            operator.node.setHeight(h0);
+            SkylineDelayedAcceptanceOperator wrapper = getOperator(tree, getSkyline(tree, besp), operator);
+            Operator chainOperator = delayed ? wrapper : operator;
+
+            double logP = getLogTarget(tree, operator.node, besp),
+                   chainMean = 0.0;
+            for (int k = 0; k < nrSteps; k++) {
+                double h     = operator.node.getHeight(),
+                       logHR = chainOperator.proposal();
+
+                if (logHR > Double.NEGATIVE_INFINITY) {
+                    double newLogP = getLogTarget(tree, operator.node, besp);
+                    if (Math.log(Randomizer.nextDouble()) < newLogP - logP + logHR) {
+                        logP = newLogP;
+                    } else {
+                        operator.node.setHeight(h);
+                    }
+                } else {
+                    // Rejected at stage 1
+                    operator.node.setHeight(h);
+                }
+                chainMean += operator.node.getHeight()/nrSteps;
+            }
+
+            assertEquals((delayed ? "Delayed" : "Plain") + " chain", targetMean, chainMean, 0.01*targetMean);
+            assertEquals(delayed, wrapper.getScreenedCount() > 0);
+        }
+    }
+
+
+    @Test
+    public void testTargetBSP () {
+
+        System.out.println("SkylineDelayedAcceptanceOperator: BSP chain with delayed acceptance has the mean of the target.");
+
+        Randomizer.setSeed(127);
+        checkTarget("((A:1.0,B:1.0):1.0,C:2.0);", false);
+    }
+
+
+    @Test
+    public void testTargetBESP () {
+
+        System.out.println("SkylineDelayedAcceptanceOperator: BESP chain with delayed acceptance has the mean of the target.");
+
+        Randomizer.setSeed(128);
+        checkTarget("((A:1.0,B:0.5):1.0,C:2.0);", true);
+    }
+
+}
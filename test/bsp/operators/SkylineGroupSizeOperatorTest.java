@@ -0,0 +1,225 @@
+package bsp.operators;
+
+import beast.core.parameter.IntegerParameter;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import bsp.distributions.BSP;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for bsp.operators.SkylineGroupSizeOperator.java
+ *
+ * - Enumerate all group sizes of a small tree and check that proposals never violate the bounds or minWidth, that
+ *   every valid move is proposed uniformly and that the Hastings ratio is log(N(x)) - log(N(x')), with the number of
+ *   valid moves N(x) counted by brute force
+ * - Check that a Metropolis-Hastings chain using only the operator visits all valid group sizes uniformly
+ *
+ **/
+public class SkylineGroupSizeOperatorTest extends TestCase {
+
+    // Coalescent events at 0.2, 0.5, 1, 2, 3, 3.5 and 4
+    static final String newick = "(((A:1.0,B:1.0):1.0,(C:0.5,D:0.5):1.5):2.0,((E:3.0,F:3.0):0.5,(G:0.2,H:0.2):3.3):0.5);";
+
+    static final double minWidth = 0.9;
+
+    static final int nrEvents = 7,
+                     lower    = 1,
+                     upper    = 4;
+
+
+    static SkylineGroupSizeOperator getOperator(IntegerParameter groupSizes) {
+
+        groupSizes.setLower(lower);
+        groupSizes.setUpper(upper);
+
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 1.0 1.0", "popSizeGroupSizes", groupSizes, "minWidth", minWidth,
+                           "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+
+        SkylineGroupSizeOperator operator = new SkylineGroupSizeOperator();
+        operator.initByName("skyline", skyline, "groupSizes", groupSizes, "weight", 1.0);
+        return operator;
+    }
+
+
+    /**
+     * All group sizes of three groups adding up to the number of events (valid or not)
+     */
+    static List<int []> getStates() {
+
+        List<int []> states = new ArrayList<>();
+        for (int i = 0; i <= nrEvents; i++) {
+            for (int j = 0; i + j <= nrEvents; j++) {
+                states.add(new int [] {i, j, nrEvents - i - j});
+            }
+        }
+        return states;
+    }
+
+
+    static boolean isValid(int [] sizes, double [] eventTimes) {
+
+        int    end  = 0;
+        double prev = 0.0;
+        for (int size : sizes) {
+            if (size < lower || size > upper) {
+                return false;
+            }
+            end += size;
+            if (eventTimes[end-1] - prev < minWidth) {
+                return false;
+            }
+            prev = eventTimes[end-1];
+        }
+        return true;
+    }
+
+
+    /**
+     * Number of valid states that can be reached by moving one event between two groups
+     */
+    static int countValidMoves(int [] sizes, double [] eventTimes) {
+
+        int moves = 0;
+        for (int from = 0; from < sizes.length; from++) {
+            for (int to = 0; to < sizes.length; to++) {
+                if (from != to) {
+                    int [] next = sizes.clone();
+                    next[from]--;
+                    next[to]++;
+                    if (isValid(next, eventTimes)) {
+                        moves++;
+                    }
+                }
+            }
+        }
+        return moves;
+    }
+
+
+    static int [] getSizes(IntegerParameter groupSizes) {
+
+        int [] sizes = new int[groupSizes.getDimension()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = groupSizes.getValue(i);
+        }
+        return sizes;
+    }
+
+
+    static void setSizes(IntegerParameter groupSizes, int [] sizes) {
+
+        for (int i = 0; i < sizes.length; i++) {
+            groupSizes.setValue(i, sizes[i]);
+        }
+    }
+
+
+    @Test
+    public void testProposals () {
+
+        System.out.println("SkylineGroupSizeOperator: Proposals are valid, uniform over valid moves and have the right Hastings ratio.");
+
+        final int nrProposals = 4000;
+
+        Randomizer.setSeed(127);
+        IntegerParameter groupSizes = new IntegerParameter("3 2 2");
+        SkylineGroupSizeOperator operator = getOperator(groupSizes);
+        double [] eventTimes = operator.skyline.getGroupEventTimes(groupSizes, null);
+
+        int nrValid = 0;
+        for (int [] state : getStates()) {
+            if (!isValid(state, eventTimes)) {
+                continue;
+            }
+            nrValid++;
+
+            int forwardMoves = countValidMoves(state, eventTimes);
+            Map<String, Integer> proposed = new HashMap<>();
+
+            for (int k = 0; k < nrProposals; k++) {
+                setSizes(groupSizes, state);
+                double logHR = operator.proposal();
+
+                if (forwardMoves == 0) {
+                    assertEquals(Double.NEGATIVE_INFINITY, logHR);
+                    assertTrue(Arrays.equals(state, getSizes(groupSizes)));
+                    break;
+                }
+
+                // Valid and one event moved
+                int [] sizes = getSizes(groupSizes);
+                assertTrue("Invalid proposal " + Arrays.toString(sizes), isValid(sizes, eventTimes));
+                int changed = 0;
+                for (int i = 0; i < sizes.length; i++) {
+                    assertTrue(Math.abs(sizes[i] - state[i]) <= 1);
+                    changed += Math.abs(sizes[i] - state[i]);
+                }
+                assertEquals(2, changed);
+
+                assertEquals(Math.log(forwardMoves) - Math.log(countValidMoves(sizes, eventTimes)), logHR, 1E-10);
+                proposed.merge(Arrays.toString(sizes), 1, Integer::sum);
+            }
+
+            // Every valid move is proposed uniformly
+            if (forwardMoves > 0) {
+                assertEquals(forwardMoves, proposed.size());
+                for (int count : proposed.values()) {
+                    assertEquals(1.0/forwardMoves, (double) count/nrProposals, 0.03);
+                }
+            }
+        }
+
+        // Check that the bounds and minWidth leave something to test
+        assertTrue(nrValid > 1 && nrValid < getStates().size());
+    }
+
+
+    @Test
+    public void testStationaryDistribution () {
+
+        System.out.println("SkylineGroupSizeOperator: Chain with a uniform target visits all valid group sizes uniformly.");
+
+        final int nrSteps = 200000;
+
+        Randomizer.setSeed(128);
+        IntegerParameter groupSizes = new IntegerParameter("3 2 2");
+        SkylineGroupSizeOperator operator = getOperator(groupSizes);
+        double [] eventTimes = operator.skyline.getGroupEventTimes(groupSizes, null);
+
+        Map<String, Integer> visits = new HashMap<>();
+        int [] current = getSizes(groupSizes);
+        for (int k = 0; k < nrSteps; k++) {
+            double logHR = operator.proposal();
+            if (Math.log(Randomizer.nextDouble()) < logHR) {
+                current = getSizes(groupSizes);
+            } else {
+                setSizes(groupSizes, current);
+            }
+            visits.merge(Arrays.toString(current), 1, Integer::sum);
+        }
+
+        int nrValid = 0;
+        for (int [] state : getStates()) {
+            if (isValid(state, eventTimes)) {
+                nrValid++;
+            } else {
+                assertFalse(visits.containsKey(Arrays.toString(state)));
+            }
+        }
+
+        assertEquals(nrValid, visits.size());
+        for (int count : visits.values()) {
+            assertEquals(1.0/nrValid, (double) count/nrSteps, 0.01);
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+package bsp.operators;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.math.distributions.MarkovChainDistribution;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import bsp.distributions.BESP;
+import bsp.distributions.BSP;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Unit tests for bsp.operators.SkylineHMCOperator.java
+ *
+ * - Compare the gradient of the log-density (skyline likelihood and gamma Markov chain priors) with respect to the
+ *   log-transformed parameters to central finite differences
+ * - Compare differences in the log-density to the skyline likelihood and the MarkovChainDistribution priors
+ * - Check that a leapfrog trajectory is reversible (negating the momentum returns to the start) and that the
+ *   Hastings ratio of a proposal cancels the change in the posterior for small step sizes (energy conservation)
+ *
+ **/
+public class SkylineHMCOperatorTest extends TestCase {
+
+    static final String bspTree  = "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",
+                        bespTree = "((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);";
+
+
+    static SkylineHMCOperator getBSPOperator(double stepSize) {
+
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", "1.0 2.0 1.5", "popSizeGroupSizes", "2 2 1", "treeIntervals", new TreeIntervals(new TreeParser(bspTree, false)));
+
+        MarkovChainDistribution prior = new MarkovChainDistribution();
+        prior.initByName("parameter", skyline.popSizeInput.get(), "shape", 2.0, "jeffreys", true);
+
+        SkylineHMCOperator operator = new SkylineHMCOperator();
+        operator.initByName("skyline", skyline, "popSizePrior", prior, "stepSize", stepSize, "numSteps", 1, "weight", 1.0);
+        return operator;
+    }
+
+
+    static SkylineHMCOperator getBESPOperator(double stepSize) {
+
+        BESP skyline = new BESP();
+        skyline.initByName("popSizes", "1.0 2.0", "samplingIntensity", "2.0 1.0 0.5", "popSizeGroupSizes", "6 3",
+                           "samplingIntensityGroupSizes", "2 2 1", "treeIntervals", new TreeIntervals(new TreeParser(bespTree, false)));
+
+        MarkovChainDistribution popSizePrior = new MarkovChainDistribution();
+        popSizePrior.initByName("parameter", skyline.popSizeInput.get(), "shape", 1.0, "jeffreys", true);
+
+        MarkovChainDistribution samplingIntensityPrior = new MarkovChainDistribution();
+        samplingIntensityPrior.initByName("parameter", skyline.samplingIntensityInput.get(), "shape", 3.0, "reverse", true);
+
+        SkylineHMCOperator operator = new SkylineHMCOperator();
+        operator.initByName("skyline", skyline, "popSizePrior", popSizePrior, "samplingIntensityPrior", samplingIntensityPrior,
+                            "stepSize", stepSize, "numSteps", 1, "weight", 1.0);
+        return operator;
+    }
+
+
+    /**
+     * Skyline log-likelihood and Markov chain priors for the current parameter values
+     */
+    static double getLogPosterior(SkylineHMCOperator operator) {
+
+        BSP skyline = operator.skyline;
+        MarkovChainDistribution prior = operator.samplingIntensityPriorInput.get();
+
+        // Skyline likelihood (the tree and groups do not change)
+        double logP = skyline.getStatistics(null).calculateLogLikelihood(getValues(operator), null);
+        logP += operator.popSizePriorInput.get().calculateLogP();
+        if (prior != null) {
+            logP += prior.calculateLogP();
+        }
+        return logP;
+    }
+
+
+    static double [] getValues(SkylineHMCOperator operator) {
+
+        double [] values = new double[operator.dimension];
+        RealParameter popSizes = operator.skyline.popSizeInput.get();
+        for (int i = 0; i < operator.dimension; i++) {
+            values[i] = i < popSizes.getDimension() ? popSizes.getValue(i) :
+                        ((BESP) operator.skyline).samplingIntensityInput.get().getValue(i - popSizes.getDimension());
+        }
+        return values;
+    }
+
+
+    /**
+     * Log-density in log space (including the Jacobian) at position
+     */
+    static double getLogTarget(SkylineHMCOperator operator, double [] position) {
+
+        System.arraycopy(position, 0, operator.position, 0, position.length);
+        assertTrue(operator.updateGradient());
+
+        double logP = operator.logDensity;
+        for (double x : position) {
+            logP += x;
+        }
+        return logP;
+    }
+
+
+    /************/
+    /* Gradient */
+    /************/
+
+    static void checkGradient(SkylineHMCOperator operator) {
+
+        final double eps = 1E-6;
+
+        operator.stats = operator.skyline.getStatistics(null);
+
+        double [] values   = getValues(operator),
+                  position = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            position[i] = Math.log(values[i]);
+        }
+
+        getLogTarget(operator, position);
+        double [] gradient = operator.gradient.clone();
+
+        for (int i = 0; i < position.length; i++) {
+            double x = position[i];
+
+            position[i] = x + eps;
+            double forward = getLogTarget(operator, position);
+
+            position[i] = x - eps;
+            double backward = getLogTarget(operator, position);
+
+            position[i] = x;
+            assertEquals("Gradient for element " + i, (forward - backward)/(2*eps), gradient[i], 1E-5);
+        }
+    }
+
+
+    @Test
+    public void testGradient () {
+
+        System.out.println("HMC: Gradient of the skyline likelihood and gamma Markov chain priors in log space compared to central differences.");
+
+        checkGradient(getBSPOperator(0.05));
+        checkGradient(getBESPOperator(0.05));
+    }
+
+
+    @Test
+    public void testLogDensity () {
+
+        System.out.println("HMC: Differences in the log-density compared to the skyline likelihood and the MarkovChainDistribution priors.");
+
+        for (SkylineHMCOperator operator : new SkylineHMCOperator[] {getBSPOperator(0.05), getBESPOperator(0.05)}) {
+
+            operator.stats = operator.skyline.getStatistics(null);
+            double [] values = getValues(operator),
+                      position = new double[values.length];
+
+            for (int i = 0; i < values.length; i++) {
+                position[i] = Math.log(values[i]);
+            }
+            System.arraycopy(position, 0, operator.position, 0, position.length);
+            operator.updateGradient();
+            double logDensity = operator.logDensity,
+                   logP       = getLogPosterior(operator);
+
+            // Constants of the gamma densities are left out of the log-density
+            RealParameter popSizes = operator.skyline.popSizeInput.get();
+            popSizes.setValue(0, 1.7);
+            position[0] = Math.log(1.7);
+            System.arraycopy(position, 0, operator.position, 0, position.length);
+            operator.updateGradient();
+
+            assertEquals(getLogPosterior(operator) - logP, operator.logDensity - logDensity, 1E-10);
+        }
+    }
+
+
+    /***********************************/
+    /* Leapfrog and the Hastings ratio */
+    /***********************************/
+
+    @Test
+    public void testReversibility () {
+
+        System.out.println("HMC: Leapfrog trajectory returns to the start when the momentum is negated.");
+
+        Randomizer.setSeed(42);
+        for (SkylineHMCOperator operator : new SkylineHMCOperator[] {getBSPOperator(0.05), getBESPOperator(0.05)}) {
+
+            operator.stats = operator.skyline.getStatistics(null);
+            double [] values = getValues(operator),
+                      start  = new double[values.length],
+                      startMomentum = new double[values.length];
+
+            for (int i = 0; i < values.length; i++) {
+                start[i]         = operator.position[i] = Math.log(values[i]);
+                startMomentum[i] = operator.momentum[i] = Randomizer.nextGaussian();
+            }
+
+            assertTrue(operator.leapfrog(7));
+            for (int i = 0; i < values.length; i++) {
+                assertTrue(Math.abs(operator.position[i] - start[i]) > 1E-6);
+                operator.momentum[i] = -operator.momentum[i];
+            }
+
+            assertTrue(operator.leapfrog(7));
+            for (int i = 0; i < values.length; i++) {
+                assertEquals(start[i],          operator.position[i], 1E-10);
+                assertEquals(-startMomentum[i], operator.momentum[i], 1E-10);
+            }
+        }
+    }
+
+
+    @Test
+    public void testHastingsRatio () {
+
+        System.out.println("HMC: Hastings ratio of a proposal cancels the change in the posterior for a small step size.");
+
+        Randomizer.setSeed(7);
+        for (SkylineHMCOperator operator : new SkylineHMCOperator[] {getBSPOperator(1E-3), getBESPOperator(1E-3)}) {
+            for (int k = 0; k < 10; k++) {
+                double logP = getLogPosterior(operator),
+                       logHR = operator.proposal();
+
+                // Energy is conserved up to O(stepSize^2)
+                assertEquals(0.0, getLogPosterior(operator) - logP + logHR, 1E-4);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package bsp.operators;
+
+import beast.core.parameter.IntegerParameter;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import bsp.distributions.BESP;
+import bsp.distributions.BSP;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for bsp.operators.SkylineInformedGroupSizeOperator.java
+ *
+ * - A Metropolis-Hastings chain using only the operator, with the skyline likelihood as the target, visits every
+ *   grouping of a small tree in proportion to its likelihood (calculated by enumerating all groupings), for both
+ *   balancing functions and for BSP and BESP
+ *
+ **/
+public class SkylineInformedGroupSizeOperatorTest extends TestCase {
+
+    static final String newick = "(((A:3.0,B:3.0):2.0,(C:1.0,D:1.0):4.0):3.0,((E:4.0,F:4.0):1.0,(G:0.5,H:0.5):3.0):3.0);";
+
+
+    static BSP getSkyline(IntegerParameter groupSizes, boolean besp) {
+
+        BSP skyline;
+        if (besp) {
+            skyline = new BESP();
+            skyline.initByName("popSizes", "2.0 2.5 3.0", "samplingIntensity", "2.0 0.5", "popSizeGroupSizes", groupSizes,
+                               "samplingIntensityGroupSizes", "3 5", "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+        } else {
+            skyline = new BSP();
+            skyline.initByName("popSizes", "2.0 3.0 4.0", "popSizeGroupSizes", groupSizes,
+                               "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+        }
+        return skyline;
+    }
+
+
+    /**
+     * Likelihood of every grouping of the events into three groups, normalised
+     */
+    static Map<String, Double> getTarget(int events, boolean besp) {
+
+        Map<String, Double> target = new HashMap<>();
+        double sum = 0.0;
+        for (int i = 1; i < events; i++) {
+            for (int j = 1; i + j < events; j++) {
+                int [] sizes = {i, j, events - i - j};
+                double p = Math.exp(getSkyline(new IntegerParameter(sizes[0] + " " + sizes[1] + " " + sizes[2]), besp).calculateLogP());
+                target.put(Arrays.toString(sizes), p);
+                sum += p;
+            }
+        }
+        for (Map.Entry<String, Double> entry : target.entrySet()) {
+            entry.setValue(entry.getValue()/sum);
+        }
+        return target;
+    }
+
+
+    static int [] getSizes(IntegerParameter groupSizes) {
+        return new int [] {groupSizes.getValue(0), groupSizes.getValue(1), groupSizes.getValue(2)};
+    }
+
+
+    static void checkStationaryDistribution(String balancing, boolean besp, int events, String initial) {
+
+        final int nrSteps = 100000;
+
+        IntegerParameter groupSizes = new IntegerParameter(initial);
+        BSP skyline = getSkyline(groupSizes, besp);
+
+        SkylineInformedGroupSizeOperator operator = new SkylineInformedGroupSizeOperator();
+        operator.initByName("skyline", skyline, "groupSizes", groupSizes, "window", 2, "balancing", balancing, "weight", 1.0);
+
+        Map<String, Integer> visits = new HashMap<>();
+        double logP = skyline.calculateLogP();
+
+        for (int k = 0; k < nrSteps; k++) {
+            int [] current = getSizes(groupSizes);
+
+            skyline.store();
+            double logHR = operator.proposal();
+
+            if (logHR > Double.NEGATIVE_INFINITY) {
+                skyline.checkDirtiness();
+                double newLogP = skyline.calculateLogP();
+
+                if (Math.log(Randomizer.nextDouble()) < newLogP - logP + logHR) {
+                    logP = newLogP;
+                } else {
+                    for (int i = 0; i < current.length; i++) {
+                        groupSizes.setValue(i, current[i]);
+                    }
+                    skyline.restore();
+                }
+            }
+            groupSizes.setEverythingDirty(false);
+            visits.merge(Arrays.toString(getSizes(groupSizes)), 1, Integer::sum);
+        }
+
+        Map<String, Double> target = getTarget(events, besp);
+        for (Map.Entry<String, Double> entry : target.entrySet()) {
+            Integer count = visits.get(entry.getKey());
+            assertEquals(balancing + " " + entry.getKey(), entry.getValue(), (count == null ? 0.0 : count)/(double) nrSteps, 0.01);
+        }
+        assertTrue(target.keySet().containsAll(visits.keySet()));
+    }
+
+
+    @Test
+    public void testStationaryDistributionBSP () {
+
+        System.out.println("SkylineInformedGroupSizeOperator: BSP chain visits groupings in proportion to their likelihood.");
+
+        Randomizer.setSeed(127);
+        checkStationaryDistribution("sqrt",   false, 7, "2 3 2");
+        checkStationaryDistribution("barker", false, 7, "2 3 2");
+    }
+
+
+    @Test
+    public void testStationaryDistributionBESP () {
+
+        System.out.println("SkylineInformedGroupSizeOperator: BESP chain visits groupings in proportion to their likelihood.");
+
+        Randomizer.setSeed(128);
+        checkStationaryDistribution("sqrt",   true, 15, "4 5 6");
+        checkStationaryDistribution("barker", true, 15, "4 5 6");
+    }
+
+}
@@ -0,0 +1,176 @@
+package bsp.operators;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.math.GammaFunction;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import bsp.distributions.BESP;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Unit tests for bsp.operators.SkylineRidgeOperator.java
+ *
+ * - Proposals scale one population size by s and exactly the overlapping sampling intensities by 1/s, and the
+ *   Hastings ratio is (1-k-2)*log(s) for k sampling intensities scaled
+ * - A Metropolis-Hastings chain using the operator together with single-parameter scale moves has the means of a
+ *   target of independent gamma distributions (a wrong Jacobian biases the means)
+ *
+ **/
+public class SkylineRidgeOperatorTest extends TestCase {
+
+    static final String newick = "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);";
+
+    static final double [] shapes = {2.0, 3.0, 1.5, 2.5, 4.0};
+
+
+    static SkylineRidgeOperator getOperator() {
+
+        BESP skyline = new BESP();
+        skyline.initByName("popSizes", "2.0 3.0", "samplingIntensity", "1.0 2.0 3.0", "popSizeGroupSizes", "6 5",
+                           "samplingIntensityGroupSizes", "3 2 1", "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+
+        SkylineRidgeOperator operator = new SkylineRidgeOperator();
+        operator.initByName("skyline", skyline, "scaleFactor", 0.6, "weight", 1.0);
+        return operator;
+    }
+
+
+    static double [] getValues(SkylineRidgeOperator operator) {
+
+        RealParameter popSizes          = operator.popSizes,
+                      samplingIntensity = operator.samplingIntensity;
+
+        double [] values = new double[popSizes.getDimension() + samplingIntensity.getDimension()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i < popSizes.getDimension() ? popSizes.getValue(i) : samplingIntensity.getValue(i - popSizes.getDimension());
+        }
+        return values;
+    }
+
+
+    static void setValues(SkylineRidgeOperator operator, double [] values) {
+
+        int n = operator.popSizes.getDimension();
+        for (int i = 0; i < values.length; i++) {
+            if (i < n) {
+                operator.popSizes.setValue(i, values[i]);
+            } else {
+                operator.samplingIntensity.setValue(i - n, values[i]);
+            }
+        }
+    }
+
+
+    /**
+     * Independent gamma distributions with scale 1
+     */
+    static double getLogTarget(double [] values) {
+
+        double logP = 0.0;
+        for (int i = 0; i < values.length; i++) {
+            logP += (shapes[i]-1)*Math.log(values[i]) - values[i] - GammaFunction.lnGamma(shapes[i]);
+        }
+        return logP;
+    }
+
+
+    @Test
+    public void testProposal () {
+
+        System.out.println("SkylineRidgeOperator: Overlapping groups are scaled in opposite directions with the right Hastings ratio.");
+
+        Randomizer.setSeed(127);
+        SkylineRidgeOperator operator = getOperator();
+        BESP skyline = operator.skyline;
+
+        for (int k = 0; k < 100; k++) {
+            double [] before = getValues(operator);
+            double logHR = operator.proposal();
+            double [] after = getValues(operator);
+
+            // One population size scaled
+            int j = -1;
+            for (int i = 0; i < 2; i++) {
+                if (after[i] != before[i]) {
+                    assertEquals(-1, j);
+                    j = i;
+                }
+            }
+            assertTrue(j >= 0);
+            double scale = after[j]/before[j];
+            assertTrue(scale >= 0.6 && scale <= 1/0.6);
+
+            // Exactly the overlapping sampling intensities scaled by 1/scale
+            double start = j > 0 ? skyline.getPopSizeChangeTime(j-1) : 0.0,
+                   end   = j < 1 ? skyline.getPopSizeChangeTime(j) : Double.POSITIVE_INFINITY,
+                   groupStart = 0.0;
+            int    scaled = 0;
+            for (int m = 0; m < 3; m++) {
+                double groupEnd = skyline.getSamplingIntensityChangeTime(m);
+                if (groupStart < end && groupEnd > start) {
+                    assertEquals(before[2+m]/scale, after[2+m], 1E-12);
+                    assertEquals(before[j]*before[2+m], after[j]*after[2+m], 1E-12);
+                    scaled++;
+                } else {
+                    assertEquals(before[2+m], after[2+m]);
+                }
+                groupStart = groupEnd;
+            }
+            assertTrue(scaled > 0);
+
+            assertEquals((1 - scaled - 2)*Math.log(scale), logHR, 1E-12);
+        }
+    }
+
+
+    @Test
+    public void testTarget () {
+
+        System.out.println("SkylineRidgeOperator: Chain with ridge and scale moves has the means of the target.");
+
+        final int nrSteps = 400000;
+
+        Randomizer.setSeed(128);
+        SkylineRidgeOperator operator = getOperator();
+
+        double [] values = getValues(operator),
+                  means  = new double[values.length];
+        double    logP   = getLogTarget(values);
+
+        for (int k = 0; k < nrSteps; k++) {
+            double logHR;
+
+            if (Randomizer.nextBoolean()) {
+                logHR = operator.proposal();
+            } else {
+                // Scale a single value (as ScaleOperator)
+                int       i        = Randomizer.nextInt(values.length);
+                double    scale    = 0.6 + Randomizer.nextDouble()*(1/0.6 - 0.6);
+                double [] proposed = values.clone();
+                proposed[i] *= scale;
+                setValues(operator, proposed);
+                logHR = -Math.log(scale);
+            }
+
+            double [] proposed = getValues(operator);
+            double newLogP = getLogTarget(proposed);
+            if (Math.log(Randomizer.nextDouble()) < newLogP - logP + logHR) {
+                values = proposed;
+                logP   = newLogP;
+            } else {
+                setValues(operator, values);
+            }
+
+            for (int i = 0; i < values.length; i++) {
+                means[i] += values[i]/nrSteps;
+            }
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            assertEquals("Mean of value " + i, shapes[i], means[i], 0.05*shapes[i]);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package bsp.simulation;
+
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Unit tests for bsp.simulation.SkylineSimulator.java
+ *
+ * - Mean tMRCA under a constant population size (BSP, homochronous sampling)
+ * - Mean tMRCA under piecewise constant population sizes (BSP, heterochronous sampling) compared to the analytical
+ *   expectation for 2 samples
+ * - Output does not depend on the number of threads or the buffer size
+ * - Number of samples when conditioning on sampleCount (BESP)
+ */
+public class SkylineSimulatorTest extends TestCase {
+
+
+    private static List<String> simulate(Object... arguments) throws Exception {
+
+        File file = File.createTempFile("SkylineSimulatorTest", ".trees");
+        file.deleteOnExit();
+
+        Object [] args = new Object[arguments.length+2];
+        System.arraycopy(arguments, 0, args, 0, arguments.length);
+        args[arguments.length]   = "fileName";
+        args[arguments.length+1] = file.getPath();
+
+        SkylineSimulator simulator = new SkylineSimulator();
+        simulator.initByName(args);
+        simulator.run();
+
+        return Files.readAllLines(file.toPath());
+    }
+
+
+    @Test
+    public void testConstantPopSize () throws Exception {
+
+        System.out.println("SkylineSimulator: Mean tMRCA with constant population size (expected 2N(1-1/n)).");
+
+        List<String> trees = simulate("popSizes", "10.0", "sampleCount", 10, "treeCount", 2000, "seed", 127L);
+        assertEquals(2000, trees.size());
+
+        double mean = 0.0;
+        for (String newick : trees) {
+            Tree tree = new TreeParser(newick, false);
+            assertEquals(10, tree.getLeafNodeCount());
+            mean += tree.getRoot().getHeight() / trees.size();
+        }
+
+        // Standard error is about 0.25
+        assertEquals(2*10.0*(1-1.0/10), mean, 1.0);
+    }
+
+
+    @Test
+    public void testPiecewisePopSize () throws Exception {
+
+        System.out.println("SkylineSimulator: Mean tMRCA of 2 samples with piecewise constant population size.");
+
+        // Samples at 0 and 1, N = 1 on [0,2), N = 4 after 2
+        List<String> trees = simulate("popSizes", "1.0 4.0", "popSizeChangeTimes", "2.0", "samplingTimes", "0.0 1.0",
+                                      "treeCount", 4000, "seed", 42L);
+
+        double mean = 0.0;
+        for (String newick : trees) {
+            mean += new TreeParser(newick, false).getRoot().getHeight() / trees.size();
+        }
+
+        // E[T] = 1 + (1 - e^{-1}) + e^{-1}*4   (integral of the survival function from 1)
+        double expected = 1.0 + (1 - Math.exp(-1)) + Math.exp(-1)*4.0;
+        assertEquals(expected, mean, 0.15);
+    }
+
+
+    @Test
+    public void testReproducible () throws Exception {
+
+        System.out.println("SkylineSimulator: Same trees with different numbers of threads and buffer sizes.");
+
+        List<String> trees1 = simulate("popSizes", "5.0 1.0", "popSizeChangeTimes", "3.0",
+                                       "samplingIntensity", "2.0 1.0", "samplingIntensityChangeTimes", "1.0 2.0",
+                                       "treeCount", 200, "seed", 1L, "threads", 1, "bufferSize", 1);
+        List<String> trees2 = simulate("popSizes", "5.0 1.0", "popSizeChangeTimes", "3.0",
+                                       "samplingIntensity", "2.0 1.0", "samplingIntensityChangeTimes", "1.0 2.0",
+                                       "treeCount", 200, "seed", 1L, "threads", 4, "bufferSize", 7);
+
+        assertEquals(trees1, trees2);
+    }
+
+
+    @Test
+    public void testSampleCount () throws Exception {
+
+        System.out.println("SkylineSimulator: Conditioning on the number of samples (BESP).");
+
+        List<String> trees = simulate("popSizes", "5.0 1.0", "popSizeChangeTimes", "3.0",
+                                      "samplingIntensity", "2.0 1.0", "samplingIntensityChangeTimes", "1.0 4.0",
+                                      "sampleCount", 25, "treeCount", 50, "seed", 3L);
+
+        for (String newick : trees) {
+            assertEquals(25, new TreeParser(newick, false).getLeafNodeCount());
+        }
+    }
+
+}
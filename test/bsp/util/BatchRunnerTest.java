@@ -0,0 +1,133 @@
+package bsp.util;
+
+import beast.core.Input;
+import beast.core.Runnable;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Unit tests for bsp.util.BatchRunner.java
+ *
+ * - Every run draws the same random numbers as a single run started with its seed, and a batch is reproducible from
+ *   the batch seed, with 1 and with more threads
+ * - Failed runs are counted and do not stop the batch
+ *
+ **/
+public class BatchRunnerTest extends TestCase {
+
+    static final String xml = "<beast version=\"2.0\" namespace=\"beast.core\">\n"
+                            + "    <run id=\"run\" spec=\"bsp.util.BatchRunnerTest$RandomRun\" fileName=\"$(filebase).txt\"/>\n"
+                            + "</beast>\n";
+
+
+    /**
+     * Writes a few random numbers drawn from Randomizer to a file
+     */
+    public static class RandomRun extends Runnable {
+
+        final public Input<String> fileNameInput = new Input<>("fileName", "File to write the random numbers to", Input.Validate.REQUIRED);
+
+        @Override
+        public void initAndValidate() { }
+
+        @Override
+        public void run() throws IOException, InterruptedException {
+            try (PrintStream out = new PrintStream(fileNameInput.get())) {
+                for (int i = 0; i < 10; i++) {
+                    out.println(Randomizer.nextDouble());
+                    // Concurrent runs draw in turns
+                    Thread.sleep(1);
+                }
+            }
+        }
+    }
+
+
+    static File getXMLDir(String... names) throws IOException {
+
+        File dir = Files.createTempDirectory("batch").toFile();
+        for (String name : names) {
+            Files.write(new File(dir, name + ".xml").toPath(), xml.getBytes("UTF-8"));
+        }
+        return dir;
+    }
+
+
+    static String read(File dir, String name) throws IOException {
+        return new String(Files.readAllBytes(new File(dir, name + ".txt").toPath()), "UTF-8");
+    }
+
+
+    static void checkSeeds(int threads) throws Exception {
+
+        String [] names = {"a", "b", "c", "d", "e", "f"};
+        File dir  = getXMLDir(names),
+             out1 = Files.createTempDirectory("batch").toFile(),
+             out2 = Files.createTempDirectory("batch").toFile(),
+             single = Files.createTempDirectory("batch").toFile();
+
+        assertEquals(0, new BatchRunner(threads, 42L, out1).runDirectory(dir));
+        assertEquals(0, new BatchRunner(threads, 42L, out2).runDirectory(dir));
+
+        // Seeds of the runs are drawn from the batch seed in the order of the runs
+        SplittableRandom seeds = new SplittableRandom(42);
+        for (String name : names) {
+            Randomizer.setSeed(seeds.nextLong(Long.MAX_VALUE));
+            RandomRun run = new RandomRun();
+            run.initByName("fileName", new File(single, name + ".txt").getPath());
+            run.run();
+
+            assertEquals(read(single, name), read(out1, name));
+            assertEquals(read(single, name), read(out2, name));
+        }
+        assertFalse(read(out1, "a").equals(read(out1, "b")));
+
+        // The XML of every run is kept
+        assertTrue(new File(out1, "a.batch.xml").exists());
+        assertFalse(Arrays.asList(dir.list()).contains("a.batch.xml"));
+    }
+
+
+    @Test
+    public void testSingleThread () throws Exception {
+
+        System.out.println("BatchRunner: Runs on 1 thread are reproducible from their seeds and the batch seed.");
+
+        checkSeeds(1);
+    }
+
+
+    @Test
+    public void testThreads () throws Exception {
+
+        System.out.println("BatchRunner: Concurrent runs are reproducible from their seeds and the batch seed.");
+
+        checkSeeds(3);
+    }
+
+
+    @Test
+    public void testFailures () throws Exception {
+
+        System.out.println("BatchRunner: Failed runs are counted and do not stop the batch.");
+
+        File dir = getXMLDir("a", "c"),
+             out = Files.createTempDirectory("batch").toFile();
+        Files.write(new File(dir, "b.xml").toPath(), xml.replace("RandomRun", "MissingRun").getBytes("UTF-8"));
+
+        BatchRunner runner = new BatchRunner(1, 42L, out);
+        assertEquals(1, runner.runDirectory(dir));
+        assertEquals(3, runner.runs.get());
+        assertTrue(new File(out, "a.txt").exists());
+        assertTrue(new File(out, "c.txt").exists());
+    }
+
+}
@@ -0,0 +1,141 @@
+package bsp.util;
+
+import beast.core.parameter.IntegerParameter;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.TreeParser;
+import bsp.distributions.BSP;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Unit tests for bsp.util.SkylineCounters.java and bsp.util.skylineCounterLogger.java
+ *
+ * - Counters count likelihood calculations, array updates, stores and restores of a skyline
+ * - No increments are lost when counters are written from several threads
+ * - The JMX MBean is registered by the logger and unregistered when it is closed
+ *
+ **/
+public class SkylineCountersTest extends TestCase {
+
+    static final String newick = "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);";
+
+
+    static BSP getSkyline(String id, IntegerParameter groupSizes) {
+
+        BSP skyline = new BSP();
+        skyline.setID(id);
+        skyline.initByName("popSizes", "1.0 2.0 1.5", "popSizeGroupSizes", groupSizes, "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+        return skyline;
+    }
+
+
+    @Test
+    public void testCounts () {
+
+        System.out.println("SkylineCounters: Calculations, updates, stores and restores are counted.");
+
+        IntegerParameter groupSizes = new IntegerParameter("2 2 1");
+        BSP skyline = getSkyline("testCounts", groupSizes);
+
+        skylineCounterLogger logger = new skylineCounterLogger();
+        logger.initByName("skyline", skyline, "jmx", false);
+        SkylineCounters counters = skyline.getCounters();
+        assertNotNull(counters);
+
+        // Arrays were already updated when the skyline was initialised
+        skyline.calculateLogP();
+        assertEquals(1, counters.getLogPCalculations());
+        assertEquals(0, counters.getArrayUpdates());
+
+        skyline.store();
+        groupSizes.setValue(0, 1);
+        groupSizes.setValue(1, 3);
+        skyline.checkDirtiness();
+        skyline.calculateLogP();
+        assertEquals(2, counters.getLogPCalculations());
+        assertEquals(1, counters.getArrayUpdates());
+        assertEquals(1, counters.getFullRecalculations());
+        assertEquals(0, counters.getPartialRecalculations());
+
+        skyline.restore();
+        skyline.store();
+        assertEquals(2, counters.getStores());
+        assertEquals(1, counters.getRestores());
+
+        long [] expected = {2, 1, 1, 0, 0, 2, 1, counters.getCalculationNanos()/1000000};
+        for (int i = 0; i < logger.getDimension(); i++) {
+            assertEquals((double) expected[i], logger.getArrayValue(i));
+        }
+
+        counters.reset();
+        for (int i = 0; i < logger.getDimension(); i++) {
+            assertEquals(0.0, logger.getArrayValue(i));
+        }
+    }
+
+
+    @Test
+    public void testConcurrentUpdates () throws InterruptedException {
+
+        System.out.println("SkylineCounters: No increments are lost when written from several threads.");
+
+        final int nrThreads = 4,
+                  nrUpdates = 100000;
+
+        SkylineCounters counters = new SkylineCounters();
+        Thread [] threads = new Thread[nrThreads];
+        for (int i = 0; i < nrThreads; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < nrUpdates; j++) {
+                    counters.logPCalculated(2);
+                    counters.arraysUpdated(j % 2 == 0);
+                    counters.stored();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(nrThreads*nrUpdates,   counters.getLogPCalculations());
+        assertEquals(2*nrThreads*nrUpdates, counters.getCalculationNanos());
+        assertEquals(nrThreads*nrUpdates,   counters.getArrayUpdates());
+        assertEquals(nrThreads*nrUpdates/2, counters.getFullRecalculations());
+        assertEquals(nrThreads*nrUpdates/2, counters.getPartialRecalculations());
+        assertEquals(nrThreads*nrUpdates,   counters.getStores());
+    }
+
+
+    @Test
+    public void testJMX () throws Exception {
+
+        System.out.println("SkylineCounters: MBean is registered by the logger and unregistered when it is closed.");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName  name   = new ObjectName("bsp:type=SkylineCounters,name=" + ObjectName.quote("testJMX"));
+
+        BSP skyline = getSkyline("testJMX", new IntegerParameter("2 2 1"));
+        skylineCounterLogger logger = new skylineCounterLogger();
+        logger.initByName("skyline", skyline);
+        assertTrue(server.isRegistered(name));
+
+        skyline.calculateLogP();
+        assertEquals(1L, server.getAttribute(name, "LogPCalculations"));
+
+        logger.close(System.out);
+        assertFalse(server.isRegistered(name));
+
+        // Can be registered again (e.g. by the next run in the same JVM)
+        logger = new skylineCounterLogger();
+        logger.initByName("skyline", getSkyline("testJMX", new IntegerParameter("2 2 1")));
+        assertTrue(server.isRegistered(name));
+        logger.close(System.out);
+        assertFalse(server.isRegistered(name));
+    }
+
+}
@@ -0,0 +1,115 @@
+package bsp.util;
+
+import beast.evolution.tree.coalescent.IntervalType;
+import beast.evolution.tree.coalescent.TreeIntervals;
+import beast.util.TreeParser;
+import bsp.distributions.BESP;
+import bsp.distributions.BSP;
+import bsp.distributions.SkylineEvaluator;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+/**
+ * Unit tests for bsp.util.SkylineLikelihoodCalculator.java
+ *
+ * - Compare log-likelihoods to BSP and BESP on the trees of BSPTest and BESPTest
+ * - Events at the same time are in the order of TreeIntervals, also if the population size group boundary falls
+ *   between them
+ * - Metadata annotations and the rooting comment of NEXUS trees do not change the log-likelihood
+ *
+ **/
+public class SkylineLikelihoodCalculatorTest extends TestCase {
+
+    static final String homochronous   = "((D4Philip56:30.0,(D4Philip64:23.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:25.0,(D4Thai78:11.0,D4Thai84:11.0):14.0):15.0);",
+                        heterochronous = "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);",
+                        nonUnique      = "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:17.0,(D4Thai78:5.0,D4Thai84:11.0):12.0):17.0);",
+                        // Sampling and coalescent events at 15 and 17
+                        ties           = "((((D4Mexico84:5.0,D4ElSal94:15.0):1.0,D4PRico86:8.0):1.0,D4Tahiti79:2.0):5.0,D4Indon77:5.0);";
+
+
+    static double getBSPLogP(String newick, String popSizes, String popSizeGroupSizes) {
+
+        BSP skyline = new BSP();
+        skyline.initByName("popSizes", popSizes, "popSizeGroupSizes", popSizeGroupSizes, "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+        return skyline.calculateLogP();
+    }
+
+
+    static double getBESPLogP(String newick, String popSizes, String popSizeGroupSizes, String samplingIntensity, String samplingIntensityGroupSizes) {
+
+        BESP skyline = new BESP();
+        skyline.initByName("popSizes", popSizes, "popSizeGroupSizes", popSizeGroupSizes, "samplingIntensity", samplingIntensity,
+                           "samplingIntensityGroupSizes", samplingIntensityGroupSizes, "treeIntervals", new TreeIntervals(new TreeParser(newick, false)));
+        return skyline.calculateLogP();
+    }
+
+
+    @Test
+    public void testBSP () {
+
+        System.out.println("SkylineLikelihoodCalculator: Log-likelihoods are the same as BSP.");
+
+        String [][] cases = {{homochronous,   "165 120 12 15 10", "1 1 1 1 1"},
+                             {homochronous,   "1.0 2.0 3.0",      "2 2 1"},
+                             {heterochronous, "1.0 2.0 1.5",      "2 2 1"},
+                             {ties,           "1.0 2.0",          "1 3"},
+                             {ties,           "1.0 2.0",          "2 2"}};
+
+        for (String [] c : cases) {
+            SkylineLikelihoodCalculator calculator = new SkylineLikelihoodCalculator(c[1], c[2], null, null);
+            assertEquals(getBSPLogP(c[0], c[1], c[2]), calculator.calculateLogP(c[0], null), BEASTTestCase.PRECISION);
+        }
+
+        // Robust design
+        SkylineLikelihoodCalculator calculator = new SkylineLikelihoodCalculator("1.0 2.0 3.0", null, null, null);
+        assertEquals(getBSPLogP(homochronous, "1.0 2.0 3.0", "2 2 1"), calculator.calculateLogP(homochronous, null), BEASTTestCase.PRECISION);
+    }
+
+
+    @Test
+    public void testBESP () {
+
+        System.out.println("SkylineLikelihoodCalculator: Log-likelihoods are the same as BESP.");
+
+        String [][] cases = {{heterochronous, "2.0 3.0",     "6 5",   "1.0 2.0 3.0", "3 2 1"},
+                             {nonUnique,      "3.0 2.0 1.0", "3 4 4", "2.0 3.0",     "4 2"},
+                             {ties,           "1.0 2.0",     "6 3",   "2.0 1.0",     "3 2"},
+                             {ties,           "1.0 2.0",     "3 6",   "2.0 1.0",     "4 1"}};
+
+        for (String [] c : cases) {
+            SkylineLikelihoodCalculator calculator = new SkylineLikelihoodCalculator(c[1], c[2], c[3], c[4]);
+            assertEquals(getBESPLogP(c[0], c[1], c[2], c[3], c[4]), calculator.calculateLogP(c[0], null), BEASTTestCase.PRECISION);
+        }
+    }
+
+
+    @Test
+    public void testTies () {
+
+        System.out.println("SkylineLikelihoodCalculator: Events at the same time are in the same order as in BESP.");
+
+        // TreeIntervals has the coalescent event before the sample at 15
+        IntervalType [] eventTypes = SkylineEvaluator.getEventTypes(SkylineLikelihoodCalculator.getIntervals(ties));
+        assertEquals(IntervalType.COALESCENT, eventTypes[3]);
+        assertEquals(IntervalType.SAMPLE,     eventTypes[4]);
+
+        // The population size group boundary falls between the two events at 15
+        SkylineLikelihoodCalculator calculator = new SkylineLikelihoodCalculator("1.0 2.0", "4 5", "2.0 1.0", "3 2");
+        assertEquals(getBESPLogP(ties, "1.0 2.0", "4 5", "2.0 1.0", "3 2"), calculator.calculateLogP(ties, null), BEASTTestCase.PRECISION);
+    }
+
+
+    @Test
+    public void testAnnotations () {
+
+        System.out.println("SkylineLikelihoodCalculator: Metadata annotations do not change log-likelihoods.");
+
+        String annotated = "[&R] ((D4Philip56[&rate=1.0]:2.0,(D4Philip64:[&rate=0.5]3.0,D4Philip84:23.0)[&rate=2.0]:7.0):10.0,"
+                         + "(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):[&rate=1.5,height={1.0,2.0}]14.0):15.0);";
+
+        SkylineLikelihoodCalculator calculator = new SkylineLikelihoodCalculator("2.0 3.0", "6 5", "1.0 2.0 3.0", "3 2 1");
+        assertEquals(calculator.calculateLogP(heterochronous, null), calculator.calculateLogP(annotated, null), BEASTTestCase.PRECISION);
+    }
+
+}
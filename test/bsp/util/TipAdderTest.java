@@ -0,0 +1,150 @@
+package bsp.util;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+import org.junit.Test;
+import test.beast.BEASTTestCase;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for bsp.util.TipAdder.java
+ *
+ * - The previous tree is kept: every pair of its tips has the same MRCA height (shifted to the tip dates of the tree),
+ *   also if new tips are older than its root
+ * - Every node is younger than its parent, so every new tip hangs below a parent older than itself
+ * - Node numbers are 0..nodeCount-1 and tips keep their numbers in the tree
+ * - Tip dates of the previous tree that do not match the tree (up to a shift) are refused
+ *
+ **/
+public class TipAdderTest extends TestCase {
+
+    // All tips with their dates (heights 28, 20, 0, 6, 6, 0)
+    static final String tree = "((D4Philip56:2.0,(D4Philip64:3.0,D4Philip84:23.0):7.0):10.0,(D4SLanka78:19.0,(D4Thai78:5.0,D4Thai84:11.0):14.0):15.0);";
+
+
+    static Tree addTips(String previousTree, Map<String, Integer> tipNrs) {
+
+        Tree initial = new TreeParser(tree, false);
+        for (Node tip : initial.getExternalNodes()) {
+            tipNrs.put(tip.getID(), tip.getNr());
+        }
+
+        TipAdder tipAdder = new TipAdder();
+        tipAdder.initByName("tree", initial, "previousTree", new TreeParser(previousTree, false));
+        tipAdder.initStateNodes();
+        return initial;
+    }
+
+
+    static Node getTip(Tree tree, String id) {
+
+        for (Node tip : tree.getExternalNodes()) {
+            if (tip.getID().equals(id)) {
+                return tip;
+            }
+        }
+        throw new IllegalArgumentException("No tip " + id);
+    }
+
+
+    static double getMRCAHeight(Tree tree, String a, String b) {
+
+        Set<Node> ancestors = new HashSet<>();
+        for (Node node = getTip(tree, a); node != null; node = node.getParent()) {
+            ancestors.add(node);
+        }
+        Node node = getTip(tree, b);
+        while (!ancestors.contains(node)) {
+            node = node.getParent();
+        }
+        return node.getHeight();
+    }
+
+
+    static void checkTipAdder(String previousNewick, double offset) {
+
+        Tree previous = new TreeParser(previousNewick, false);
+
+        for (int seed = 1; seed <= 20; seed++) {
+            Randomizer.setSeed(seed);
+            Map<String, Integer> tipNrs = new HashMap<>();
+            Tree result = addTips(previousNewick, tipNrs);
+
+            assertEquals(tipNrs.size(), result.getLeafNodeCount());
+            assertEquals(2*tipNrs.size()-1, result.getNodeCount());
+
+            // Previous tree is kept
+            for (Node a : previous.getExternalNodes()) {
+                for (Node b : previous.getExternalNodes()) {
+                    if (a != b) {
+                        assertEquals(getMRCAHeight(previous, a.getID(), b.getID()) + offset,
+                                     getMRCAHeight(result, a.getID(), b.getID()), BEASTTestCase.PRECISION);
+                    }
+                }
+            }
+
+            // Nodes are younger than their parents and numbered 0..nodeCount-1, tips keep their numbers
+            Node [] nodes = result.getNodesAsArray();
+            for (int i = 0; i < nodes.length; i++) {
+                Node node = nodes[i];
+                assertEquals(i, node.getNr());
+                if (!node.isRoot()) {
+                    assertTrue(node.getParent().getHeight() > node.getHeight());
+                }
+                if (node.isLeaf()) {
+                    assertEquals((int) tipNrs.get(node.getID()), node.getNr());
+                    assertEquals(new TreeParser(tree, false).getNode(node.getNr()).getHeight(), node.getHeight(), BEASTTestCase.PRECISION);
+                } else {
+                    assertTrue(node.getNr() >= result.getLeafNodeCount());
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void testAddTips () {
+
+        System.out.println("TipAdder: The previous tree is kept and new tips are grafted below older nodes.");
+
+        // Most recent tips are new, so the previous tree is shifted by 6
+        checkTipAdder("((D4Philip56:3.0,D4Philip64:11.0):5.0,(D4SLanka78:20.0,D4Thai78:20.0):10.0);", 6.0);
+
+        // New tips are older than the root of the previous tree
+        checkTipAdder("(D4Philip84:2.0,D4Thai84:2.0);", 0.0);
+    }
+
+
+    @Test
+    public void testTipDates () {
+
+        System.out.println("TipAdder: Tip dates that do not match the tree are refused.");
+
+        // D4Philip56 is 10 instead of 22 older than D4SLanka78
+        for (String previous : new String [] {"((D4Philip56:1.0,D4SLanka78:11.0):1.0,D4Thai78:12.0);",
+                                              "((D4SLanka78:11.0,D4Philip56:1.0):1.0,D4Thai78:12.0);"}) {
+            try {
+                addTips(previous, new HashMap<>());
+                fail("Expected an IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        // Tip that is not in the tree
+        try {
+            addTips("(D4Philip84:2.0,D4Brazil90:2.0);", new HashMap<>());
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}